@@ -33,5 +33,6 @@ module rs.igram.kiribi.examples.services.calculator {
 	requires transitive rs.igram.kiribi.crypto;
 	requires transitive rs.igram.kiribi.net;
 	requires transitive rs.igram.kiribi.service;
+	requires transitive rs.igram.kiribi.examples.services.common;
 	exports rs.igram.kiribi.examples.services.calculator;
 }
\ No newline at end of file
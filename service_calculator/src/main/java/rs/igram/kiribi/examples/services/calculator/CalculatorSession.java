@@ -26,17 +26,17 @@ package rs.igram.kiribi.examples.services.calculator;
 
 import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
 
 import rs.igram.kiribi.io.VarInput;
 import rs.igram.kiribi.io.VarOutput;
+import rs.igram.kiribi.examples.services.common.AsyncSession;
+import rs.igram.kiribi.examples.services.common.PackedArrays;
 import rs.igram.kiribi.service.Message;
 import rs.igram.kiribi.service.Scope;
 import rs.igram.kiribi.service.Service;
 import rs.igram.kiribi.service.ServiceAddress;
 import rs.igram.kiribi.service.ServiceException;
 import rs.igram.kiribi.service.ServiceId;
-import rs.igram.kiribi.service.Session;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -45,13 +45,25 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  *
  * @author Michael Sargent
  */
-public class CalculatorSession extends Session {
+public class CalculatorSession extends AsyncSession {
 	private static final byte CLIENT_REQUEST_ADD	 		 = 1;
 	private static final byte CLIENT_REQUEST_SUBTRACT  	 = 2;
 	private static final byte CLIENT_REQUEST_MULTIPLY	 	 = 3;
 	private static final byte CLIENT_REQUEST_DIVIDE 		 = 4;
+	private static final byte CLIENT_REQUEST_BATCH 		 = 5;
 	private static final byte SERVICE_RESPONSE_VALID_INPUT = 1;
 	private static final byte SERVICE_RESPONSE_INVALID_INPUT = 2;
+	
+	/** Batch operation adding its operands. */
+	public static final byte ADD = CLIENT_REQUEST_ADD;
+	/** Batch operation subtracting its second operand from its first. */
+	public static final byte SUBTRACT = CLIENT_REQUEST_SUBTRACT;
+	/** Batch operation multiplying its operands. */
+	public static final byte MULTIPLY = CLIENT_REQUEST_MULTIPLY;
+	/** Batch operation dividing its first operand by its second. */
+	public static final byte DIVIDE = CLIENT_REQUEST_DIVIDE;
+	
+	private volatile RequestWindow window;
 
 	protected CalculatorSession(Service service) {
 		super(service);
@@ -67,6 +79,7 @@ public class CalculatorSession extends Session {
 		handle(CLIENT_REQUEST_SUBTRACT, this::subtract);
 		handle(CLIENT_REQUEST_MULTIPLY, this::multiply);
 		handle(CLIENT_REQUEST_DIVIDE, this::divide);
+		handle(CLIENT_REQUEST_BATCH, this::batch);
 	}
 	
 		
@@ -122,122 +135,248 @@ public class CalculatorSession extends Session {
 			return response;
 		}
 	}
-		
-	// ---- requests ----
-	public final double add(double a, double b, long timeout) throws ServiceException {
+	
+	// ops | a | b as packed arrays, answered by results | status
+	Message batch(Message request) throws IOException {
+		var ops = request.in().readBytes();
+		double[] a;
+		double[] b;
 		try{
-			return add(a, b).get(timeout, SECONDS);
-		}catch(Exception e){
-			throw new ServiceException(e);
+			a = PackedArrays.unpack(request.in().readBytes());
+			b = PackedArrays.unpack(request.in().readBytes());
+			if (a.length != ops.length || b.length != ops.length) throw new IllegalArgumentException("Operand count mismatch");
+		}catch(IllegalArgumentException e){
+			System.out.println("PROCESSED REQUEST - INVALID BATCH");
+			var response = request.respond(SERVICE_RESPONSE_INVALID_INPUT);
+			response.out().writeUTF(e.getMessage());
+			return response;
+		}
+		
+		var results = new double[ops.length];
+		var status = new byte[ops.length];
+		for (int i = 0; i < ops.length; i++) {
+			status[i] = SERVICE_RESPONSE_VALID_INPUT;
+			switch(ops[i]){
+			case CLIENT_REQUEST_ADD:
+				results[i] = a[i] + b[i];
+				break;
+			case CLIENT_REQUEST_SUBTRACT:
+				results[i] = a[i] - b[i];
+				break;
+			case CLIENT_REQUEST_MULTIPLY:
+				results[i] = a[i] * b[i];
+				break;
+			case CLIENT_REQUEST_DIVIDE:
+				if (b[i] == 0.0) {
+					results[i] = Double.NaN;
+					status[i] = SERVICE_RESPONSE_INVALID_INPUT;
+				} else {
+					results[i] = a[i] / b[i];
+				}
+				break;
+			default:
+				results[i] = Double.NaN;
+				status[i] = SERVICE_RESPONSE_INVALID_INPUT;
+			}
 		}
+		System.out.println("PROCESSED REQUEST - BATCH: " + ops.length);
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeBytes(PackedArrays.pack(results));
+		response.out().writeBytes(status);
+		
+		return response;
 	}
 		
-	private Future<Double> add(double a, double b) throws IOException {
-		final var future = new CompletableFuture<Double>();
-		var request = Message.request(CLIENT_REQUEST_ADD);
-		request.out().writeDouble(a);
-		request.out().writeDouble(b);
-		request(
-			request, 
-			new ResponseAdapter(
-				SERVICE_RESPONSE_VALID_INPUT, 
-				response -> {
-					var result = response.in().readDouble();
-					future.complete(result);
-				},
-				error -> future.completeExceptionally(new IOException(error))
-			)
-		); 
-	
-		return future;
+	// ---- requests ----
+	/**
+	 * Enables or disables pipelining. A pipelined session keeps at most the
+	 * given number of requests in flight, further requests being queued
+	 * until credits are returned. Queued requests count towards their
+	 * timeout.
+	 *
+	 * @param size The maximum number of requests in flight, or 0 for no
+	 * limit.
+	 */
+	public final synchronized void setWindow(int size) {
+		if (size == 0) {
+			window = null;
+		} else if (window == null) {
+			window = new RequestWindow(size);
+		} else {
+			window.resize(size);
+		}
 	}
+	
+	/**
+	 * Returns the request window of a pipelined session.
+	 *
+	 * @return The request window, or null unless pipelined.
+	 */
+	public final RequestWindow window() {
+		return window;
+	}
+	
+	public final double add(double a, double b, long timeout) throws ServiceException {
+		return await(addAsync(a, b, timeout));
+	}
+	
+	/**
+	 * Adds two numbers without blocking.
+	 *
+	 * @param a The first operand.
+	 * @param b The second operand.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the sum.
+	 */
+	public final CompletableFuture<Double> addAsync(double a, double b, long timeout) {
+		return request(CLIENT_REQUEST_ADD, a, b, timeout);
+	}
+	
 	public final double subtract(double a, double b, long timeout) throws ServiceException {
-		try{
-			return subtract(a, b).get(timeout, SECONDS);
-		}catch(Exception e){
-			throw new ServiceException(e);
-		}
+		return await(subtractAsync(a, b, timeout));
 	}
-		
-	private Future<Double> subtract(double a, double b) throws IOException {
-		final var future = new CompletableFuture<Double>();
-		var request = Message.request(CLIENT_REQUEST_SUBTRACT);
-		request.out().writeDouble(a);
-		request.out().writeDouble(b);
-		request(
-			request, 
-			new ResponseAdapter(
-				SERVICE_RESPONSE_VALID_INPUT, 
-				response -> {
-					var result = response.in().readDouble();
-					future.complete(result);
-				},
-				error -> future.completeExceptionally(new IOException(error))
-			)
-		); 
-	
-		return future;
+	
+	/**
+	 * Subtracts two numbers without blocking.
+	 *
+	 * @param a The first operand.
+	 * @param b The second operand.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the difference.
+	 */
+	public final CompletableFuture<Double> subtractAsync(double a, double b, long timeout) {
+		return request(CLIENT_REQUEST_SUBTRACT, a, b, timeout);
 	}
+	
 	public final double multiply(double a, double b, long timeout) throws ServiceException {
-		try{
-			return multiply(a, b).get(timeout, SECONDS);
-		}catch(Exception e){
-			throw new ServiceException(e);
-		}
+		return await(multiplyAsync(a, b, timeout));
 	}
-		
-	private Future<Double> multiply(double a, double b) throws IOException {
-		final var future = new CompletableFuture<Double>();
-		var request = Message.request(CLIENT_REQUEST_MULTIPLY);
-		request.out().writeDouble(a);
-		request.out().writeDouble(b);
-		request(
-			request, 
-			new ResponseAdapter(
-				SERVICE_RESPONSE_VALID_INPUT, 
-				response -> {
-					var result = response.in().readDouble();
-					future.complete(result);
-				},
-				error -> future.completeExceptionally(new IOException(error))
-			)
-		); 
-	
-		return future;
+	
+	/**
+	 * Multiplies two numbers without blocking.
+	 *
+	 * @param a The first operand.
+	 * @param b The second operand.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the product.
+	 */
+	public final CompletableFuture<Double> multiplyAsync(double a, double b, long timeout) {
+		return request(CLIENT_REQUEST_MULTIPLY, a, b, timeout);
 	}
+	
 	public final double divide(double a, double b, long timeout) throws ServiceException {
+		return await(divideAsync(a, b, timeout));
+	}
+	
+	/**
+	 * Divides two numbers without blocking. Division by zero completes the
+	 * future with an {@link IllegalArgumentException}.
+	 *
+	 * @param a The first operand.
+	 * @param b The second operand.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the quotient.
+	 */
+	public final CompletableFuture<Double> divideAsync(double a, double b, long timeout) {
+		return request(CLIENT_REQUEST_DIVIDE, a, b, timeout);
+	}
+	
+	/**
+	 * Applies a batch of operations in a single round trip. Operations which
+	 * fail, such as divisions by zero, yield NaN without failing the batch.
+	 *
+	 * @param ops The operations, {@link #ADD}, {@link #SUBTRACT},
+	 * {@link #MULTIPLY} or {@link #DIVIDE}.
+	 * @param a The first operands.
+	 * @param b The second operands.
+	 * @param failed Set for the operations which failed, or null.
+	 * @param timeout The timeout in seconds.
+	 * @return The results of the operations.
+	 * @throws ServiceException if the batch failed.
+	 */
+	public final double[] batch(byte[] ops, double[] a, double[] b, boolean[] failed, long timeout) throws ServiceException {
+		return await(batchAsync(ops, a, b, failed, timeout));
+	}
+	
+	/**
+	 * Applies a batch of operations in a single round trip without blocking.
+	 *
+	 * @param ops The operations, {@link #ADD}, {@link #SUBTRACT},
+	 * {@link #MULTIPLY} or {@link #DIVIDE}.
+	 * @param a The first operands.
+	 * @param b The second operands.
+	 * @param failed Set for the operations which failed, or null.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the results of the operations.
+	 * @see #batch(byte[], double[], double[], boolean[], long)
+	 */
+	public final CompletableFuture<double[]> batchAsync(byte[] ops, double[] a, double[] b, boolean[] failed, long timeout) {
+		if (a.length != ops.length || b.length != ops.length || (failed != null && failed.length != ops.length)) {
+			throw new IllegalArgumentException("Operand count mismatch");
+		}
+		var w = window;
+		return w == null ? send(ops, a, b, failed, timeout) : w.submit(() -> send(ops, a, b, failed, timeout)).orTimeout(timeout, SECONDS);
+	}
+	
+	private CompletableFuture<double[]> send(byte[] ops, double[] a, double[] b, boolean[] failed, long timeout) {
+		final var future = new CompletableFuture<double[]>();
 		try{
-			return divide(a, b).get(timeout, SECONDS);
-		}catch(Exception e){
-			throw new ServiceException(e);
+			var request = Message.request(CLIENT_REQUEST_BATCH);
+			request.out().writeBytes(ops);
+			request.out().writeBytes(PackedArrays.pack(a));
+			request.out().writeBytes(PackedArrays.pack(b));
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> {
+						var results = PackedArrays.unpack(response.in().readBytes());
+						var status = response.in().readBytes();
+						if (failed != null) {
+							for (int i = 0; i < status.length; i++) failed[i] = status[i] != SERVICE_RESPONSE_VALID_INPUT;
+						}
+						future.complete(results);
+					},
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
 		}
+	
+		return future.orTimeout(timeout, SECONDS);
 	}
-		
-	private Future<Double> divide(double a, double b) throws IOException {
+	
+	private CompletableFuture<Double> request(byte code, double a, double b, long timeout) {
+		var w = window;
+		return w == null ? send(code, a, b, timeout) : w.submit(() -> send(code, a, b, timeout)).orTimeout(timeout, SECONDS);
+	}
+	
+	// correlated with its response by the session
+	private CompletableFuture<Double> send(byte code, double a, double b, long timeout) {
 		final var future = new CompletableFuture<Double>();
-		var request = Message.request(CLIENT_REQUEST_DIVIDE);
-		request.out().writeDouble(a);
-		request.out().writeDouble(b);
-		request(
-			request, 
-			new ResponseAdapter(
-				SERVICE_RESPONSE_VALID_INPUT, 
-				response -> {
-					var result = response.in().readDouble();
-					future.complete(result);
-				},
-				error -> future.completeExceptionally(new IOException(error))
-			),
-			new ResponseAdapter(
-				SERVICE_RESPONSE_INVALID_INPUT, 
-				response -> {
-					var result = response.in().readUTF();
-					future.completeExceptionally(new IllegalArgumentException(result));
-				},
-				error -> future.completeExceptionally(new IOException(error))
-			)
-		); 
-	
-		return future;
+		try{
+			var request = Message.request(code);
+			request.out().writeDouble(a);
+			request.out().writeDouble(b);
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> {
+						var result = response.in().readDouble();
+						future.complete(result);
+					},
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		// timed out by the shared delayer of CompletableFuture, no thread waits
+		return future.orTimeout(timeout, SECONDS);
 	}
  }
@@ -0,0 +1,274 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles arithmetic expressions into evaluation plans.
+ *
+ * <p>Expressions are made of numbers, variables, the operators
+ * <code>+ - * / ^</code>, parentheses and the functions <code>abs, sqrt,
+ * exp, log, sin, cos</code>. Constant subexpressions are folded at compile
+ * time, and variables are numbered in order of first appearance. Nesting,
+ * whether of parentheses, functions, signs or powers, is limited to
+ * {@link #MAX_NESTING} levels so that parsing cannot exhaust the stack.
+ *
+ * <pre>
+ * expression := term (('+' | '-') term)*
+ * term       := unary (('*' | '/') unary)*
+ * unary      := ('-' | '+') unary | power
+ * power      := primary ('^' unary)?
+ * primary    := number | variable | function '(' expression ')' | '(' expression ')'
+ * </pre>
+ *
+ * @author Michael Sargent
+ */
+final class ExpressionParser {
+	/** The maximum nesting of an expression. */
+	static final int MAX_NESTING = 256;
+	private static final String[] FUNCTIONS = {"abs", "sqrt", "exp", "log", "sin", "cos"};
+	
+	private final String s;
+	private int pos;
+	private int nesting;
+	private final List<String> variables = new ArrayList<>();
+	private final List<Double> constants = new ArrayList<>();
+	// postfix code: opcode and argument per instruction
+	private byte[] code = new byte[16];
+	private int[] args = new int[16];
+	private int length;
+	private int depth;
+	private int maxDepth;
+	
+	private ExpressionParser(String s) {
+		this.s = s;
+	}
+	
+	/**
+	 * Compiles an expression.
+	 *
+	 * @param expression The expression.
+	 * @param handle The handle of the plan.
+	 * @return The plan of the expression.
+	 * @throws IllegalArgumentException if the expression is invalid.
+	 */
+	static Plan compile(String expression, long handle) {
+		var parser = new ExpressionParser(expression);
+		parser.expression();
+		parser.skip();
+		if (parser.pos < expression.length()) throw parser.error("Unexpected '" + expression.charAt(parser.pos) + "'");
+		
+		var constants = new double[parser.constants.size()];
+		for (int i = 0; i < constants.length; i++) constants[i] = parser.constants.get(i);
+		return new Plan(
+			handle, 
+			expression, 
+			parser.variables.toArray(new String[0]), 
+			Arrays.copyOf(parser.code, parser.length), 
+			Arrays.copyOf(parser.args, parser.length), 
+			constants, 
+			parser.maxDepth
+		);
+	}
+	
+	private void expression() {
+		term();
+		for (;;) {
+			if (accept('+')) {
+				term();
+				binary(Plan.ADD);
+			} else if (accept('-')) {
+				term();
+				binary(Plan.SUB);
+			} else {
+				return;
+			}
+		}
+	}
+	
+	private void term() {
+		unary();
+		for (;;) {
+			if (accept('*')) {
+				unary();
+				binary(Plan.MUL);
+			} else if (accept('/')) {
+				unary();
+				binary(Plan.DIV);
+			} else {
+				return;
+			}
+		}
+	}
+	
+	// every nested construct recurses through here
+	private void unary() {
+		if (++nesting > MAX_NESTING) throw error("Expression nested too deeply");
+		if (accept('-')) {
+			unary();
+			unary(Plan.NEG);
+		} else if (accept('+')) {
+			unary();
+		} else {
+			power();
+		}
+		nesting--;
+	}
+	
+	private void power() {
+		primary();
+		// right associative
+		if (accept('^')) {
+			unary();
+			binary(Plan.POW);
+		}
+	}
+	
+	private void primary() {
+		skip();
+		if (pos == s.length()) throw error("Unexpected end");
+		var c = s.charAt(pos);
+		if (accept('(')) {
+			expression();
+			expect(')');
+		} else if (Character.isDigit(c) || c == '.') {
+			constant(number());
+		} else if (Character.isLetter(c) || c == '_') {
+			var name = identifier();
+			var f = function(name);
+			if (f >= 0 && accept('(')) {
+				expression();
+				expect(')');
+				unary((byte)(Plan.ABS + f));
+			} else {
+				var slot = variables.indexOf(name);
+				if (slot < 0) {
+					slot = variables.size();
+					variables.add(name);
+				}
+				emit(Plan.VAR, slot, 1);
+			}
+		} else {
+			throw error("Unexpected '" + c + "'");
+		}
+	}
+	
+	private double number() {
+		var start = pos;
+		while (pos < s.length() && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.')) pos++;
+		if (pos < s.length() && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+			pos++;
+			if (pos < s.length() && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) pos++;
+			while (pos < s.length() && Character.isDigit(s.charAt(pos))) pos++;
+		}
+		try{
+			return Double.parseDouble(s.substring(start, pos));
+		}catch(NumberFormatException e){
+			pos = start;
+			throw error("Invalid number");
+		}
+	}
+	
+	private String identifier() {
+		var start = pos;
+		while (pos < s.length() && (Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '_')) pos++;
+		return s.substring(start, pos);
+	}
+	
+	private static int function(String name) {
+		for (int i = 0; i < FUNCTIONS.length; i++) {
+			if (FUNCTIONS[i].equals(name)) return i;
+		}
+		return -1;
+	}
+	
+	// folds constant operands
+	private void binary(byte op) {
+		if (length >= 2 && code[length - 1] == Plan.CONST && code[length - 2] == Plan.CONST) {
+			var b = constants.get(args[length - 1]);
+			var a = constants.get(args[length - 2]);
+			length -= 2;
+			depth -= 2;
+			constant(Plan.apply(op, a, b));
+		} else {
+			emit(op, 0, -1);
+		}
+	}
+	
+	private void unary(byte op) {
+		if (length >= 1 && code[length - 1] == Plan.CONST) {
+			var a = constants.get(args[length - 1]);
+			length--;
+			depth--;
+			constant(Plan.apply(op, a, 0));
+		} else {
+			emit(op, 0, 0);
+		}
+	}
+	
+	private void constant(double value) {
+		var i = constants.indexOf(value);
+		if (i < 0) {
+			i = constants.size();
+			constants.add(value);
+		}
+		emit(Plan.CONST, i, 1);
+	}
+	
+	private void emit(byte op, int arg, int effect) {
+		if (length == code.length) {
+			code = Arrays.copyOf(code, length * 2);
+			args = Arrays.copyOf(args, length * 2);
+		}
+		code[length] = op;
+		args[length++] = arg;
+		depth += effect;
+		maxDepth = Math.max(maxDepth, depth);
+	}
+	
+	private void skip() {
+		while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+	}
+	
+	private boolean accept(char c) {
+		skip();
+		if (pos < s.length() && s.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+	
+	private void expect(char c) {
+		if (!accept(c)) throw error("Expected '" + c + "'");
+	}
+	
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + pos + " in: " + s);
+	}
+}
@@ -0,0 +1,67 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import rs.igram.kiribi.service.Descriptor;
+import rs.igram.kiribi.service.AbstractService;
+import rs.igram.kiribi.service.Scope;
+import rs.igram.kiribi.service.ServiceAddress;
+import rs.igram.kiribi.service.Session;
+
+/**
+ * Service evaluating registered expressions, their compiled plans cached
+ * across its sessions.
+ *
+ * @author Michael Sargent
+ * @see ExpressionSession
+ */
+public class ExpressionService extends AbstractService {
+	/** The default number of cached plans. */
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	final PlanCache cache;
+	
+	public ExpressionService(ServiceAddress address, Scope scope) {
+		this(address, scope, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates an expression service.
+	 *
+	 * @param address The address of the service.
+	 * @param scope The scope of the service.
+	 * @param capacity The maximum number of cached plans, the least recently
+	 * used being evicted beyond it.
+	 */
+	public ExpressionService(ServiceAddress address, Scope scope, int capacity) {
+		super(address, scope, new  Descriptor.Description("Expression"));
+		cache = new PlanCache(capacity);
+	}
+			
+	@Override
+	public Session newSession() {
+		return new ExpressionSession(this);
+	}
+}
@@ -0,0 +1,365 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import rs.igram.kiribi.examples.services.common.AsyncSession;
+import rs.igram.kiribi.examples.services.common.PackedArrays;
+import rs.igram.kiribi.service.Message;
+import rs.igram.kiribi.service.Scope;
+import rs.igram.kiribi.service.ServiceAddress;
+import rs.igram.kiribi.service.ServiceException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Session evaluating expressions registered once and compiled by the
+ * service, so that evaluations carry only a handle and the bindings of the
+ * variables and involve no parsing.
+ *
+ * @author Michael Sargent
+ */
+public class ExpressionSession extends AsyncSession {
+	private static final byte CLIENT_REQUEST_REGISTER	 	 = 1;
+	private static final byte CLIENT_REQUEST_EVALUATE  	 = 2;
+	private static final byte CLIENT_REQUEST_EVALUATE_BATCH = 3;
+	private static final byte SERVICE_RESPONSE_VALID_INPUT = 1;
+	private static final byte SERVICE_RESPONSE_INVALID_INPUT = 2;
+	private static final byte SERVICE_RESPONSE_UNKNOWN_HANDLE = 3;
+	
+	/** The maximum number of rows of bindings evaluated in a single request. */
+	public static final int MAX_ROWS = 1 << 20;
+	
+	private final PlanCache cache;
+
+	protected ExpressionSession(ExpressionService service) {
+		super(service);
+		cache = service.cache;
+	}
+		
+	protected ExpressionSession(Scope scope, ServiceAddress address) {
+		super(scope, address);
+		cache = null;
+	}
+
+	// register response handlers
+	protected void configure() {
+		handle(CLIENT_REQUEST_REGISTER, this::register);
+		handle(CLIENT_REQUEST_EVALUATE, this::evaluate);
+		handle(CLIENT_REQUEST_EVALUATE_BATCH, this::evaluateBatch);
+	}
+	
+	// ---- responses ----
+	// expression, answered by handle | variables
+	Message register(Message request) throws IOException {
+		var expression = request.in().readUTF();
+		Plan plan;
+		try{
+			plan = cache.register(expression);
+		}catch(IllegalArgumentException e){
+			System.out.println("PROCESSED REQUEST - INVALID EXPRESSION: " + expression);
+			var response = request.respond(SERVICE_RESPONSE_INVALID_INPUT);
+			response.out().writeUTF(e.getMessage());
+			return response;
+		}
+		System.out.println("PROCESSED REQUEST - REGISTERED: " + expression);
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeLong(plan.handle);
+		response.out().writeInt(plan.variables.length);
+		for (var variable : plan.variables) response.out().writeUTF(variable);
+		
+		return response;
+	}
+	
+	// handle | bindings as a packed array, answered by result
+	Message evaluate(Message request) throws IOException {
+		var plan = cache.get(request.in().readLong());
+		if (plan == null) return request.respond(SERVICE_RESPONSE_UNKNOWN_HANDLE);
+		
+		double[] bindings;
+		try{
+			bindings = PackedArrays.unpack(request.in().readBytes());
+			if (bindings.length != plan.variables.length) throw new IllegalArgumentException("Binding count mismatch");
+		}catch(IllegalArgumentException e){
+			return rejected(request, e);
+		}
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeDouble(plan.evaluate(bindings));
+		
+		return response;
+	}
+	
+	// handle | rows | bindings as a packed array, answered by results
+	Message evaluateBatch(Message request) throws IOException {
+		var plan = cache.get(request.in().readLong());
+		if (plan == null) return request.respond(SERVICE_RESPONSE_UNKNOWN_HANDLE);
+		
+		var rows = request.in().readInt();
+		double[] bindings;
+		try{
+			bindings = PackedArrays.unpack(request.in().readBytes());
+			// bounded as expressions without variables take no bindings
+			if (rows < 0 || rows > MAX_ROWS) throw new IllegalArgumentException("Invalid row count: " + rows);
+			if (bindings.length != (long)rows * plan.variables.length) throw new IllegalArgumentException("Binding count mismatch");
+		}catch(IllegalArgumentException e){
+			return rejected(request, e);
+		}
+		System.out.println("PROCESSED REQUEST - EVALUATED BATCH: " + rows);
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeBytes(PackedArrays.pack(plan.evaluate(bindings, rows)));
+		
+		return response;
+	}
+	
+	private static Message rejected(Message request, IllegalArgumentException e) throws IOException {
+		var response = request.respond(SERVICE_RESPONSE_INVALID_INPUT);
+		response.out().writeUTF(e.getMessage());
+		return response;
+	}
+		
+	// ---- requests ----
+	/**
+	 * Registers an expression with the service.
+	 *
+	 * @param expression The expression, such as <code>a * x ^ 2 + b</code>.
+	 * @param timeout The timeout in seconds.
+	 * @return The registered expression.
+	 * @throws ServiceException if the registration failed, notably with an
+	 * {@link IllegalArgumentException} if the expression is invalid.
+	 */
+	public final Expression register(String expression, long timeout) throws ServiceException {
+		return await(registerAsync(expression, timeout));
+	}
+	
+	/**
+	 * Registers an expression with the service without blocking.
+	 *
+	 * @param expression The expression.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the registered expression.
+	 */
+	public final CompletableFuture<Expression> registerAsync(String expression, long timeout) {
+		final var future = new CompletableFuture<Expression>();
+		try{
+			var request = Message.request(CLIENT_REQUEST_REGISTER);
+			request.out().writeUTF(expression);
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> {
+						var handle = response.in().readLong();
+						var variables = new String[response.in().readInt()];
+						for (int i = 0; i < variables.length; i++) variables[i] = response.in().readUTF();
+						future.complete(new Expression(expression, handle, variables));
+					},
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		return future.orTimeout(timeout, SECONDS);
+	}
+	
+	/**
+	 * Evaluates a registered expression.
+	 *
+	 * @param expression The expression.
+	 * @param bindings The values of its variables, in the order of
+	 * {@link Expression#variables()}.
+	 * @param timeout The timeout in seconds.
+	 * @return The value of the expression.
+	 * @throws ServiceException if the evaluation failed.
+	 */
+	public final double evaluate(Expression expression, double[] bindings, long timeout) throws ServiceException {
+		return await(evaluateAsync(expression, bindings, timeout));
+	}
+	
+	/**
+	 * Evaluates a registered expression without blocking.
+	 *
+	 * @param expression The expression.
+	 * @param bindings The values of its variables, in the order of
+	 * {@link Expression#variables()}.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the value of the expression.
+	 */
+	public final CompletableFuture<Double> evaluateAsync(Expression expression, double[] bindings, long timeout) {
+		if (bindings.length != expression.variables.length) throw new IllegalArgumentException("Binding count mismatch");
+		var packed = PackedArrays.pack(bindings);
+		return evaluated(expression, () -> send(expression.handle, packed, timeout), timeout);
+	}
+	
+	/**
+	 * Evaluates a registered expression over rows of bindings in a single
+	 * round trip.
+	 *
+	 * @param expression The expression.
+	 * @param bindings The rows of bindings laid out one after the other.
+	 * @param rows The number of rows, at most {@link #MAX_ROWS}.
+	 * @param timeout The timeout in seconds.
+	 * @return The value of the expression for each row.
+	 * @throws ServiceException if the evaluation failed.
+	 */
+	public final double[] evaluate(Expression expression, double[] bindings, int rows, long timeout) throws ServiceException {
+		return await(evaluateAsync(expression, bindings, rows, timeout));
+	}
+	
+	/**
+	 * Evaluates a registered expression over rows of bindings in a single
+	 * round trip without blocking.
+	 *
+	 * @param expression The expression.
+	 * @param bindings The rows of bindings laid out one after the other.
+	 * @param rows The number of rows, at most {@link #MAX_ROWS}.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the value of the expression for each
+	 * row.
+	 * @see #evaluate(Expression, double[], int, long)
+	 */
+	public final CompletableFuture<double[]> evaluateAsync(Expression expression, double[] bindings, int rows, long timeout) {
+		if (rows < 0 || rows > MAX_ROWS) throw new IllegalArgumentException("Invalid row count: " + rows);
+		if (bindings.length != (long)rows * expression.variables.length) throw new IllegalArgumentException("Binding count mismatch");
+		var packed = PackedArrays.pack(bindings);
+		return evaluated(expression, () -> send(expression.handle, rows, packed, timeout), timeout);
+	}
+	
+	// registers the expression again if its plan was evicted, then retries once
+	private <T> CompletableFuture<T> evaluated(Expression expression, Supplier<CompletableFuture<T>> request, long timeout) {
+		return request.get()
+			.handle((result, t) -> {
+				if (t == null) return CompletableFuture.completedFuture(result);
+				var cause = t instanceof CompletionException ? t.getCause() : t;
+				if (!(cause instanceof UnknownHandleException)) return CompletableFuture.<T>failedFuture(cause);
+				return registerAsync(expression.expression, timeout)
+					.thenCompose(registered -> {
+						expression.handle = registered.handle;
+						return request.get();
+					});
+			})
+			.thenCompose(Function.identity());
+	}
+	
+	private CompletableFuture<Double> send(long handle, byte[] bindings, long timeout) {
+		final var future = new CompletableFuture<Double>();
+		try{
+			var request = Message.request(CLIENT_REQUEST_EVALUATE);
+			request.out().writeLong(handle);
+			request.out().writeBytes(bindings);
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> future.complete(response.in().readDouble()),
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future),
+				unknown(future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		return future.orTimeout(timeout, SECONDS);
+	}
+	
+	private CompletableFuture<double[]> send(long handle, int rows, byte[] bindings, long timeout) {
+		final var future = new CompletableFuture<double[]>();
+		try{
+			var request = Message.request(CLIENT_REQUEST_EVALUATE_BATCH);
+			request.out().writeLong(handle);
+			request.out().writeInt(rows);
+			request.out().writeBytes(bindings);
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> future.complete(PackedArrays.unpack(response.in().readBytes())),
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future),
+				unknown(future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		return future.orTimeout(timeout, SECONDS);
+	}
+	
+	private ResponseAdapter unknown(CompletableFuture<?> future) {
+		return new ResponseAdapter(
+			SERVICE_RESPONSE_UNKNOWN_HANDLE, 
+			response -> future.completeExceptionally(new UnknownHandleException()),
+			error -> future.completeExceptionally(new IOException(error))
+		);
+	}
+	
+	/**
+	 * An expression registered with an expression service.
+	 */
+	public static final class Expression {
+		final String expression;
+		final String[] variables;
+		// replaced when registered again after an eviction
+		volatile long handle;
+		
+		Expression(String expression, long handle, String[] variables) {
+			this.expression = expression;
+			this.handle = handle;
+			this.variables = variables;
+		}
+		
+		/**
+		 * Returns the variables of this expression in binding order, that is
+		 * in order of first appearance.
+		 *
+		 * @return The variables of this expression.
+		 */
+		public String[] variables() {
+			return variables.clone();
+		}
+		
+		@Override
+		public String toString() {
+			return expression;
+		}
+	}
+	
+	// the service no longer holds the plan of a handle
+	private static final class UnknownHandleException extends IllegalStateException {
+		UnknownHandleException() {
+			super("Unknown handle");
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+/**
+ * Compiled evaluation plan of an expression.
+ *
+ * <p>A plan is postfix code run over a stack sized at compile time, so an
+ * evaluation neither parses nor allocates beyond its stack, and a batch of
+ * evaluations shares a single stack. Plans are immutable and can be
+ * evaluated concurrently.
+ *
+ * @author Michael Sargent
+ * @see ExpressionParser
+ */
+final class Plan {
+	static final byte CONST	= 0;
+	static final byte VAR	= 1;
+	static final byte ADD	= 2;
+	static final byte SUB	= 3;
+	static final byte MUL	= 4;
+	static final byte DIV	= 5;
+	static final byte POW	= 6;
+	static final byte NEG	= 7;
+	// functions in the order of ExpressionParser.FUNCTIONS
+	static final byte ABS	= 8;
+	static final byte SQRT	= 9;
+	static final byte EXP	= 10;
+	static final byte LOG	= 11;
+	static final byte SIN	= 12;
+	static final byte COS	= 13;
+	
+	final long handle;
+	final String expression;
+	final String[] variables;
+	private final byte[] code;
+	private final int[] args;
+	private final double[] constants;
+	private final int depth;
+	
+	Plan(long handle, String expression, String[] variables, byte[] code, int[] args, double[] constants, int depth) {
+		this.handle = handle;
+		this.expression = expression;
+		this.variables = variables;
+		this.code = code;
+		this.args = args;
+		this.constants = constants;
+		this.depth = depth;
+	}
+	
+	// number of instructions
+	int length() {
+		return code.length;
+	}
+	
+	double evaluate(double[] bindings) {
+		if (bindings.length != variables.length) throw new IllegalArgumentException("Expected " + variables.length + " bindings");
+		return evaluate(bindings, 0, new double[depth]);
+	}
+	
+	// rows of bindings laid out one after the other
+	double[] evaluate(double[] bindings, int rows) {
+		if (bindings.length != rows * variables.length) throw new IllegalArgumentException("Expected " + rows * variables.length + " bindings");
+		var results = new double[rows];
+		var stack = new double[depth];
+		for (int i = 0, offset = 0; i < rows; i++, offset += variables.length) {
+			results[i] = evaluate(bindings, offset, stack);
+		}
+		return results;
+	}
+	
+	private double evaluate(double[] bindings, int offset, double[] stack) {
+		var sp = 0;
+		for (int i = 0; i < code.length; i++) {
+			var op = code[i];
+			switch(op){
+			case CONST:
+				stack[sp++] = constants[args[i]];
+				break;
+			case VAR:
+				stack[sp++] = bindings[offset + args[i]];
+				break;
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case POW:
+				sp--;
+				stack[sp - 1] = apply(op, stack[sp - 1], stack[sp]);
+				break;
+			default:
+				stack[sp - 1] = apply(op, stack[sp - 1], 0);
+			}
+		}
+		return stack[0];
+	}
+	
+	static double apply(byte op, double a, double b) {
+		switch(op){
+		case ADD:	return a + b;
+		case SUB:	return a - b;
+		case MUL:	return a * b;
+		case DIV:	return a / b;
+		case POW:	return Math.pow(a, b);
+		case NEG:	return -a;
+		case ABS:	return Math.abs(a);
+		case SQRT:	return Math.sqrt(a);
+		case EXP:	return Math.exp(a);
+		case LOG:	return Math.log(a);
+		case SIN:	return Math.sin(a);
+		case COS:	return Math.cos(a);
+		default:
+			throw new IllegalStateException("Invalid opcode: " + op);
+		}
+	}
+}
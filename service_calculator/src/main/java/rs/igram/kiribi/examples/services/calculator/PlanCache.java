@@ -0,0 +1,100 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the plans of the expressions registered with a service,
+ * shared by its sessions.
+ *
+ * <p>Plans are identified by a handle, the same expression always getting
+ * the plan it already has. The least recently used plan is evicted once the
+ * cache is full, its handle becoming unknown.
+ *
+ * @author Michael Sargent
+ */
+final class PlanCache {
+	private final Map<String,Long> handles = new HashMap<>();
+	private final Map<Long,Plan> plans;
+	private long next;
+	private long hits;
+	private long misses;
+	private long evictions;
+	
+	PlanCache(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		plans = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,Plan> eldest) {
+				if (size() <= capacity) return false;
+				handles.remove(eldest.getValue().expression);
+				evictions++;
+				return true;
+			}
+		};
+	}
+	
+	// compiles the expression unless cached, registration being rare
+	synchronized Plan register(String expression) {
+		var handle = handles.get(expression);
+		if (handle != null) return plans.get(handle);
+		
+		var plan = ExpressionParser.compile(expression, next + 1);
+		next++;
+		handles.put(expression, plan.handle);
+		plans.put(plan.handle, plan);
+		return plan;
+	}
+	
+	// returns null if the handle is unknown
+	synchronized Plan get(long handle) {
+		var plan = plans.get(handle);
+		if (plan == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return plan;
+	}
+	
+	synchronized int size() {
+		return plans.size();
+	}
+	
+	synchronized long hits() {
+		return hits;
+	}
+	
+	synchronized long misses() {
+		return misses;
+	}
+	
+	synchronized long evictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,247 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Window bounding the requests a session has in flight.
+ *
+ * <p>A request takes a credit when sent and returns it once its response,
+ * error or timeout completes it. While the window is full requests are
+ * queued in order and sent as credits are returned, so that a fast producer
+ * is held back to the rate the service answers at without the caller ever
+ * blocking. The window can be resized while requests are in flight.
+ *
+ * <p>Queued requests are sent by the thread returning a credit, typically
+ * the one completing a response, but never from within a request already
+ * being sent by that thread, so that requests failing immediately cannot
+ * recurse.
+ *
+ * @author Michael Sargent
+ */
+public final class RequestWindow {
+	private final ArrayDeque<Pending<?>> queue = new ArrayDeque<>();
+	private int size;
+	private int inFlight;
+	private int maxQueued;
+	private boolean draining;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	
+	/**
+	 * @param size The maximum number of requests in flight.
+	 */
+	public RequestWindow(int size) {
+		if (size < 1) throw new IllegalArgumentException("Invalid window: " + size);
+		this.size = size;
+	}
+	
+	/**
+	 * Sends a request once a credit is available, queueing it while the
+	 * window is full. A queued request whose future is completed first, for
+	 * instance by a timeout or cancellation, is never sent.
+	 *
+	 * @param <T> The type of the result.
+	 * @param request Sends the request, returning a future of its result.
+	 * @return The future of the result.
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+		var pending = new Pending<T>(request);
+		synchronized(this){
+			if (!queue.isEmpty() || inFlight >= size) {
+				queue.add(pending);
+				maxQueued = Math.max(maxQueued, queue.size());
+				return pending.result;
+			}
+			inFlight++;
+		}
+		send(pending);
+		return pending.result;
+	}
+	
+	private <T> void send(Pending<T> pending) {
+		requests.increment();
+		CompletableFuture<T> future;
+		try{
+			future = pending.request.get();
+		}catch(RuntimeException e){
+			release();
+			pending.result.completeExceptionally(e);
+			drain();
+			return;
+		}
+		future.whenComplete((r, e) -> {
+			// the credit is returned before the caller sees the result
+			release();
+			if (e == null) {
+				pending.result.complete(r);
+			} else {
+				pending.result.completeExceptionally(e);
+			}
+			drain();
+		});
+	}
+	
+	private synchronized void release() {
+		inFlight--;
+	}
+	
+	// sends queued requests while credits are available
+	private void drain() {
+		synchronized(this){
+			if (draining) return;
+			draining = true;
+		}
+		for (;;) {
+			Pending<?> pending;
+			synchronized(this){
+				pending = inFlight < size ? queue.poll() : null;
+				if (pending == null) {
+					draining = false;
+					return;
+				}
+				// skip requests completed while queued
+				if (pending.result.isDone()) continue;
+				inFlight++;
+			}
+			var wait = System.nanoTime() - pending.queued;
+			waits.increment();
+			waitNanos.add(wait);
+			maxWaitNanos.accumulateAndGet(wait, Math::max);
+			send(pending);
+		}
+	}
+	
+	/**
+	 * Resizes the window. Shrinking it lets the requests in flight complete,
+	 * queued requests waiting until fewer than the new size are in flight.
+	 *
+	 * @param size The maximum number of requests in flight.
+	 */
+	public void resize(int size) {
+		if (size < 1) throw new IllegalArgumentException("Invalid window: " + size);
+		synchronized(this){
+			this.size = size;
+		}
+		drain();
+	}
+	
+	/**
+	 * Returns the maximum number of requests in flight.
+	 *
+	 * @return The window size.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the number of requests in flight.
+	 *
+	 * @return The number of requests in flight.
+	 */
+	public synchronized int inFlight() {
+		return inFlight;
+	}
+	
+	/**
+	 * Returns the number of requests waiting for a credit.
+	 *
+	 * @return The queue depth.
+	 */
+	public synchronized int queued() {
+		return queue.size();
+	}
+	
+	/**
+	 * Returns the largest number of requests which waited for a credit at
+	 * once.
+	 *
+	 * @return The maximum queue depth.
+	 */
+	public synchronized int maxQueued() {
+		return maxQueued;
+	}
+	
+	/**
+	 * Returns the number of requests sent through the window.
+	 *
+	 * @return The number of requests.
+	 */
+	public long requests() {
+		return requests.sum();
+	}
+	
+	/**
+	 * Returns the number of requests which waited for a credit.
+	 *
+	 * @return The number of waits.
+	 */
+	public long waits() {
+		return waits.sum();
+	}
+	
+	/**
+	 * Returns the time spent waiting for credits.
+	 *
+	 * @return The total wait time in nanoseconds.
+	 */
+	public long waitNanos() {
+		return waitNanos.sum();
+	}
+	
+	/**
+	 * Returns the longest wait for a credit.
+	 *
+	 * @return The maximum wait time in nanoseconds.
+	 */
+	public long maxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("window %d, in flight %d, queued %d (max %d), %d requests, %d waits (max %d ns)", 
+			size(), inFlight(), queued(), maxQueued(), requests(), waits(), maxWaitNanos());
+	}
+	
+	// a request and the future handed to its caller
+	private static final class Pending<T> {
+		final Supplier<CompletableFuture<T>> request;
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final long queued = System.nanoTime();
+		
+		Pending(Supplier<CompletableFuture<T>> request) {
+			this.request = request;
+		}
+	}
+}
\ No newline at end of file
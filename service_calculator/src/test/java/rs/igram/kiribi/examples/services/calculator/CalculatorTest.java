@@ -41,6 +41,7 @@ import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -138,6 +139,141 @@ class CalculatorTest {
    	   shutdown();
    }
  	
+   @Test
+   public void testAsync() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   configureEntities(Scope.RESTRICTED);
+   	   var address = admin1.address(ID);
+   	   var client = new CalculatorSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   // many requests in flight from a single thread
+   	   var futures = new ArrayList<CompletableFuture<Double>>();
+   	   for (int i = 0; i < 1000; i++) futures.add(client.addAsync(i, 1.0, 5));
+   	   CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+   	   for (int i = 0; i < 1000; i++) assertEquals(i + 1.0, futures.get(i).get());
+   	   
+   	   // divide by zero
+   	   var e = assertThrows(ExecutionException.class, () -> client.divideAsync(6.0, 0.0, 5).get());
+   	   assertTrue(e.getCause() instanceof IllegalArgumentException);
+   	   
+   	   shutdown();
+   }
+   
+   @Test
+   public void testWindow() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   configureEntities(Scope.RESTRICTED);
+   	   var address = admin1.address(ID);
+   	   var client = new CalculatorSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   // loopback throughput as a function of the window size
+   	   var n = 2000;
+   	   for (var size : new int[]{1, 4, 16, 64, 256}) {
+   	   	   client.setWindow(size);
+   	   	   var window = client.window();
+   	   	   var futures = new ArrayList<CompletableFuture<Double>>(n);
+   	   	   var t = System.nanoTime();
+   	   	   for (int i = 0; i < n; i++) {
+   	   	   	   futures.add(client.addAsync(i, 1.0, 30));
+   	   	   	   assertTrue(window.inFlight() <= size);
+   	   	   }
+   	   	   for (int i = 0; i < n; i++) assertEquals(i + 1.0, futures.get(i).get());
+   	   	   var nanos = System.nanoTime() - t;
+   	   	   System.out.printf("WINDOW %4d: %8.0f requests/s, %s%n", size, n * 1e9 / nanos, window);
+   	   	   // credits are returned before results are completed
+   	   	   assertEquals(0, window.inFlight());
+   	   	   assertEquals(0, window.queued());
+   	   }
+   	   client.setWindow(0);
+   	   assertNull(client.window());
+   	   
+   	   shutdown();
+   }
+   
+   @Test
+   public void testBatch() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   configureEntities(Scope.RESTRICTED);
+   	   var address = admin1.address(ID);
+   	   var client = new CalculatorSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   var ops = new byte[]{
+   	   	   CalculatorSession.ADD, 
+   	   	   CalculatorSession.SUBTRACT, 
+   	   	   CalculatorSession.MULTIPLY, 
+   	   	   CalculatorSession.DIVIDE, 
+   	   	   CalculatorSession.DIVIDE
+   	   };
+   	   var a = new double[]{1.0, 1.0, 2.0, 6.0, 6.0};
+   	   var b = new double[]{1.0, 1.0, 3.0, 2.0, 0.0};
+   	   var failed = new boolean[ops.length];
+   	   var results = client.batch(ops, a, b, failed, 5);
+   	   
+   	   // division by zero fails alone
+   	   assertArrayEquals(new double[]{2.0, 0.0, 6.0, 3.0, Double.NaN}, results);
+   	   assertArrayEquals(new boolean[]{false, false, false, false, true}, failed);
+   	   
+   	   // large batches in a single round trip
+   	   var n = 100000;
+   	   ops = new byte[n];
+   	   a = new double[n];
+   	   b = new double[n];
+   	   Arrays.fill(ops, CalculatorSession.MULTIPLY);
+   	   for (int i = 0; i < n; i++) {
+   	   	   a[i] = i;
+   	   	   b[i] = 2.0;
+   	   }
+   	   results = client.batch(ops, a, b, null, 5);
+   	   for (int i = 0; i < n; i++) assertEquals(2.0 * i, results[i]);
+   	   
+   	   shutdown();
+   }
+   
+   @Test
+   public void testExpression() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   // room for two plans
+   	   configureEntities(address -> new ExpressionService(address, Scope.RESTRICTED, 2));
+   	   var address = admin1.address(ID);
+   	   var client = new ExpressionSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   var quadratic = client.register("a * x ^ 2 + b", 5);
+   	   assertArrayEquals(new String[]{"a", "x", "b"}, quadratic.variables());
+   	   assertEquals(19.0, client.evaluate(quadratic, new double[]{2.0, 3.0, 1.0}, 5));
+   	   
+   	   // rows of bindings in a single round trip
+   	   var n = 10000;
+   	   var bindings = new double[3 * n];
+   	   for (int i = 0; i < n; i++) {
+   	   	   bindings[3 * i] = 1.0;
+   	   	   bindings[3 * i + 1] = i;
+   	   	   bindings[3 * i + 2] = -1.0;
+   	   }
+   	   var results = client.evaluate(quadratic, bindings, n, 5);
+   	   for (int i = 0; i < n; i++) assertEquals((double)i * i - 1.0, results[i]);
+   	   
+   	   // invalid expression
+   	   var e = assertThrows(ServiceException.class, () -> client.register("(x + 1", 5));
+   	   assertTrue(e.getCause().getCause() instanceof IllegalArgumentException);
+   	   
+   	   // evicted plans are registered again transparently
+   	   var sum = client.register("x + y", 5);
+   	   var product = client.register("x * y", 5);
+   	   assertEquals(19.0, client.evaluate(quadratic, new double[]{2.0, 3.0, 1.0}, 5));
+   	   assertEquals(5.0, client.evaluate(sum, new double[]{2.0, 3.0}, 5));
+   	   assertEquals(6.0, client.evaluate(product, new double[]{2.0, 3.0}, 5));
+   	   
+   	   shutdown();
+   }
+ 	
    static ServiceAdmin admin(KeyPair pair, int port, InetSocketAddress serverAddress) throws Exception {
 		var address = new Address(pair.getPublic());
 		var socketAddress = new InetSocketAddress(NetworkMonitor.inet(), port);
@@ -165,12 +301,16 @@ class CalculatorTest {
 	}
 	
 	void configureEntities(Scope scope) throws Exception {
+		configureEntities(address -> new CalculatorService(address, scope));
+	}
+	
+	void configureEntities(Function<ServiceAddress, AbstractService> factory) throws Exception {
 		var latch = new CountDownLatch(2);
 		bob = new Entity(true, address(PAIR2).toString(), BOB);
 		alice = new Entity(true, address(PAIR1).toString(), ALICE);
 		
 		var address = admin1.address(ID); 
-		var service = new CalculatorService(address, scope);
+		var service = factory.apply(address);
 		admin1.activate(service);
 		
 		var granted = Set.of(service.getDescriptor());
@@ -0,0 +1,129 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class ExpressionParserTest {
+   @Test
+   public void testPrecedence() throws Exception {
+   	   assertEquals(7.0, evaluate("1 + 2 * 3"));
+   	   assertEquals(9.0, evaluate("(1 + 2) * 3"));
+   	   assertEquals(18.0, evaluate("2 * 3 ^ 2"));
+   	   assertEquals(-1.0, evaluate("1 - 4 / 2"));
+   	   // left associative
+   	   assertEquals(1.0, evaluate("8 / 4 / 2"));
+   	   assertEquals(-4.0, evaluate("1 - 2 - 3"));
+   	   // right associative
+   	   assertEquals(512.0, evaluate("2 ^ 3 ^ 2"));
+   }
+   
+   @Test
+   public void testUnaryMinus() throws Exception {
+   	   // powers bind tighter than signs
+   	   assertEquals(-4.0, evaluate("-2 ^ 2"));
+   	   assertEquals(4.0, evaluate("(-2) ^ 2"));
+   	   assertEquals(0.5, evaluate("2 ^ -1"));
+   	   assertEquals(-9.0, evaluate("-x ^ 2", 3.0));
+   	   assertEquals(3.0, evaluate("--x", 3.0));
+   	   assertEquals(-3.0, evaluate("+-x", 3.0));
+   	   assertEquals(5.0, evaluate("2 - -3"));
+   }
+   
+   @Test
+   public void testVariables() throws Exception {
+   	   var plan = ExpressionParser.compile("b * a + b", 1);
+   	   // numbered by first appearance
+   	   assertEquals("b", plan.variables[0]);
+   	   assertEquals("a", plan.variables[1]);
+   	   assertEquals(2, plan.variables.length);
+   	   assertEquals(8.0, plan.evaluate(new double[]{2.0, 3.0}));
+   	   assertEquals(1.0, evaluate("x_1 / x2", 2.0, 2.0));
+   }
+   
+   @Test
+   public void testConstantFolding() throws Exception {
+   	   // x, folded constant, multiplication
+   	   var plan = ExpressionParser.compile("x * (2 * 3 + 1)", 1);
+   	   assertEquals(3, plan.length());
+   	   assertEquals(14.0, plan.evaluate(new double[]{2.0}));
+   	   
+   	   plan = ExpressionParser.compile("sqrt(16) + -2 ^ 2", 1);
+   	   assertEquals(1, plan.length());
+   	   assertEquals(0.0, plan.evaluate(new double[0]));
+   	   
+   	   // nothing to fold across a variable
+   	   plan = ExpressionParser.compile("1 + x + 2", 1);
+   	   assertEquals(5, plan.length());
+   }
+   
+   @Test
+   public void testFunctions() throws Exception {
+   	   assertEquals(2.0, evaluate("abs(-2)"));
+   	   assertEquals(3.0, evaluate("sqrt(x)", 9.0));
+   	   assertEquals(1.0, evaluate("exp(0)"));
+   	   assertEquals(0.0, evaluate("log(1)"));
+   	   assertEquals(0.0, evaluate("sin(0)"));
+   	   assertEquals(1.0, evaluate("cos(0)"));
+   	   assertEquals(2.0, evaluate("sqrt(abs(-16)) / 2"));
+   	   assertEquals(1e-3, evaluate("1e-3"));
+   	   // a function name without arguments is a variable
+   	   assertEquals(4.0, evaluate("sqrt * 2", 2.0));
+   }
+   
+   @Test
+   public void testInvalid() throws Exception {
+   	   for (var expression : new String[]{"", "1 +", "(1", "1)", "x y", "1.2.3", "sqrt(1, 2)", "abs()", "2 $ 3"}) {
+   	   	   assertThrows(IllegalArgumentException.class, () -> ExpressionParser.compile(expression, 1));
+   	   }
+   }
+   
+   @Test
+   public void testNesting() throws Exception {
+   	   assertEquals(1.0, evaluate(nested("(", "1", ")", ExpressionParser.MAX_NESTING - 1)));
+   	   
+   	   // rejected rather than overflowing the stack
+   	   var e = assertThrows(IllegalArgumentException.class, () -> ExpressionParser.compile(nested("(", "1", ")", 20000), 1));
+   	   assertTrue(e.getMessage().startsWith("Expression nested too deeply"));
+   	   assertThrows(IllegalArgumentException.class, () -> ExpressionParser.compile(nested("-", "1", "", 20000), 1));
+   	   assertThrows(IllegalArgumentException.class, () -> ExpressionParser.compile(nested("sqrt(", "1", ")", 20000), 1));
+   	   assertThrows(IllegalArgumentException.class, () -> ExpressionParser.compile(nested("2^", "1", "", 20000), 1));
+   }
+   
+   static double evaluate(String expression, double... bindings) {
+   	   return ExpressionParser.compile(expression, 1).evaluate(bindings);
+   }
+   
+   static String nested(String open, String inner, String close, int n) {
+   	   return open.repeat(n) + inner + close.repeat(n);
+   }
+}
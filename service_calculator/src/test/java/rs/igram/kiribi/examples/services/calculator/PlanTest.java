@@ -0,0 +1,86 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.calculator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class PlanTest {
+   @Test
+   public void testEvaluate() throws Exception {
+   	   var plan = ExpressionParser.compile("a * x ^ 2 + b", 1);
+   	   assertEquals(19.0, plan.evaluate(new double[]{2.0, 3.0, 1.0}));
+   	   // arithmetic follows IEEE 754
+   	   assertEquals(Double.POSITIVE_INFINITY, ExpressionParser.compile("1 / x", 1).evaluate(new double[]{0.0}));
+   	   assertTrue(Double.isNaN(ExpressionParser.compile("sqrt(x)", 1).evaluate(new double[]{-1.0})));
+   }
+   
+   @Test
+   public void testBatch() throws Exception {
+   	   var plan = ExpressionParser.compile("x * y - 1", 1);
+   	   var results = plan.evaluate(new double[]{1.0, 2.0, 3.0, 4.0, 5.0, 6.0}, 3);
+   	   assertArrayEquals(new double[]{1.0, 11.0, 29.0}, results);
+   	   assertArrayEquals(new double[0], plan.evaluate(new double[0], 0));
+   	   
+   	   // no variables, no bindings
+   	   plan = ExpressionParser.compile("2 * 3", 1);
+   	   assertArrayEquals(new double[]{6.0, 6.0}, plan.evaluate(new double[0], 2));
+   }
+   
+   @Test
+   public void testArity() throws Exception {
+   	   var plan = ExpressionParser.compile("x + y", 1);
+   	   assertThrows(IllegalArgumentException.class, () -> plan.evaluate(new double[]{1.0}));
+   	   assertThrows(IllegalArgumentException.class, () -> plan.evaluate(new double[]{1.0, 2.0, 3.0}));
+   	   assertThrows(IllegalArgumentException.class, () -> plan.evaluate(new double[]{1.0, 2.0, 3.0}, 2));
+   	   assertThrows(IllegalArgumentException.class, () -> plan.evaluate(new double[]{1.0, 2.0}, 2));
+   }
+   
+   @Test
+   public void testCache() throws Exception {
+   	   var cache = new PlanCache(2);
+   	   var a = cache.register("x + 1");
+   	   // the same expression keeps its plan
+   	   assertSame(a, cache.register("x + 1"));
+   	   var b = cache.register("x + 2");
+   	   cache.get(a.handle);
+   	   // evicts the least recently used
+   	   var c = cache.register("x + 3");
+   	   assertSame(a, cache.get(a.handle));
+   	   assertNull(cache.get(b.handle));
+   	   assertSame(c, cache.get(c.handle));
+   	   assertEquals(2, cache.size());
+   	   assertEquals(1, cache.evictions());
+   	   // registered again under a new handle
+   	   assertTrue(cache.register("x + 2").handle > c.handle);
+   	   assertThrows(IllegalArgumentException.class, () -> cache.register("x +"));
+   }
+}
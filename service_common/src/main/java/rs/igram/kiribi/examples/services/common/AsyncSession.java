@@ -0,0 +1,86 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.common;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import rs.igram.kiribi.service.Scope;
+import rs.igram.kiribi.service.Service;
+import rs.igram.kiribi.service.ServiceAddress;
+import rs.igram.kiribi.service.ServiceException;
+import rs.igram.kiribi.service.Session;
+
+/**
+ * Session whose client requests complete futures, with the response
+ * handling shared by the example services.
+ *
+ * @author Michael Sargent
+ */
+public abstract class AsyncSession extends Session {
+	protected AsyncSession(Service service) {
+		super(service);
+	}
+		
+	protected AsyncSession(Scope scope, ServiceAddress address) {
+		super(scope, address);
+	}
+	
+	/**
+	 * Returns an adapter failing a future with an
+	 * {@link IllegalArgumentException} carrying the message of an invalid
+	 * input response.
+	 *
+	 * @param code The code of invalid input responses.
+	 * @param future The future of the request.
+	 * @return The response adapter.
+	 */
+	protected final ResponseAdapter invalid(byte code, CompletableFuture<?> future) {
+		return new ResponseAdapter(
+			code, 
+			response -> {
+				var result = response.in().readUTF();
+				future.completeExceptionally(new IllegalArgumentException(result));
+			},
+			error -> future.completeExceptionally(new IOException(error))
+		);
+	}
+	
+	/**
+	 * Blocks for the result of an asynchronous request.
+	 *
+	 * @param <T> The type of the result.
+	 * @param future The future of the request.
+	 * @return The result.
+	 * @throws ServiceException if the request failed.
+	 */
+	protected static <T> T await(CompletableFuture<T> future) throws ServiceException {
+		try{
+			return future.join();
+		}catch(Exception e){
+			throw new ServiceException(e);
+		}
+	}
+}
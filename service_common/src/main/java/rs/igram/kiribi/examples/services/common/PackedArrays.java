@@ -0,0 +1,66 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs primitive arrays into bytes, so large arrays travel as a single
+ * field of a message instead of one field per element. Unpacking rejects
+ * bytes which are not a whole number of elements.
+ *
+ * @author Michael Sargent
+ */
+public final class PackedArrays {
+	private PackedArrays() {}
+	
+	/**
+	 * Packs an array.
+	 *
+	 * @param a The array.
+	 * @return The packed array.
+	 */
+	public static byte[] pack(double[] a) {
+		var buf = ByteBuffer.allocate(a.length * Double.BYTES);
+		buf.asDoubleBuffer().put(a);
+		return buf.array();
+	}
+	
+	/**
+	 * Unpacks an array.
+	 *
+	 * @param b The packed array.
+	 * @return The array.
+	 * @throws IllegalArgumentException if the length of the packed array is
+	 * not a multiple of the size of an element.
+	 */
+	public static double[] unpack(byte[] b) {
+		if (b.length % Double.BYTES != 0) throw new IllegalArgumentException("Invalid packed array length: " + b.length);
+		var buf = ByteBuffer.wrap(b).asDoubleBuffer();
+		var a = new double[buf.remaining()];
+		buf.get(a);
+		return a;
+	}
+}
@@ -0,0 +1,56 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.common;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class PackedArraysTest {
+   @Test
+   public void testRoundTrip() throws Exception {
+   	   var a = new double[]{0.0, -1.5, Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE};
+   	   var b = PackedArrays.pack(a);
+   	   assertEquals(a.length * Double.BYTES, b.length);
+   	   assertArrayEquals(a, PackedArrays.unpack(b));
+   	   assertArrayEquals(new double[0], PackedArrays.unpack(PackedArrays.pack(new double[0])));
+   }
+   
+   @Test
+   public void testPartialElement() throws Exception {
+   	   // trailing bytes are rejected rather than dropped
+   	   var b = PackedArrays.pack(new double[]{1.0, 2.0});
+   	   for (var length : new int[]{1, 7, 9, 15}) {
+   	   	   assertThrows(IllegalArgumentException.class, () -> PackedArrays.unpack(Arrays.copyOf(b, length)));
+   	   }
+   }
+}
@@ -28,7 +28,6 @@ import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
-import java.util.concurrent.Future;
 
 import rs.igram.kiribi.service.Message;
 import rs.igram.kiribi.service.Scope;
@@ -62,29 +61,40 @@ public class HelloWorldSession extends Session {
 	// ---- requests ----
 	public final String request(long timeout) throws ServiceException {
 		try{
-			return request().get(timeout, SECONDS);
+			return requestAsync(timeout).join();
 		}catch(Exception e){
 			throw new ServiceException(e);
 		}
 	}
-		
-	private Future<String> request() throws IOException {
+	
+	/**
+	 * Requests a greeting without blocking.
+	 *
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the greeting.
+	 */
+	public final CompletableFuture<String> requestAsync(long timeout) {
 		final var future = new CompletableFuture<String>();
-		var request = Message.request(CODE);
-		request(
-			request, 
-			new ResponseAdapter(
-				CODE, 
-				response -> {
-					var result = response.in().readUTF();
-					System.out.println("PROCESSED REQUEST: " + result);
-					future.complete(result);
-				},
-				error -> future.completeExceptionally(new IOException(error))
-			)
-		); 
+		try{
+			var request = Message.request(CODE);
+			request(
+				request, 
+				new ResponseAdapter(
+					CODE, 
+					response -> {
+						var result = response.in().readUTF();
+						System.out.println("PROCESSED REQUEST: " + result);
+						future.complete(result);
+					},
+					error -> future.completeExceptionally(new IOException(error))
+				)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
 	
-		return future;
+		// timed out by the shared delayer of CompletableFuture, no thread waits
+		return future.orTimeout(timeout, SECONDS);
 	}
  		
 	// ---- responses ----
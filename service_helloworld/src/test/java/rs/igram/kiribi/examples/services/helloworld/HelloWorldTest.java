@@ -119,6 +119,11 @@ class HelloWorldTest {
    	   var result = client.request(5);
    	   assertEquals("Hello World!", result);
    	   
+   	   // many requests in flight from a single thread
+   	   var futures = new ArrayList<CompletableFuture<String>>();
+   	   for (int i = 0; i < 100; i++) futures.add(client.requestAsync(5));
+   	   for (var f : futures) assertEquals("Hello World!", f.get());
+   	   
    	   shutdown();
    }
  	
@@ -0,0 +1,307 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.vector;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Numeric kernels over primitive arrays.
+ *
+ * <p>Inputs above a size threshold are split in halves across the common
+ * fork-join pool, smaller ones being processed by the calling thread.
+ * Matrices are row-major, and their product is computed a block of
+ * {@link #BLOCK} rows, columns and inner terms at a time so that the blocks
+ * in use stay in cache, the rows of the result being split across the pool.
+ *
+ * @author Michael Sargent
+ */
+final class Kernels {
+	// operations
+	static final byte ADD		= 1;
+	static final byte SUBTRACT	= 2;
+	static final byte MULTIPLY	= 3;
+	static final byte DIVIDE	= 4;
+	static final byte SUM		= 5;
+	static final byte MIN		= 6;
+	static final byte MAX		= 7;
+	static final byte NORM		= 8;
+	static final byte DOT		= 9;
+	
+	/** Elements processed by a single thread. */
+	static final int THRESHOLD = 1 << 15;
+	/** Multiply-adds of a matrix product computed by a single thread. */
+	static final long MATRIX_THRESHOLD = 1L << 18;
+	/** Side of the blocks of a matrix product. */
+	static final int BLOCK = 64;
+	/** Elements of the largest matrix product, which empty operands do not bound. */
+	static final int MAX_PRODUCT = 1 << 24;
+	
+	private Kernels() {}
+	
+	static boolean elementWise(byte op) {
+		return op >= ADD && op <= DIVIDE;
+	}
+	
+	static boolean reduction(byte op) {
+		return op >= SUM && op <= DOT;
+	}
+	
+	/**
+	 * Applies an element-wise operation.
+	 *
+	 * @param op The operation, {@link #ADD}, {@link #SUBTRACT},
+	 * {@link #MULTIPLY} or {@link #DIVIDE}.
+	 * @param a The first operands.
+	 * @param b The second operands.
+	 * @return The results.
+	 */
+	static double[] apply(byte op, double[] a, double[] b) {
+		if (!elementWise(op)) throw new IllegalArgumentException("Invalid operation: " + op);
+		if (a.length != b.length) throw new IllegalArgumentException("Length mismatch");
+		var c = new double[a.length];
+		if (a.length <= THRESHOLD) {
+			apply(op, a, b, c, 0, a.length);
+		} else {
+			new Apply(op, a, b, c, 0, a.length).invoke();
+		}
+		return c;
+	}
+	
+	/**
+	 * Reduces an array, or a pair of arrays for a dot product. The
+	 * reduction of an empty array is 0 for sums, norms and dot products, and
+	 * infinite for minima and maxima.
+	 *
+	 * @param op The operation, {@link #SUM}, {@link #MIN}, {@link #MAX},
+	 * {@link #NORM} or {@link #DOT}.
+	 * @param a The array.
+	 * @param b The second array of a dot product, ignored otherwise.
+	 * @return The reduction.
+	 */
+	static double reduce(byte op, double[] a, double[] b) {
+		if (!reduction(op)) throw new IllegalArgumentException("Invalid operation: " + op);
+		if (op == DOT && a.length != b.length) throw new IllegalArgumentException("Length mismatch");
+		var r = a.length <= THRESHOLD ? reduce(op, a, b, 0, a.length) : new Reduce(op, a, b, 0, a.length).invoke();
+		// norms are reduced as sums of squares
+		return op == NORM ? Math.sqrt(r) : r;
+	}
+	
+	/**
+	 * Multiplies row-major matrices.
+	 *
+	 * @param a The m by k left matrix.
+	 * @param b The k by n right matrix.
+	 * @param m The rows of the left matrix.
+	 * @param k The columns of the left matrix and rows of the right one.
+	 * @param n The columns of the right matrix.
+	 * @return The m by n product.
+	 * @throws IllegalArgumentException if the dimensions do not match the
+	 * matrices or the product has more than {@link #MAX_PRODUCT} elements.
+	 */
+	static double[] multiply(double[] a, double[] b, int m, int k, int n) {
+		if (m < 0 || k < 0 || n < 0) throw new IllegalArgumentException("Invalid dimensions");
+		if ((long)m * n > MAX_PRODUCT) throw new IllegalArgumentException("Product too large: " + m + "x" + n);
+		if (a.length != (long)m * k || b.length != (long)k * n) throw new IllegalArgumentException("Dimension mismatch");
+		var c = new double[m * n];
+		if ((long)m * k * n <= MATRIX_THRESHOLD) {
+			multiply(a, b, c, k, n, 0, m);
+		} else {
+			new Multiply(a, b, c, k, n, 0, m).invoke();
+		}
+		return c;
+	}
+	
+	// one loop per operation so that each stays simple enough to vectorize
+	private static void apply(byte op, double[] a, double[] b, double[] c, int lo, int hi) {
+		switch(op){
+		case ADD:
+			for (int i = lo; i < hi; i++) c[i] = a[i] + b[i];
+			break;
+		case SUBTRACT:
+			for (int i = lo; i < hi; i++) c[i] = a[i] - b[i];
+			break;
+		case MULTIPLY:
+			for (int i = lo; i < hi; i++) c[i] = a[i] * b[i];
+			break;
+		case DIVIDE:
+			for (int i = lo; i < hi; i++) c[i] = a[i] / b[i];
+			break;
+		}
+	}
+	
+	private static double reduce(byte op, double[] a, double[] b, int lo, int hi) {
+		var r = identity(op);
+		switch(op){
+		case SUM:
+			for (int i = lo; i < hi; i++) r += a[i];
+			break;
+		case MIN:
+			for (int i = lo; i < hi; i++) r = Math.min(r, a[i]);
+			break;
+		case MAX:
+			for (int i = lo; i < hi; i++) r = Math.max(r, a[i]);
+			break;
+		case NORM:
+			for (int i = lo; i < hi; i++) r += a[i] * a[i];
+			break;
+		case DOT:
+			for (int i = lo; i < hi; i++) r += a[i] * b[i];
+			break;
+		}
+		return r;
+	}
+	
+	private static double identity(byte op) {
+		switch(op){
+		case MIN:	return Double.POSITIVE_INFINITY;
+		case MAX:	return Double.NEGATIVE_INFINITY;
+		default:	return 0.0;
+		}
+	}
+	
+	private static double combine(byte op, double x, double y) {
+		switch(op){
+		case MIN:	return Math.min(x, y);
+		case MAX:	return Math.max(x, y);
+		default:	return x + y;
+		}
+	}
+	
+	// rows lo to hi of the product, accumulated block by block
+	private static void multiply(double[] a, double[] b, double[] c, int k, int n, int lo, int hi) {
+		for (int i0 = lo; i0 < hi; i0 += BLOCK) {
+			var i1 = Math.min(i0 + BLOCK, hi);
+			for (int p0 = 0; p0 < k; p0 += BLOCK) {
+				var p1 = Math.min(p0 + BLOCK, k);
+				for (int j0 = 0; j0 < n; j0 += BLOCK) {
+					var j1 = Math.min(j0 + BLOCK, n);
+					for (int i = i0; i < i1; i++) {
+						var ci = i * n;
+						var ai = i * k;
+						for (int p = p0; p < p1; p++) {
+							var x = a[ai + p];
+							var bp = p * n;
+							for (int j = j0; j < j1; j++) c[ci + j] += x * b[bp + j];
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static final class Apply extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final byte op;
+		private final double[] a;
+		private final double[] b;
+		private final double[] c;
+		private final int lo;
+		private final int hi;
+		
+		Apply(byte op, double[] a, double[] b, double[] c, int lo, int hi) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		@Override
+		protected void compute() {
+			if (hi - lo <= THRESHOLD) {
+				apply(op, a, b, c, lo, hi);
+			} else {
+				var mid = (lo + hi) >>> 1;
+				invokeAll(new Apply(op, a, b, c, lo, mid), new Apply(op, a, b, c, mid, hi));
+			}
+		}
+	}
+	
+	private static final class Reduce extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+		
+		private final byte op;
+		private final double[] a;
+		private final double[] b;
+		private final int lo;
+		private final int hi;
+		
+		Reduce(byte op, double[] a, double[] b, int lo, int hi) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		@Override
+		protected Double compute() {
+			if (hi - lo <= THRESHOLD) return reduce(op, a, b, lo, hi);
+			
+			var mid = (lo + hi) >>> 1;
+			var left = new Reduce(op, a, b, lo, mid);
+			left.fork();
+			var right = new Reduce(op, a, b, mid, hi).compute();
+			return combine(op, left.join(), right);
+		}
+	}
+	
+	private static final class Multiply extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final double[] a;
+		private final double[] b;
+		private final double[] c;
+		private final int k;
+		private final int n;
+		private final int lo;
+		private final int hi;
+		
+		Multiply(double[] a, double[] b, double[] c, int k, int n, int lo, int hi) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.k = k;
+			this.n = n;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		@Override
+		protected void compute() {
+			var rows = hi - lo;
+			// split along blocks of rows, each task owning the rows it writes
+			if (rows <= BLOCK || (long)rows * k * n <= MATRIX_THRESHOLD) {
+				multiply(a, b, c, k, n, lo, hi);
+			} else {
+				var mid = lo + (rows / 2 + BLOCK - 1) / BLOCK * BLOCK;
+				invokeAll(new Multiply(a, b, c, k, n, lo, mid), new Multiply(a, b, c, k, n, mid, hi));
+			}
+		}
+	}
+}
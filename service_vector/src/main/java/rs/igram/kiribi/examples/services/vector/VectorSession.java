@@ -0,0 +1,339 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.vector;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import rs.igram.kiribi.examples.services.common.AsyncSession;
+import rs.igram.kiribi.examples.services.common.PackedArrays;
+import rs.igram.kiribi.service.Message;
+import rs.igram.kiribi.service.Scope;
+import rs.igram.kiribi.service.Service;
+import rs.igram.kiribi.service.ServiceAddress;
+import rs.igram.kiribi.service.ServiceException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Session applying vector and matrix operations to packed arrays. The
+ * service splits large inputs across the common fork-join pool.
+ *
+ * <p>Arithmetic follows IEEE 754, so that division by zero for instance
+ * yields an infinity rather than failing.
+ *
+ * @author Michael Sargent
+ */
+public class VectorSession extends AsyncSession {
+	private static final byte CLIENT_REQUEST_APPLY		 = 1;
+	private static final byte CLIENT_REQUEST_REDUCE		 = 2;
+	private static final byte CLIENT_REQUEST_MULTIPLY	 = 3;
+	private static final byte SERVICE_RESPONSE_VALID_INPUT = 1;
+	private static final byte SERVICE_RESPONSE_INVALID_INPUT = 2;
+	
+	/** Element-wise operation adding its operands. */
+	public static final byte ADD = Kernels.ADD;
+	/** Element-wise operation subtracting its second operand from its first. */
+	public static final byte SUBTRACT = Kernels.SUBTRACT;
+	/** Element-wise operation multiplying its operands. */
+	public static final byte MULTIPLY = Kernels.MULTIPLY;
+	/** Element-wise operation dividing its first operand by its second. */
+	public static final byte DIVIDE = Kernels.DIVIDE;
+	/** Reduction to the sum of the elements. */
+	public static final byte SUM = Kernels.SUM;
+	/** Reduction to the smallest element. */
+	public static final byte MIN = Kernels.MIN;
+	/** Reduction to the largest element. */
+	public static final byte MAX = Kernels.MAX;
+	/** Reduction to the euclidean norm. */
+	public static final byte NORM = Kernels.NORM;
+	/** The maximum number of elements of a matrix product. */
+	public static final int MAX_PRODUCT = Kernels.MAX_PRODUCT;
+	
+	private static final double[] EMPTY = new double[0];
+
+	protected VectorSession(Service service) {
+		super(service);
+	}
+		
+	protected VectorSession(Scope scope, ServiceAddress address) {
+		super(scope, address);
+	}
+
+	// register response handlers
+	protected void configure() {
+		handle(CLIENT_REQUEST_APPLY, this::apply);
+		handle(CLIENT_REQUEST_REDUCE, this::reduce);
+		handle(CLIENT_REQUEST_MULTIPLY, this::multiply);
+	}
+	
+	// ---- responses ----
+	// op | a | b as packed arrays, answered by results
+	Message apply(Message request) throws IOException {
+		var op = request.in().readByte();
+		double[] a;
+		double[] result;
+		try{
+			a = PackedArrays.unpack(request.in().readBytes());
+			var b = PackedArrays.unpack(request.in().readBytes());
+			result = Kernels.apply(op, a, b);
+		}catch(IllegalArgumentException e){
+			return rejected(request, e);
+		}
+		System.out.println("PROCESSED REQUEST - APPLIED: " + a.length);
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeBytes(PackedArrays.pack(result));
+		
+		return response;
+	}
+	
+	// op | a | b as packed arrays, b being empty unless a dot product, answered by result
+	Message reduce(Message request) throws IOException {
+		var op = request.in().readByte();
+		double[] a;
+		double result;
+		try{
+			a = PackedArrays.unpack(request.in().readBytes());
+			var b = PackedArrays.unpack(request.in().readBytes());
+			result = Kernels.reduce(op, a, b);
+		}catch(IllegalArgumentException e){
+			return rejected(request, e);
+		}
+		System.out.println("PROCESSED REQUEST - REDUCED: " + a.length);
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeDouble(result);
+		
+		return response;
+	}
+	
+	// m | k | n | a | b as packed arrays, answered by product
+	Message multiply(Message request) throws IOException {
+		var m = request.in().readInt();
+		var k = request.in().readInt();
+		var n = request.in().readInt();
+		double[] a;
+		double[] result;
+		try{
+			a = PackedArrays.unpack(request.in().readBytes());
+			var b = PackedArrays.unpack(request.in().readBytes());
+			result = Kernels.multiply(a, b, m, k, n);
+		}catch(IllegalArgumentException e){
+			return rejected(request, e);
+		}
+		System.out.println("PROCESSED REQUEST - MULTIPLIED: " + m + "x" + k + " by " + k + "x" + n);
+		var response = request.respond(SERVICE_RESPONSE_VALID_INPUT);
+		response.out().writeBytes(PackedArrays.pack(result));
+		
+		return response;
+	}
+	
+	private static Message rejected(Message request, IllegalArgumentException e) throws IOException {
+		System.out.println("PROCESSED REQUEST - INVALID: " + e.getMessage());
+		var response = request.respond(SERVICE_RESPONSE_INVALID_INPUT);
+		response.out().writeUTF(e.getMessage());
+		return response;
+	}
+		
+	// ---- requests ----
+	/**
+	 * Applies an element-wise operation to two vectors.
+	 *
+	 * @param op The operation, {@link #ADD}, {@link #SUBTRACT},
+	 * {@link #MULTIPLY} or {@link #DIVIDE}.
+	 * @param a The first operands.
+	 * @param b The second operands.
+	 * @param timeout The timeout in seconds.
+	 * @return The results of the operation.
+	 * @throws ServiceException if the request failed, notably with an
+	 * {@link IllegalArgumentException} if the input is invalid.
+	 */
+	public final double[] apply(byte op, double[] a, double[] b, long timeout) throws ServiceException {
+		return await(applyAsync(op, a, b, timeout));
+	}
+	
+	/**
+	 * Applies an element-wise operation to two vectors without blocking.
+	 *
+	 * @param op The operation.
+	 * @param a The first operands.
+	 * @param b The second operands.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the results of the operation.
+	 * @see #apply(byte, double[], double[], long)
+	 */
+	public final CompletableFuture<double[]> applyAsync(byte op, double[] a, double[] b, long timeout) {
+		final var future = new CompletableFuture<double[]>();
+		try{
+			var request = Message.request(CLIENT_REQUEST_APPLY);
+			request.out().writeByte(op);
+			request.out().writeBytes(PackedArrays.pack(a));
+			request.out().writeBytes(PackedArrays.pack(b));
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> future.complete(PackedArrays.unpack(response.in().readBytes())),
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		return future.orTimeout(timeout, SECONDS);
+	}
+	
+	/**
+	 * Reduces a vector.
+	 *
+	 * @param op The reduction, {@link #SUM}, {@link #MIN}, {@link #MAX} or
+	 * {@link #NORM}.
+	 * @param a The vector.
+	 * @param timeout The timeout in seconds.
+	 * @return The reduction of the vector.
+	 * @throws ServiceException if the request failed.
+	 */
+	public final double reduce(byte op, double[] a, long timeout) throws ServiceException {
+		return await(reduceAsync(op, a, timeout));
+	}
+	
+	/**
+	 * Reduces a vector without blocking.
+	 *
+	 * @param op The reduction.
+	 * @param a The vector.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the reduction of the vector.
+	 * @see #reduce(byte, double[], long)
+	 */
+	public final CompletableFuture<Double> reduceAsync(byte op, double[] a, long timeout) {
+		return reduce(op, a, EMPTY, timeout);
+	}
+	
+	/**
+	 * Computes the dot product of two vectors.
+	 *
+	 * @param a The first vector.
+	 * @param b The second vector.
+	 * @param timeout The timeout in seconds.
+	 * @return The dot product.
+	 * @throws ServiceException if the request failed, notably with an
+	 * {@link IllegalArgumentException} if the vectors differ in length.
+	 */
+	public final double dot(double[] a, double[] b, long timeout) throws ServiceException {
+		return await(dotAsync(a, b, timeout));
+	}
+	
+	/**
+	 * Computes the dot product of two vectors without blocking.
+	 *
+	 * @param a The first vector.
+	 * @param b The second vector.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the dot product.
+	 */
+	public final CompletableFuture<Double> dotAsync(double[] a, double[] b, long timeout) {
+		return reduce(Kernels.DOT, a, b, timeout);
+	}
+	
+	/**
+	 * Multiplies two row-major matrices.
+	 *
+	 * @param a The m by k left matrix.
+	 * @param b The k by n right matrix.
+	 * @param m The rows of the left matrix.
+	 * @param k The columns of the left matrix and rows of the right one.
+	 * @param n The columns of the right matrix.
+	 * @param timeout The timeout in seconds.
+	 * @return The m by n product.
+	 * @throws ServiceException if the request failed, notably with an
+	 * {@link IllegalArgumentException} if the product has more than
+	 * {@link #MAX_PRODUCT} elements.
+	 */
+	public final double[] multiply(double[] a, double[] b, int m, int k, int n, long timeout) throws ServiceException {
+		return await(multiplyAsync(a, b, m, k, n, timeout));
+	}
+	
+	/**
+	 * Multiplies two row-major matrices without blocking.
+	 *
+	 * @param a The m by k left matrix.
+	 * @param b The k by n right matrix.
+	 * @param m The rows of the left matrix.
+	 * @param k The columns of the left matrix and rows of the right one.
+	 * @param n The columns of the right matrix.
+	 * @param timeout The timeout in seconds.
+	 * @return A future completing with the m by n product.
+	 * @see #multiply(double[], double[], int, int, int, long)
+	 */
+	public final CompletableFuture<double[]> multiplyAsync(double[] a, double[] b, int m, int k, int n, long timeout) {
+		final var future = new CompletableFuture<double[]>();
+		try{
+			var request = Message.request(CLIENT_REQUEST_MULTIPLY);
+			request.out().writeInt(m);
+			request.out().writeInt(k);
+			request.out().writeInt(n);
+			request.out().writeBytes(PackedArrays.pack(a));
+			request.out().writeBytes(PackedArrays.pack(b));
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> future.complete(PackedArrays.unpack(response.in().readBytes())),
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		return future.orTimeout(timeout, SECONDS);
+	}
+	
+	private CompletableFuture<Double> reduce(byte op, double[] a, double[] b, long timeout) {
+		final var future = new CompletableFuture<Double>();
+		try{
+			var request = Message.request(CLIENT_REQUEST_REDUCE);
+			request.out().writeByte(op);
+			request.out().writeBytes(PackedArrays.pack(a));
+			request.out().writeBytes(PackedArrays.pack(b));
+			request(
+				request, 
+				new ResponseAdapter(
+					SERVICE_RESPONSE_VALID_INPUT, 
+					response -> future.complete(response.in().readDouble()),
+					error -> future.completeExceptionally(new IOException(error))
+				),
+				invalid(SERVICE_RESPONSE_INVALID_INPUT, future)
+			); 
+		}catch(IOException e){
+			future.completeExceptionally(e);
+		}
+		
+		return future.orTimeout(timeout, SECONDS);
+	}
+}
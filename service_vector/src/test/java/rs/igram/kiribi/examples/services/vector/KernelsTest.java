@@ -0,0 +1,163 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.vector;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class KernelsTest {
+   static final Random RANDOM = new Random(7);
+   
+   @Test
+   public void testApplyThreshold() throws Exception {
+   	   // single threaded, at the threshold, split once and split unevenly
+   	   for (var n : new int[]{0, 1, Kernels.THRESHOLD, Kernels.THRESHOLD + 1, 3 * Kernels.THRESHOLD + 7}) {
+   	   	   var a = random(n);
+   	   	   var b = random(n);
+   	   	   for (var op : new byte[]{Kernels.ADD, Kernels.SUBTRACT, Kernels.MULTIPLY, Kernels.DIVIDE}) {
+   	   	   	   var c = Kernels.apply(op, a, b);
+   	   	   	   assertEquals(n, c.length);
+   	   	   	   for (int i = 0; i < n; i++) assertEquals(apply(op, a[i], b[i]), c[i]);
+   	   	   }
+   	   }
+   	   assertThrows(IllegalArgumentException.class, () -> Kernels.apply(Kernels.ADD, new double[2], new double[3]));
+   	   assertThrows(IllegalArgumentException.class, () -> Kernels.apply(Kernels.SUM, new double[2], new double[2]));
+   }
+   
+   @Test
+   public void testReduceThreshold() throws Exception {
+   	   for (var n : new int[]{1, Kernels.THRESHOLD, Kernels.THRESHOLD + 1, 3 * Kernels.THRESHOLD + 7}) {
+   	   	   // integers so that partial sums are exact whatever the split
+   	   	   var a = integers(n);
+   	   	   var b = integers(n);
+   	   	   var sum = 0.0;
+   	   	   var dot = 0.0;
+   	   	   var squares = 0.0;
+   	   	   var min = Double.POSITIVE_INFINITY;
+   	   	   var max = Double.NEGATIVE_INFINITY;
+   	   	   for (int i = 0; i < n; i++) {
+   	   	   	   sum += a[i];
+   	   	   	   dot += a[i] * b[i];
+   	   	   	   squares += a[i] * a[i];
+   	   	   	   min = Math.min(min, a[i]);
+   	   	   	   max = Math.max(max, a[i]);
+   	   	   }
+   	   	   assertEquals(sum, Kernels.reduce(Kernels.SUM, a, null));
+   	   	   assertEquals(dot, Kernels.reduce(Kernels.DOT, a, b));
+   	   	   assertEquals(Math.sqrt(squares), Kernels.reduce(Kernels.NORM, a, null));
+   	   	   assertEquals(min, Kernels.reduce(Kernels.MIN, a, null));
+   	   	   assertEquals(max, Kernels.reduce(Kernels.MAX, a, null));
+   	   }
+   	   
+   	   // identities of empty vectors
+   	   var empty = new double[0];
+   	   assertEquals(0.0, Kernels.reduce(Kernels.SUM, empty, null));
+   	   assertEquals(0.0, Kernels.reduce(Kernels.DOT, empty, empty));
+   	   assertEquals(Double.POSITIVE_INFINITY, Kernels.reduce(Kernels.MIN, empty, null));
+   	   assertEquals(Double.NEGATIVE_INFINITY, Kernels.reduce(Kernels.MAX, empty, null));
+   	   assertThrows(IllegalArgumentException.class, () -> Kernels.reduce(Kernels.DOT, new double[2], new double[3]));
+   }
+   
+   @Test
+   public void testMultiplyRaggedBlocks() throws Exception {
+   	   // dimensions off block boundaries, below and above the split threshold
+   	   var block = Kernels.BLOCK;
+   	   for (var d : new int[][]{{3, 2, 4}, {block + 1, block - 1, 2 * block + 3}, {3 * block + 5, block + 7, 2 * block + 1}}) {
+   	   	   var a = random(d[0] * d[1]);
+   	   	   var b = random(d[1] * d[2]);
+   	   	   assertArrayEquals(multiply(a, b, d[0], d[1], d[2]), Kernels.multiply(a, b, d[0], d[1], d[2]));
+   	   }
+   }
+   
+   @Test
+   public void testMultiplyShapes() throws Exception {
+   	   // empty
+   	   assertArrayEquals(new double[0], Kernels.multiply(new double[0], random(6), 0, 3, 2));
+   	   assertArrayEquals(new double[0], Kernels.multiply(random(6), new double[0], 2, 3, 0));
+   	   // no inner terms, a zero product
+   	   assertArrayEquals(new double[6], Kernels.multiply(new double[0], new double[0], 2, 0, 3));
+   	   
+   	   // row by column and column by row
+   	   var n = 1000;
+   	   var row = random(n);
+   	   var column = random(n);
+   	   assertArrayEquals(multiply(row, column, 1, n, 1), Kernels.multiply(row, column, 1, n, 1));
+   	   assertArrayEquals(multiply(column, row, n, 1, n), Kernels.multiply(column, row, n, 1, n));
+   	   // 1 by n times n by n
+   	   var square = random(n * n);
+   	   assertArrayEquals(multiply(row, square, 1, n, n), Kernels.multiply(row, square, 1, n, n));
+   }
+   
+   @Test
+   public void testMultiplyInvalid() throws Exception {
+   	   assertThrows(IllegalArgumentException.class, () -> Kernels.multiply(new double[5], new double[6], 2, 3, 2));
+   	   assertThrows(IllegalArgumentException.class, () -> Kernels.multiply(new double[0], new double[0], -1, 0, 0));
+   	   // too large a product of empty operands
+   	   assertThrows(IllegalArgumentException.class, () -> Kernels.multiply(new double[0], new double[0], 1 << 16, 0, 1 << 16));
+   	   assertEquals(Kernels.MAX_PRODUCT, Kernels.multiply(new double[0], new double[0], Kernels.MAX_PRODUCT, 0, 1).length);
+   }
+   
+   static double[] random(int n) {
+   	   var a = new double[n];
+   	   for (int i = 0; i < n; i++) a[i] = RANDOM.nextDouble() - 0.5;
+   	   return a;
+   }
+   
+   static double[] integers(int n) {
+   	   var a = new double[n];
+   	   for (int i = 0; i < n; i++) a[i] = RANDOM.nextInt(200) - 100;
+   	   return a;
+   }
+   
+   static double apply(byte op, double a, double b) {
+   	   switch(op){
+   	   case Kernels.ADD:		return a + b;
+   	   case Kernels.SUBTRACT:	return a - b;
+   	   case Kernels.MULTIPLY:	return a * b;
+   	   default:				return a / b;
+   	   }
+   }
+   
+   // naive product, accumulating in the same order as the kernel
+   static double[] multiply(double[] a, double[] b, int m, int k, int n) {
+   	   var c = new double[m * n];
+   	   for (int i = 0; i < m; i++) {
+   	   	   for (int j = 0; j < n; j++) {
+   	   	   	   var sum = 0.0;
+   	   	   	   for (int p = 0; p < k; p++) sum += a[i * k + p] * b[p * n + j];
+   	   	   	   c[i * n + j] = sum;
+   	   	   }
+   	   }
+   	   return c;
+   }
+}
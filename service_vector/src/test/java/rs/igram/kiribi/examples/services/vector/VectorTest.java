@@ -0,0 +1,255 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.services.vector;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import rs.igram.kiribi.crypto.*;
+import rs.igram.kiribi.io.*;
+import rs.igram.kiribi.net.*;
+import rs.igram.kiribi.net.natt.*;
+import rs.igram.kiribi.service.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+class VectorTest {
+	static final KeyPair PAIR1 = KeyPairGenerator.generateKeyPair();
+	static final KeyPair PAIR2 = KeyPairGenerator.generateKeyPair();
+	
+	static final int PORT1 = 7700;
+	static final int PORT2 = 7701;
+	static final int PORT3 = 7702;
+	
+	static final InetAddress LOCAL_HOST;
+	static {
+		try {
+			LOCAL_HOST = InetAddress.getByName("127.0.0.1");
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	InetSocketAddress SA1 = new InetSocketAddress(LOCAL_HOST, NATTServer.SERVER_PORT);
+	InetSocketAddress SA2 = new InetSocketAddress(LOCAL_HOST, NATTServer.SERVER_PORT);
+	InetSocketAddress SA3 = new InetSocketAddress(LOCAL_HOST, PORT3);
+	
+	static final ServiceId ID = ServiceId.parse(1l);
+	static final byte CODE = 0x01;
+	
+	static final String BOB = "Bob";
+	static final String ALICE = "Alice";
+	
+	NetworkExecutor executor;	
+	NATTServer server;
+   	   	
+	ServiceAdmin admin1;
+	ServiceAdmin admin2;
+	
+	EntityManager mgr1;
+	EntityManager mgr2;
+	
+	Entity bob;
+	Entity alice;
+	
+   @Test
+   public void testElementWise() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   configureEntities(Scope.RESTRICTED);
+   	   var address = admin1.address(ID);
+   	   var client = new VectorSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   var a = new double[]{1.0, 2.0, 6.0};
+   	   var b = new double[]{1.0, 4.0, 0.0};
+   	   assertArrayEquals(new double[]{2.0, 6.0, 6.0}, client.apply(VectorSession.ADD, a, b, 5));
+   	   assertArrayEquals(new double[]{0.0, -2.0, 6.0}, client.apply(VectorSession.SUBTRACT, a, b, 5));
+   	   assertArrayEquals(new double[]{1.0, 8.0, 0.0}, client.apply(VectorSession.MULTIPLY, a, b, 5));
+   	   assertArrayEquals(new double[]{1.0, 0.5, Double.POSITIVE_INFINITY}, client.apply(VectorSession.DIVIDE, a, b, 5));
+   	   
+   	   // split across the pool
+   	   var n = 1000000;
+   	   a = new double[n];
+   	   b = new double[n];
+   	   for (int i = 0; i < n; i++) {
+   	   	   a[i] = i;
+   	   	   b[i] = 2.0;
+   	   }
+   	   var results = client.apply(VectorSession.MULTIPLY, a, b, 30);
+   	   for (int i = 0; i < n; i++) assertEquals(2.0 * i, results[i]);
+   	   
+   	   // length mismatch
+   	   var e = assertThrows(ServiceException.class, () -> client.apply(VectorSession.ADD, new double[2], new double[3], 5));
+   	   assertTrue(e.getCause().getCause() instanceof IllegalArgumentException);
+   	   
+   	   shutdown();
+   }
+   
+   @Test
+   public void testReduce() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   configureEntities(Scope.RESTRICTED);
+   	   var address = admin1.address(ID);
+   	   var client = new VectorSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   var a = new double[]{3.0, -4.0};
+   	   assertEquals(-1.0, client.reduce(VectorSession.SUM, a, 5));
+   	   assertEquals(-4.0, client.reduce(VectorSession.MIN, a, 5));
+   	   assertEquals(3.0, client.reduce(VectorSession.MAX, a, 5));
+   	   assertEquals(5.0, client.reduce(VectorSession.NORM, a, 5));
+   	   assertEquals(-5.0, client.dot(a, new double[]{1.0, 2.0}, 5));
+   	   
+   	   // split across the pool, exact as the partial sums are integers
+   	   var n = 1000000;
+   	   a = new double[n];
+   	   var b = new double[n];
+   	   Arrays.fill(b, 1.0);
+   	   for (int i = 0; i < n; i++) a[i] = i;
+   	   assertEquals(n * (n - 1.0) / 2, client.reduce(VectorSession.SUM, a, 30));
+   	   assertEquals(n - 1.0, client.reduce(VectorSession.MAX, a, 30));
+   	   assertEquals(n * (n - 1.0) / 2, client.dot(a, b, 30));
+   	   
+   	   shutdown();
+   }
+   
+   @Test
+   public void testMultiply() throws IOException, InterruptedException, Exception {
+   	   setup();
+   	   configureEntities(Scope.RESTRICTED);
+   	   var address = admin1.address(ID);
+   	   var client = new VectorSession(Scope.RESTRICTED, address);
+   	   
+   	   client.connect(admin2);
+   	   
+   	   // 2x3 by 3x2
+   	   var a = new double[]{1.0, 2.0, 3.0, 4.0, 5.0, 6.0};
+   	   var b = new double[]{7.0, 8.0, 9.0, 10.0, 11.0, 12.0};
+   	   assertArrayEquals(new double[]{58.0, 64.0, 139.0, 154.0}, client.multiply(a, b, 2, 3, 2, 5));
+   	   
+   	   // blocked and split across the pool, dimensions not multiples of the block
+   	   var m = 300;
+   	   var k = 257;
+   	   var n = 301;
+   	   var random = new SecureRandom();
+   	   a = new double[m * k];
+   	   b = new double[k * n];
+   	   for (int i = 0; i < a.length; i++) a[i] = random.nextInt(10);
+   	   for (int i = 0; i < b.length; i++) b[i] = random.nextInt(10);
+   	   var c = client.multiply(a, b, m, k, n, 30);
+   	   for (int i = 0; i < m; i++) {
+   	   	   for (int j = 0; j < n; j++) {
+   	   	   	   var expected = 0.0;
+   	   	   	   for (int p = 0; p < k; p++) expected += a[i * k + p] * b[p * n + j];
+   	   	   	   assertEquals(expected, c[i * n + j]);
+   	   	   }
+   	   }
+   	   
+   	   // dimension mismatch
+   	   var e = assertThrows(ServiceException.class, () -> client.multiply(new double[5], new double[6], 2, 3, 2, 5));
+   	   assertTrue(e.getCause().getCause() instanceof IllegalArgumentException);
+   	   
+   	   shutdown();
+   }
+ 	
+   static ServiceAdmin admin(KeyPair pair, int port, InetSocketAddress serverAddress) throws Exception {
+		var address = new Address(pair.getPublic());
+		var socketAddress = new InetSocketAddress(NetworkMonitor.inet(), port);
+		var ep = EndpointProvider.udp(socketAddress, address, serverAddress);
+		return new ServiceAdmin(pair, port, ep);
+	}
+	
+	void setup() throws Exception {
+		System.out.println("INET: " + LOCAL_HOST);
+		executor = new NetworkExecutor();
+		server = new NATTServer();
+		server.start(new InetSocketAddress(LOCAL_HOST, NATTServer.SERVER_PORT));
+		
+		admin1 = admin(PAIR1, PORT1, SA1);
+		admin2 = admin(PAIR2, PORT2, SA2);
+		
+		mgr1 = admin1.entityManager(new ArrayList<Entity>());
+		mgr2 = admin2.entityManager(new ArrayList<Entity>());
+	}
+	
+	void shutdown() throws Exception {
+		admin1.shutdown();
+		admin2.shutdown();
+		server.shutdown();
+	}
+	
+	void configureEntities(Scope scope) throws Exception {
+		var latch = new CountDownLatch(2);
+		bob = new Entity(true, address(PAIR2).toString(), BOB);
+		alice = new Entity(true, address(PAIR1).toString(), ALICE);
+		
+		var address = admin1.address(ID); 
+		var service = new VectorService(address, scope);
+		admin1.activate(service);
+		
+		var granted = Set.of(service.getDescriptor());
+		bob.setGranted(granted);
+		
+		mgr1.setOnExchange(e -> latch.countDown());
+		mgr1.add(bob);
+		Thread.sleep(3000);
+		
+		mgr2.setOnExchange(e -> latch.countDown());
+		mgr2.add(alice);
+		Thread.sleep(3000);
+		
+		latch.await();
+	}
+	
+	static Address address(KeyPair pair) {
+		return new Address(pair.getPublic());
+	}
+}
\ No newline at end of file
@@ -29,6 +29,8 @@
  */ 
 module rs.igram.kiribi.examples.store {
 	requires java.base;
+	requires java.management;
+	requires jdk.jfr;
 	requires transitive rs.igram.kiribi.io;
 	requires transitive rs.igram.kiribi.store;
 	exports rs.igram.kiribi.examples.store;
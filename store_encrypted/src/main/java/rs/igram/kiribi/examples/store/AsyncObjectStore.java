@@ -0,0 +1,202 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.store.ObjectStore;
+
+/**
+ * Asynchronous facade of an object store.
+ *
+ * <p>Operations run on a dedicated I/O executor, sized independently of the
+ * cipher pool of the store and of the executors of the caller, and return a
+ * future. Dependent stages which are not async run on the I/O executor, so
+ * callers should chain blocking or long running work with the async stages
+ * of the future and an executor of their own.
+ *
+ * <p>Cancelling the future of an operation which has not started yet keeps
+ * it from running. An operation which has started always completes, its
+ * result being discarded, since interrupting a read would close the file
+ * channel it reads from under the locks of the store. Operations which time
+ * out are cancelled the same way and complete with a
+ * {@link java.util.concurrent.TimeoutException}. Operations submitted once
+ * the I/O executor is shut down complete with a
+ * {@link RejectedExecutionException}.
+ *
+ * @author Michael Sargent
+ */
+public final class AsyncObjectStore implements Closeable {
+	private final ObjectStore store;
+	private final ExecutorService executor;
+	private final boolean owned;
+	private volatile long timeout;
+	
+	/**
+	 * Creates an async store with its own I/O executor, shut down when the
+	 * async store is closed.
+	 *
+	 * @param store The object store.
+	 * @param threads The number of I/O threads.
+	 */
+	public AsyncObjectStore(ObjectStore store, int threads) {
+		this(store, Executors.newFixedThreadPool(threads, r -> {
+			var t = new Thread(r, "kiribi-store-io");
+			t.setDaemon(true);
+			return t;
+		}), true);
+	}
+	
+	/**
+	 * Creates an async store running on the given I/O executor, which is not
+	 * shut down when the async store is closed.
+	 *
+	 * @param store The object store.
+	 * @param executor The I/O executor.
+	 */
+	public AsyncObjectStore(ObjectStore store, ExecutorService executor) {
+		this(store, executor, false);
+	}
+	
+	private AsyncObjectStore(ObjectStore store, ExecutorService executor, boolean owned) {
+		this.store = store;
+		this.executor = executor;
+		this.owned = owned;
+	}
+	
+	/**
+	 * Sets the timeout of operations, measured from the time they are
+	 * submitted.
+	 *
+	 * @param timeout The timeout, or 0 for no timeout.
+	 * @param unit The unit of the timeout.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Returns whether the named object exists.
+	 *
+	 * @param name The name of the object.
+	 * @return A future completing with whether the object exists.
+	 */
+	public CompletableFuture<Boolean> exists(String name) {
+		return submit(() -> store.exists(name));
+	}
+	
+	/**
+	 * Reads the named object with the decoder of the store.
+	 *
+	 * @param name The name of the object.
+	 * @return A future completing with the object.
+	 */
+	public CompletableFuture<Encodable> get(String name) {
+		return submit(() -> store.get(name));
+	}
+	
+	/**
+	 * Reads the named object.
+	 *
+	 * @param <T> The type of the object.
+	 * @param name The name of the object.
+	 * @param decoder The decoder of the object.
+	 * @return A future completing with the object.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Encodable> CompletableFuture<T> get(String name, Decoder<T> decoder) {
+		return submit(() -> (T)store.get(name, decoder));
+	}
+	
+	/**
+	 * Writes the given object.
+	 *
+	 * @param name The name of the object.
+	 * @param object The object.
+	 * @return A future completing once the object is written.
+	 */
+	public CompletableFuture<Void> put(String name, Encodable object) {
+		return submit(() -> {
+			store.put(name, object);
+			return null;
+		});
+	}
+	
+	/**
+	 * Removes the named object.
+	 *
+	 * @param name The name of the object.
+	 * @return A future completing once the object is removed.
+	 */
+	public CompletableFuture<Void> remove(String name) {
+		return submit(() -> {
+			store.remove(name);
+			return null;
+		});
+	}
+	
+	/**
+	 * Shuts the I/O executor down if it is owned by this async store.
+	 */
+	@Override
+	public void close() {
+		if (owned) executor.shutdown();
+	}
+	
+	private <T> CompletableFuture<T> submit(Callable<T> task) {
+		var future = new CompletableFuture<T>();
+		var t = timeout;
+		if (t > 0) future.orTimeout(t, TimeUnit.NANOSECONDS);
+		
+		Future<?> running;
+		try{
+			running = executor.submit(() -> {
+				if (future.isDone()) return;
+				try{
+					future.complete(task.call());
+				}catch(Throwable e){
+					future.completeExceptionally(e);
+				}
+			});
+		}catch(RejectedExecutionException e){
+			future.completeExceptionally(e);
+			return future;
+		}
+		// cancelled or timed out, a started operation running to completion
+		future.whenComplete((v, e) -> {
+			if (e != null) running.cancel(false);
+		});
+		return future;
+	}
+}
@@ -0,0 +1,135 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent Bloom filter of names.
+ *
+ * <p>A name which was added is always reported as possibly present, a name
+ * which was not is reported absent except for false positives at about the
+ * rate the filter was sized for, as long as no more than its capacity of
+ * names were added.
+ *
+ * @author Michael Sargent
+ */
+final class BloomFilter {
+	private final AtomicLongArray words;
+	private final long bits;
+	private final int hashes;
+	private final long capacity;
+	
+	BloomFilter(long capacity, double fpp) {
+		this(capacity, words(capacity, fpp), hashes(capacity, fpp));
+	}
+	
+	private BloomFilter(long capacity, int words, int hashes) {
+		this.capacity = capacity;
+		this.words = new AtomicLongArray(words);
+		this.hashes = hashes;
+		bits = 64L * words;
+	}
+	
+	long capacity() {
+		return capacity;
+	}
+	
+	void add(String name) {
+		var h1 = hash(name);
+		var h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < hashes; i++) {
+			var bit = Math.floorMod(h1 + i * h2, bits);
+			var index = (int)(bit >>> 6);
+			var mask = 1L << bit;
+			var word = words.get(index);
+			while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+				word = words.get(index);
+			}
+		}
+	}
+	
+	boolean mightContain(String name) {
+		var h1 = hash(name);
+		var h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < hashes; i++) {
+			var bit = Math.floorMod(h1 + i * h2, bits);
+			if ((words.get((int)(bit >>> 6)) & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+	
+	void write(DataOutputStream out) throws IOException {
+		out.writeLong(capacity);
+		out.writeInt(hashes);
+		out.writeInt(words.length());
+		for (int i = 0; i < words.length(); i++) out.writeLong(words.get(i));
+	}
+	
+	static BloomFilter read(DataInputStream in) throws IOException {
+		var capacity = in.readLong();
+		var hashes = in.readInt();
+		var n = in.readInt();
+		if (capacity < 1 || hashes < 1 || n < 1) throw new IOException("Invalid filter");
+		var filter = new BloomFilter(capacity, n, hashes);
+		for (int i = 0; i < n; i++) filter.words.set(i, in.readLong());
+		return filter;
+	}
+	
+	// optimal number of 64 bit words and hashes for the false positive rate
+	private static int words(long capacity, double fpp) {
+		var bits = Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		var words = Math.ceil(bits / 64);
+		if (words > Integer.MAX_VALUE) throw new IllegalArgumentException("Capacity too large: " + capacity);
+		return Math.max(1, (int)words);
+	}
+	
+	private static int hashes(long capacity, double fpp) {
+		var bits = 64.0 * words(capacity, fpp);
+		return Math.max(1, (int)Math.round(bits / capacity * Math.log(2)));
+	}
+	
+	// fnv-1a over the chars of the name
+	private static long hash(String name) {
+		var h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,223 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.store.ObjectStore;
+
+/**
+ * Bulk operations on an object store.
+ *
+ * <p>The objects of a bulk operation are read, written or removed in
+ * parallel on a bounded executor, so the file I/O and cryptography of one
+ * object overlap with those of the others. Results are returned in the order
+ * of the names, an object which failed reporting its error without failing
+ * the others.
+ *
+ * @author Michael Sargent
+ */
+public final class BulkStore implements Closeable {
+	private final ObjectStore store;
+	private final ExecutorService executor;
+	private final boolean owned;
+	
+	/**
+	 * Creates a bulk store with its own executor, shut down when the bulk
+	 * store is closed.
+	 *
+	 * @param store The object store.
+	 * @param parallelism The maximum number of objects processed in parallel.
+	 */
+	public BulkStore(ObjectStore store, int parallelism) {
+		this(store, Executors.newFixedThreadPool(parallelism, r -> {
+			var t = new Thread(r, "kiribi-bulk-store");
+			t.setDaemon(true);
+			return t;
+		}), true);
+	}
+	
+	/**
+	 * Creates a bulk store running on the given executor, which is not shut
+	 * down when the bulk store is closed.
+	 *
+	 * @param store The object store.
+	 * @param executor The executor.
+	 */
+	public BulkStore(ObjectStore store, ExecutorService executor) {
+		this(store, executor, false);
+	}
+	
+	private BulkStore(ObjectStore store, ExecutorService executor, boolean owned) {
+		this.store = store;
+		this.executor = executor;
+		this.owned = owned;
+	}
+	
+	/**
+	 * Reads the named objects.
+	 *
+	 * @param <T> The type of the objects.
+	 * @param names The names of the objects.
+	 * @param decoder The decoder of the objects.
+	 * @return The results in the order of the names.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Encodable> List<Result<T>> getAll(Collection<String> names, Decoder<T> decoder) throws InterruptedIOException {
+		return all(names, name -> (T)store.get(name, decoder));
+	}
+	
+	/**
+	 * Writes the given objects.
+	 *
+	 * @param objects The objects by name.
+	 * @return The results in the iteration order of the objects.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public List<Result<Void>> putAll(Map<String,? extends Encodable> objects) throws InterruptedIOException {
+		return all(objects.keySet(), name -> {
+			store.put(name, objects.get(name));
+			return null;
+		});
+	}
+	
+	/**
+	 * Removes the named objects.
+	 *
+	 * @param names The names of the objects.
+	 * @return The results in the order of the names.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public List<Result<Void>> removeAll(Collection<String> names) throws InterruptedIOException {
+		return all(names, name -> {
+			store.remove(name);
+			return null;
+		});
+	}
+	
+	/**
+	 * Shuts the executor down if it is owned by this bulk store.
+	 */
+	@Override
+	public void close() {
+		if (owned) executor.shutdown();
+	}
+	
+	private <T> List<Result<T>> all(Collection<String> names, Operation<T> op) throws InterruptedIOException {
+		var futures = new ArrayList<Future<T>>(names.size());
+		for (var name : names) futures.add(executor.submit(() -> op.apply(name)));
+		
+		var results = new ArrayList<Result<T>>(names.size());
+		var i = 0;
+		try{
+			for (var name : names) {
+				try{
+					results.add(new Result<>(name, futures.get(i++).get(), null));
+				}catch(ExecutionException e){
+					results.add(new Result<>(name, null, e.getCause()));
+				}
+			}
+		}catch(InterruptedException e){
+			for (var f : futures) f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		return results;
+	}
+	
+	@FunctionalInterface
+	private interface Operation<T> {
+		T apply(String name) throws IOException;
+	}
+	
+	/**
+	 * Result of one object of a bulk operation.
+	 *
+	 * @param <T> The type of the value.
+	 */
+	public static final class Result<T> {
+		private final String name;
+		private final T value;
+		private final Throwable error;
+		
+		Result(String name, T value, Throwable error) {
+			this.name = name;
+			this.value = value;
+			this.error = error;
+		}
+		
+		/**
+		 * Returns the name of the object.
+		 *
+		 * @return The name of the object.
+		 */
+		public String name() {
+			return name;
+		}
+		
+		/**
+		 * Returns whether the operation succeeded.
+		 *
+		 * @return Whether the operation succeeded.
+		 */
+		public boolean ok() {
+			return error == null;
+		}
+		
+		/**
+		 * Returns the error of a failed operation.
+		 *
+		 * @return The error, or null if the operation succeeded.
+		 */
+		public Throwable error() {
+			return error;
+		}
+		
+		/**
+		 * Returns the value of the operation, null for writes and removals.
+		 *
+		 * @return The value.
+		 * @throws IOException if the operation failed.
+		 */
+		public T get() throws IOException {
+			if (error == null) return value;
+			if (error instanceof IOException) throw (IOException)error;
+			throw new IOException(error);
+		}
+	}
+}
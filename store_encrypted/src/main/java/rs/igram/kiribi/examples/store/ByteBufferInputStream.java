@@ -0,0 +1,79 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading directly from a pooled byte buffer. The buffer is
+ * returned to its pool when the stream is closed.
+ *
+ * @author Michael Sargent
+ */
+final class ByteBufferInputStream extends InputStream {
+	private final DirectBufferPool pool;
+	private ByteBuffer buf;
+	
+	ByteBufferInputStream(ByteBuffer buf, DirectBufferPool pool) {
+		this.buf = buf;
+		this.pool = pool;
+	}
+	
+	@Override
+	public int read() {
+		if (buf == null || !buf.hasRemaining()) return -1;
+		return buf.get() & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (buf == null || !buf.hasRemaining()) return -1;
+		var n = Math.min(len, buf.remaining());
+		buf.get(b, off, n);
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) {
+		if (buf == null || n <= 0) return 0;
+		var k = (int)Math.min(n, buf.remaining());
+		buf.position(buf.position() + k);
+		return k;
+	}
+	
+	@Override
+	public int available() {
+		return buf == null ? 0 : buf.remaining();
+	}
+	
+	@Override
+	public void close() {
+		if (buf == null) return;
+		pool.release(buf);
+		buf = null;
+	}
+}
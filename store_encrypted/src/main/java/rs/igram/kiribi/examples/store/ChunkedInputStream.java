@@ -0,0 +1,125 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher.TAG_SIZE;
+
+/**
+ * Decrypts a chunked record one chunk at a time.
+ *
+ * <p>At most one sealed and one plain chunk are held in memory regardless of
+ * the size of the record.
+ *
+ * @author Michael Sargent
+ */
+final class ChunkedInputStream extends InputStream {
+	private final PushbackInputStream in;
+	private final CipherPool ciphers;
+	private final StoreMetrics metrics;
+	private final RecordHeader header;
+	private final byte[] aad;
+	private final byte[] nonce;
+	private final byte[] sealed;
+	private final byte[] plain;
+	private long index;
+	private int pos;
+	private int limit;
+	private boolean last;
+	
+	// the first chunk is authenticated eagerly
+	ChunkedInputStream(InputStream in, RecordHeader header, CipherPool ciphers, StoreMetrics metrics) throws IOException {
+		this.in = new PushbackInputStream(in, 1);
+		this.header = header;
+		this.ciphers = ciphers;
+		this.metrics = metrics;
+		
+		aad = header.aad();
+		nonce = new byte[EncryptedStoreDelegate.AESCipher.LEN_NONCE];
+		sealed = new byte[header.chunkSize() + TAG_SIZE];
+		plain = new byte[header.chunkSize()];
+		
+		fill();
+	}
+	
+	@Override
+	public int read() throws IOException {
+		while (pos == limit) {
+			if (!fill()) return -1;
+		}
+		return plain[pos++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		while (pos == limit) {
+			if (!fill()) return -1;
+		}
+		var n = Math.min(len, limit - pos);
+		System.arraycopy(plain, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+	
+	@Override
+	public int available() {
+		return limit - pos;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		Arrays.fill(plain, (byte)0);
+		pos = limit = 0;
+		last = true;
+		in.close();
+	}
+	
+	private boolean fill() throws IOException {
+		if (last) return false;
+		
+		final var n = in.readNBytes(sealed, 0, sealed.length);
+		if (n < TAG_SIZE) throw new IOException("Truncated record");
+		var next = in.read();
+		last = next == -1;
+		if (!last) in.unread(next);
+		metrics.read(n);
+		
+		header.nonce(index++, nonce);
+		aad[aad.length - 1] = (byte)(last ? 1 : 0);
+		try{
+			limit = ciphers.apply(c -> c.decrypt(nonce, aad, sealed, 0, n, plain, 0), metrics.decryption(), metrics.lockWait);
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+		pos = 0;
+		return true;
+	}
+}
@@ -0,0 +1,125 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher.TAG_SIZE;
+
+/**
+ * Encrypts a chunked record one chunk at a time.
+ *
+ * <p>A full chunk is only sealed once more data arrives, so the chunk sealed
+ * on close is always the one marked final.
+ *
+ * @author Michael Sargent
+ */
+final class ChunkedOutputStream extends OutputStream {
+	// chunk indices stay clear of the counter of counter nonces
+	static final long MAX_CHUNKS = 1L << 32;
+	
+	private final OutputStream out;
+	private final CipherPool ciphers;
+	private final StoreMetrics metrics;
+	private final RecordHeader header;
+	private final byte[] aad;
+	private final byte[] nonce;
+	private final byte[] plain;
+	private final byte[] sealed;
+	private long index;
+	private int pos;
+	private boolean closed;
+	
+	ChunkedOutputStream(OutputStream out, RecordHeader header, CipherPool ciphers, StoreMetrics metrics) throws IOException {
+		this.out = out;
+		this.header = header;
+		this.ciphers = ciphers;
+		this.metrics = metrics;
+		
+		aad = header.aad();
+		nonce = new byte[EncryptedStoreDelegate.AESCipher.LEN_NONCE];
+		plain = new byte[header.chunkSize()];
+		sealed = new byte[header.chunkSize() + TAG_SIZE];
+		
+		out.write(header.encoded());
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (closed) throw new IOException("Stream closed");
+		if (pos == plain.length) seal(false);
+		plain[pos++] = (byte)b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) throw new IOException("Stream closed");
+		while (len > 0) {
+			if (pos == plain.length) seal(false);
+			var n = Math.min(len, plain.length - pos);
+			System.arraycopy(b, off, plain, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try{
+			finish();
+		}finally{
+			out.close();
+		}
+	}
+	
+	// seals the final chunk without closing the underlying stream
+	void finish() throws IOException {
+		if (closed) return;
+		closed = true;
+		try{
+			seal(true);
+		}finally{
+			Arrays.fill(plain, (byte)0);
+		}
+	}
+	
+	private void seal(boolean last) throws IOException {
+		if (index == MAX_CHUNKS) throw new IOException("Too many chunks");
+		final var len = pos;
+		header.nonce(index++, nonce);
+		aad[aad.length - 1] = (byte)(last ? 1 : 0);
+		try{
+			var n = ciphers.apply(c -> c.encrypt(nonce, aad, plain, 0, len, sealed, 0), metrics.encryption(), metrics.lockWait);
+			out.write(sealed, 0, n);
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+		pos = 0;
+	}
+}
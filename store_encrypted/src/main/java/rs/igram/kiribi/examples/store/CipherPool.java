@@ -0,0 +1,121 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.spec.SecretKeySpec;
+
+import rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher;
+
+/**
+ * Striped pool of AES ciphers sharing a single key.
+ *
+ * <p>Each stripe owns one cipher guarded by its own lock. A caller starts at the
+ * stripe its thread hashes to and takes the first free stripe, blocking on its
+ * home stripe only when every stripe is busy.
+ *
+ * @author Michael Sargent
+ */
+final class CipherPool {
+	private final AESCipher[] ciphers;
+	private final ReentrantLock[] locks;
+	private final int mask;
+	
+	CipherPool(SecretKeySpec spec) {
+		this(spec, stripes());
+	}
+	
+	CipherPool(SecretKeySpec spec, int stripes) {
+		if (stripes < 1 || Integer.bitCount(stripes) != 1) {
+			throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+		}
+		
+		ciphers = new AESCipher[stripes];
+		locks = new ReentrantLock[stripes];
+		mask = stripes - 1;
+		for (int i = 0; i < stripes; i++) {
+			ciphers[i] = new AESCipher(spec);
+			locks[i] = new ReentrantLock();
+		}
+	}
+	
+	int size() {
+		return ciphers.length;
+	}
+	
+	<T> T apply(CipherFunction<T> f) throws GeneralSecurityException {
+		var i = acquire();
+		try{
+			return f.apply(ciphers[i]);
+		}finally{
+			locks[i].unlock();
+		}
+	}
+	
+	// times the wait for a cipher and the call, unless latency is null
+	<T> T apply(CipherFunction<T> f, LatencyHistogram latency, LatencyHistogram wait) throws GeneralSecurityException {
+		if (latency == null) return apply(f);
+		
+		var t0 = System.nanoTime();
+		var i = acquire();
+		var t1 = System.nanoTime();
+		try{
+			return f.apply(ciphers[i]);
+		}finally{
+			locks[i].unlock();
+			latency.record(System.nanoTime() - t1);
+			wait.record(t1 - t0);
+		}
+	}
+	
+	// returns the locked stripe
+	private int acquire() {
+		var home = home();
+		for (int n = 0; n < ciphers.length; n++) {
+			var i = (home + n) & mask;
+			if (locks[i].tryLock()) return i;
+		}
+		
+		locks[home].lock();
+		return home;
+	}
+	
+	private int home() {
+		var h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+	
+	// two stripes per core, rounded up to a power of two
+	private static int stripes() {
+		var n = 2 * Runtime.getRuntime().availableProcessors();
+		return Integer.highestOneBit(n - 1) << 1;
+	}
+	
+	@FunctionalInterface
+	interface CipherFunction<T> {
+		T apply(AESCipher cipher) throws GeneralSecurityException;
+	}
+}
@@ -0,0 +1,81 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compression stage applied to objects before they are encrypted.
+ *
+ * <p>The id of the compressor is recorded in the header of every record it
+ * compressed, so a compressor must keep its id once records have been written
+ * with it. Ids 1 to 15 are available, id 1 being reserved for deflate.
+ *
+ * @author Michael Sargent
+ */
+public interface Compressor {
+	/** Deflate with the default compression level. */
+	Compressor DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION);
+	
+	/**
+	 * Returns a deflate compressor.
+	 *
+	 * @param level The compression level, from 0 to 9 or -1 for the default.
+	 * @return A deflate compressor.
+	 */
+	static Compressor deflate(int level) {
+		return new DeflateCompressor(level);
+	}
+	
+	/**
+	 * Returns the id of this compressor.
+	 *
+	 * @return The id of this compressor.
+	 */
+	int id();
+	
+	/**
+	 * Returns a stream compressing to the given stream. Closing the returned
+	 * stream must close the given stream.
+	 *
+	 * @param out The stream to compress to.
+	 * @return The compressing stream.
+	 * @throws IOException if there was a problem creating the stream.
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+	
+	/**
+	 * Returns a stream decompressing from the given stream. Closing the
+	 * returned stream must close the given stream.
+	 *
+	 * @param in The stream to decompress from.
+	 * @return The decompressing stream.
+	 * @throws IOException if there was a problem creating the stream.
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+}
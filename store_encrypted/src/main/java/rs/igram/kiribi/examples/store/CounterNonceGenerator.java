@@ -0,0 +1,176 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nonce generator combining a random prefix with an atomic counter.
+ *
+ * <pre>
+ * prefix (4) | counter (4) | zero (4)
+ * </pre>
+ *
+ * <p>The zero bytes are left for chunk indices and the prefix separates
+ * generators sharing a key, which leaves 32 bits to the counter, so a key
+ * issues at most 2^32 nonces.
+ *
+ * <p>A generator with a state file counts the nonces of its key across
+ * instances. Counter values are reserved in blocks, the end of a block being
+ * saved durably before any of its values is issued, and a new instance
+ * resumes after the last reserved block. No counter value is issued twice
+ * under the key even after a crash, and the limit bounds the nonces of the
+ * key rather than of the instance, the unissued rest of a block being
+ * skipped. Without a state file the counter starts at a random value and the
+ * limit only bounds the instance.
+ *
+ * @author Michael Sargent
+ */
+final class CounterNonceGenerator implements NonceGenerator {
+	static final long MAX_LIMIT = 1L << 32;
+	// counter values reserved per save of the state
+	static final long BLOCK = 1 << 16;
+	private static final int MAGIC = 0x4B694E43;
+	// syncs the directory of a saved state
+	private static final GroupCommit SYNC = new GroupCommit(0);
+	
+	private final byte[] prefix = new byte[4];
+	private final int start;
+	private final long limit;
+	private final Runnable exhausted;
+	private final Path state;
+	private final AtomicLong issued = new AtomicLong();
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	// counter value of the first nonce of this instance, once loaded
+	private long base;
+	private boolean loaded;
+	// nonces of this instance covered by the saved state
+	private volatile long reserved;
+	
+	CounterNonceGenerator(long limit, Runnable exhausted) {
+		this(limit, exhausted, null);
+	}
+	
+	CounterNonceGenerator(long limit, Runnable exhausted, Path state) {
+		if (limit < 1 || limit > MAX_LIMIT) {
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+		}
+		this.limit = limit;
+		this.exhausted = exhausted;
+		this.state = state;
+		
+		var random = new SecureRandom();
+		random.nextBytes(prefix);
+		start = state == null ? random.nextInt() : 0;
+	}
+	
+	@Override
+	public void next(byte[] nonce) throws GeneralSecurityException {
+		var n = issued.getAndIncrement();
+		if (state != null && n >= reserved) reserve(n);
+		// base is visible once reserved was read
+		var c = base + n;
+		if (c >= limit) {
+			// keep the count from wrapping around
+			issued.set(limit);
+			if (exhausted != null && signalled.compareAndSet(false, true)) exhausted.run();
+			throw new GeneralSecurityException("Nonces exhausted, the key must be rotated");
+		}
+		
+		var counter = start + (int)c;
+		System.arraycopy(prefix, 0, nonce, 0, 4);
+		nonce[4] = (byte)(counter >>> 24);
+		nonce[5] = (byte)(counter >>> 16);
+		nonce[6] = (byte)(counter >>> 8);
+		nonce[7] = (byte)counter;
+		nonce[8] = 0;
+		nonce[9] = 0;
+		nonce[10] = 0;
+		nonce[11] = 0;
+	}
+	
+	// a generator with the same limit and a new prefix, counting in the given state
+	CounterNonceGenerator renew(Path state) {
+		return new CounterNonceGenerator(limit, exhausted, state);
+	}
+	
+	long remaining() {
+		return Math.max(0, limit - base - issued.get());
+	}
+	
+	// saves the end of the block holding the nth nonce before it is issued
+	private synchronized void reserve(long n) {
+		try{
+			if (!loaded) {
+				base = load();
+				loaded = true;
+			}
+			var r = reserved;
+			if (n < r) return;
+			// nothing to reserve once exhausted
+			if (base + n >= limit) return;
+			while (r <= n) r += BLOCK;
+			save(Math.min(limit, base + r));
+			reserved = r;
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private long load() throws IOException {
+		try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(state)))){
+			if (in.readInt() != MAGIC) throw new IOException("Invalid nonce state: " + state);
+			return in.readLong();
+		}catch(NoSuchFileException e){
+			return 0;
+		}
+	}
+	
+	private void save(long end) throws IOException {
+		Files.createDirectories(state.getParent());
+		var out = new DurableOutputStream(state, SYNC);
+		try{
+			var data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeLong(end);
+			data.flush();
+		}catch(IOException e){
+			out.abort();
+			throw e;
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,109 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompressing stream recording the bytes and time spent decompressing.
+ *
+ * <p>The time spent reading the compressed source, which includes decryption
+ * and I/O, is not counted as decompression time.
+ *
+ * @author Michael Sargent
+ */
+final class DecompressingInputStream extends FilterInputStream {
+	private final Source source;
+	private final StoreMetrics metrics;
+	private long bytes;
+	private long nanos;
+	private boolean closed;
+	
+	DecompressingInputStream(InputStream in, Compressor compressor, StoreMetrics metrics) throws IOException {
+		this(new Source(in), compressor, metrics);
+	}
+	
+	private DecompressingInputStream(Source source, Compressor compressor, StoreMetrics metrics) throws IOException {
+		super(compressor.decompress(source));
+		this.source = source;
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		var t = System.nanoTime();
+		var b = in.read();
+		nanos += System.nanoTime() - t;
+		if (b >= 0) bytes++;
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		var t = System.nanoTime();
+		var n = in.read(b, off, len);
+		nanos += System.nanoTime() - t;
+		if (n > 0) bytes += n;
+		return n;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			metrics.decompressed(source.bytes, bytes, nanos - source.nanos);
+		}
+		super.close();
+	}
+	
+	private static final class Source extends FilterInputStream {
+		long bytes;
+		long nanos;
+		
+		Source(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			var t = System.nanoTime();
+			var b = in.read();
+			nanos += System.nanoTime() - t;
+			if (b >= 0) bytes++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			var t = System.nanoTime();
+			var n = in.read(b, off, len);
+			nanos += System.nanoTime() - t;
+			if (n > 0) bytes += n;
+			return n;
+		}
+	}
+}
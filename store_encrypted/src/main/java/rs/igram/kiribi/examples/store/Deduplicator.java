@@ -0,0 +1,236 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Content addressed blobs of a deduplicated store.
+ *
+ * <p>Objects are stored once as blobs named after a keyed hash of their
+ * content, so names do not leak content, and the objects themselves become
+ * references to their blob. Blobs are kept in a sharded directory in the
+ * metadata directory of the store:
+ *
+ * <pre>
+ * schema/.~meta/blobs/~3f/hash
+ * </pre>
+ *
+ * <p>References are counted in memory, the counts being rebuilt from the
+ * references when the store is opened. A blob whose count drops to zero is
+ * removed by a background sweeper once it was unreferenced for a grace
+ * period, so a blob can be referenced again cheaply.
+ *
+ * @author Michael Sargent
+ */
+final class Deduplicator implements Closeable {
+	static final String BLOBS = "blobs";
+	static final String MAC = "HmacSHA256";
+	static final int HASH_SIZE = 32;
+	static final int FANOUT = 256;
+	// smaller objects are cheaper to store than to reference
+	static final int MIN_SIZE = 128;
+	private static final byte[] LABEL = "kiribi-dedup".getBytes();
+	
+	final StoreLayout layout;
+	// blobs are locked apart from objects, which are locked first
+	final KeyLocks locks = new KeyLocks();
+	private final ThreadLocal<Mac> macs;
+	private final Map<String,Integer> counts = new ConcurrentHashMap<>();
+	// unreferenced blobs and when they became unreferenced
+	private final Map<String,Long> unreferenced = new ConcurrentHashMap<>();
+	final long grace;
+	private final StoreMetrics metrics;
+	private final ScheduledExecutorService sweeper;
+	
+	Deduplicator(StoreLayout layout, SecretKeySpec key, long grace, StoreMetrics metrics) throws IOException {
+		this.layout = layout.create();
+		this.grace = grace;
+		this.metrics = metrics;
+		macs = ThreadLocal.withInitial(() -> {
+			try{
+				var mac = Mac.getInstance(MAC);
+				mac.init(key);
+				return mac;
+			}catch(GeneralSecurityException e){
+				throw new IllegalStateException(e);
+			}
+		});
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			var t = new Thread(r, "kiribi-blob-sweeper");
+			t.setDaemon(true);
+			return t;
+		});
+		var period = Math.max(grace / 2, TimeUnit.SECONDS.toNanos(1));
+		sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.NANOSECONDS);
+	}
+	
+	// the layout of the blobs of a store directory
+	static StoreLayout blobs(Path dir) {
+		return new StoreLayout(StoreLayout.meta(dir).resolve(BLOBS), FANOUT);
+	}
+	
+	// HMAC of the label, so the cipher key is never used as a MAC key
+	static SecretKeySpec macKey(byte[] key) {
+		try{
+			var mac = Mac.getInstance(MAC);
+			mac.init(new SecretKeySpec(key, MAC));
+			return new SecretKeySpec(mac.doFinal(LABEL), MAC);
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	byte[] hash(byte[] b) {
+		return macs.get().doFinal(b);
+	}
+	
+	Path file(byte[] hash) {
+		return layout.path(hex(hash));
+	}
+	
+	// stores the blob of an object unless present, returning its hash
+	byte[] store(byte[] b, RecordCodec codec, GroupCommit commits) throws IOException {
+		var hash = hash(b);
+		var file = file(hash);
+		locks.lock(file);
+		try{
+			if (Files.exists(file)) {
+				metrics.deduplicatedObjects.increment();
+				metrics.deduplicatedBytes.add(b.length);
+			} else {
+				var out = new DurableOutputStream(file, commits);
+				try{
+					codec.encode(b, out);
+				}catch(IOException | RuntimeException e){
+					out.abort();
+					throw e;
+				}
+				out.close();
+			}
+			retain(hash);
+		}finally{
+			locks.unlock(file);
+		}
+		return hash;
+	}
+	
+	boolean contains(Path path) {
+		return path.startsWith(layout.dir);
+	}
+	
+	List<Path> files() throws IOException {
+		return layout.files();
+	}
+	
+	// callers hold the lock of the blob
+	void retain(byte[] hash) {
+		var name = hex(hash);
+		counts.merge(name, 1, Integer::sum);
+		unreferenced.remove(name);
+	}
+	
+	void release(byte[] hash) {
+		var name = hex(hash);
+		var count = counts.computeIfPresent(name, (k, n) -> n - 1);
+		if (count != null && count <= 0) unreferenced.put(name, System.nanoTime());
+	}
+	
+	// counts the references of the given objects, then marks blobs without
+	// references
+	void count(List<Path> objects, RecordCodec codec) throws IOException {
+		for (var path : objects) {
+			var hash = codec.reference(path);
+			if (hash != null) retain(hash);
+		}
+		orphans();
+	}
+	
+	private void orphans() throws IOException {
+		var now = System.nanoTime();
+		for (var path : files()) {
+			var name = path.getFileName().toString();
+			counts.putIfAbsent(name, 0);
+			if (counts.get(name) == 0) unreferenced.putIfAbsent(name, now);
+		}
+	}
+	
+	int references(byte[] hash) {
+		return counts.getOrDefault(hex(hash), 0);
+	}
+	
+	// removes blobs which were unreferenced for longer than the grace period
+	int sweep() {
+		var now = System.nanoTime();
+		var count = 0;
+		for (var e : unreferenced.entrySet()) {
+			if (now - e.getValue() < grace) continue;
+			var name = e.getKey();
+			var path = layout.path(name);
+			locks.lock(path);
+			try{
+				// referenced again meanwhile
+				if (!unreferenced.remove(name, e.getValue())) continue;
+				if (counts.getOrDefault(name, 0) > 0) continue;
+				counts.remove(name);
+				if (Files.deleteIfExists(path)) {
+					metrics.sweptBlobs.increment();
+					count++;
+				}
+			}catch(IOException x){
+				// retried on the next sweep
+				unreferenced.putIfAbsent(name, e.getValue());
+			}finally{
+				locks.unlock(path);
+			}
+		}
+		return count;
+	}
+	
+	@Override
+	public void close() {
+		sweeper.shutdownNow();
+	}
+	
+	static String hex(byte[] hash) {
+		var sb = new StringBuilder(hash.length * 2);
+		for (var b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,85 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compressor from the JDK.
+ *
+ * @author Michael Sargent
+ */
+final class DeflateCompressor implements Compressor {
+	static final int ID = 1;
+	private static final int BUFFER_SIZE = 8192;
+	
+	private final int level;
+	
+	DeflateCompressor(int level) {
+		if (level < -1 || level > 9) throw new IllegalArgumentException("Invalid level: " + level);
+		this.level = level;
+	}
+	
+	@Override
+	public int id() {
+		return ID;
+	}
+	
+	@Override
+	public OutputStream compress(OutputStream out) {
+		var deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try{
+					super.close();
+				}finally{
+					deflater.end();
+				}
+			}
+		};
+	}
+	
+	@Override
+	public InputStream decompress(InputStream in) {
+		var inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try{
+					super.close();
+				}finally{
+					inflater.end();
+				}
+			}
+		};
+	}
+}
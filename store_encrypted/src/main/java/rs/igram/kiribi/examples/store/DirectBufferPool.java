@@ -0,0 +1,112 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers in power of two size classes.
+ *
+ * <p>Buffers larger than the largest size class are allocated on demand and
+ * never retained. Since buffers may hold decrypted records, released buffers
+ * are overwritten with zeros.
+ *
+ * @author Michael Sargent
+ */
+final class DirectBufferPool {
+	static final int MIN_CLASS = 12; // 4 KiB
+	static final int MAX_CLASS = 24; // 16 MiB
+	static final int DEFAULT_RETAINED = 16;
+	
+	private static final ByteBuffer ZEROS = ByteBuffer.allocate(1 << MIN_CLASS).asReadOnlyBuffer();
+	
+	private final List<Queue<ByteBuffer>> classes;
+	private final AtomicInteger[] retained;
+	private final int maxRetained;
+	
+	DirectBufferPool() {
+		this(DEFAULT_RETAINED);
+	}
+	
+	DirectBufferPool(int maxRetained) {
+		this.maxRetained = maxRetained;
+		
+		var n = MAX_CLASS - MIN_CLASS + 1;
+		classes = new ArrayList<>(n);
+		retained = new AtomicInteger[n];
+		for (int i = 0; i < n; i++) {
+			classes.add(new ConcurrentLinkedQueue<>());
+			retained[i] = new AtomicInteger();
+		}
+	}
+	
+	// returns a cleared buffer with at least the requested capacity
+	ByteBuffer acquire(int size) {
+		var c = sizeClass(size);
+		if (c > MAX_CLASS) return ByteBuffer.allocateDirect(size);
+		
+		var i = c - MIN_CLASS;
+		var b = classes.get(i).poll();
+		if (b == null) return ByteBuffer.allocateDirect(1 << c);
+		retained[i].decrementAndGet();
+		return b.clear();
+	}
+	
+	void release(ByteBuffer b) {
+		zero(b);
+		var capacity = b.capacity();
+		if (!b.isDirect() || Integer.bitCount(capacity) != 1) return;
+		
+		var c = Integer.numberOfTrailingZeros(capacity);
+		if (c < MIN_CLASS || c > MAX_CLASS) return;
+		
+		var i = c - MIN_CLASS;
+		if (retained[i].incrementAndGet() > maxRetained) {
+			retained[i].decrementAndGet();
+			return;
+		}
+		classes.get(i).offer(b.clear());
+	}
+	
+	// overwrites the whole capacity of a buffer with zeros
+	static void zero(ByteBuffer b) {
+		if (b.isReadOnly()) return;
+		b.clear();
+		while (b.hasRemaining()) {
+			b.put(ZEROS.duplicate().limit(Math.min(b.remaining(), ZEROS.capacity())));
+		}
+		b.clear();
+	}
+	
+	static int sizeClass(int size) {
+		if (size <= 1 << MIN_CLASS) return MIN_CLASS;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
@@ -0,0 +1,130 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Output stream writing a file durably.
+ *
+ * <p>Data is written to a temporary sibling which is synced and atomically
+ * renamed over the target on close, after which the directory is synced as
+ * part of a group commit. A crash leaves either the previous or the new
+ * version of the file, plus possibly an orphaned temporary file. Without a
+ * group commit the file is still replaced atomically, but nothing is synced.
+ * An optional callback is run once the file was replaced or discarded.
+ *
+ * @author Michael Sargent
+ */
+final class DurableOutputStream extends OutputStream {
+	static final String TEMP_SUFFIX = ".~tmp";
+	private static final AtomicLong sequence = new AtomicLong();
+	
+	private final Path path;
+	private final Path temp;
+	private final FileChannel channel;
+	private final GroupCommit commits;
+	private final Runnable done;
+	private boolean closed;
+	
+	DurableOutputStream(Path path, GroupCommit commits) throws IOException {
+		this(path, commits, null);
+	}
+	
+	DurableOutputStream(Path path, GroupCommit commits, Runnable done) throws IOException {
+		this.path = path;
+		this.commits = commits;
+		this.done = done;
+		
+		temp = path.resolveSibling(path.getFileName() + "." + sequence.incrementAndGet() + TEMP_SUFFIX);
+		channel = FileChannel.open(temp, CREATE_NEW, WRITE);
+	}
+	
+	static boolean isTemp(Path path) {
+		return path.getFileName().toString().endsWith(TEMP_SUFFIX);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		var buf = ByteBuffer.wrap(b, off, len);
+		while (buf.hasRemaining()) channel.write(buf);
+	}
+	
+	// copies a region of a file without going through the heap
+	void transfer(FileChannel src, long position, long count) throws IOException {
+		for (long n = 0; n < count;) {
+			var m = src.transferTo(position + n, count - n, channel);
+			if (m == 0 && position + n >= src.size()) throw new EOFException();
+			n += m;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try{
+			if (commits != null) channel.force(true);
+			channel.close();
+			Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+		}catch(IOException e){
+			channel.close();
+			Files.deleteIfExists(temp);
+			throw e;
+		}finally{
+			if (done != null) done.run();
+		}
+		if (commits != null) commits.sync(path.getParent());
+	}
+	
+	// discards the temporary file leaving the target untouched
+	void abort() throws IOException {
+		if (closed) return;
+		closed = true;
+		try{
+			channel.close();
+			Files.deleteIfExists(temp);
+		}finally{
+			if (done != null) done.run();
+		}
+	}
+}
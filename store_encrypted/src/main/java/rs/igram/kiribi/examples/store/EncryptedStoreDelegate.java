@@ -24,18 +24,27 @@
  
 package rs.igram.kiribi.examples.store;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import static java.nio.file.StandardOpenOption.*;
 import static javax.crypto.Cipher.*;
@@ -53,85 +62,825 @@ import static rs.igram.kiribi.io.ByteUtils.crop;
  *
  * @author Michael Sargent
  */
-public class EncryptedStoreDelegate extends StoreDelegate {
+public class EncryptedStoreDelegate extends StoreDelegate implements Closeable {
 	private static final int AES_KEY_SIZE = 16; 
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	// 1 ms
+	public static final long DEFAULT_COMMIT_WINDOW = 1000 * 1000;
 	
-	private byte[] key;
-	private AESCipher encrypter;
-	private AESCipher decrypter;
+	final Path dir;
+	private final Keyring keyring;
+	final KeyLocks locks = new KeyLocks();
+	private final StoreMetrics metrics = new StoreMetrics();
+	final RecordCodec codec;
+	private volatile DirectBufferPool buffers;
+	private volatile GroupCommit commits;
+	volatile WriteBehindQueue queue;
+	private volatile PlaintextCache cache;
+	private volatile ObjectName mbean;
+	private volatile NameIndex index;
+	final StoreFiles files;
+	// blobs stay readable when deduplication is disabled
+	final StoreLayout blobs;
+	volatile Deduplicator dedup;
 	
 	public EncryptedStoreDelegate(byte[] key, Path root, String... schema) throws IOException {
+		this(new Keyring(key), root, schema);
+	}
+	
+	public EncryptedStoreDelegate(Keyring keyring, Path root, String... schema) throws IOException {
 		super(root, schema);
 		
-		this.key = key;
+		var d = root;
+		for(String s : schema) d = d.resolve(s);
+		dir = d;
 		
-		encrypter = new AESCipher();
-		decrypter = new AESCipher();
+		this.keyring = keyring;
+		codec = new RecordCodec(keyring, metrics, StoreLayout.meta(dir));
+		files = new StoreFiles(dir, locks);
+		blobs = Deduplicator.blobs(dir);
+	}
+	
+	/**
+	 * Sets the chunk size of the streaming format. Objects larger than one
+	 * chunk are written in chunks, smaller objects in a single shot.
+	 *
+	 * @param chunkSize The chunk size in bytes.
+	 */
+	public void setChunkSize(int chunkSize) {
+		codec.setChunkSize(chunkSize);
+	}
+	
+	/**
+	 * Sets the generator of record nonces, a {@link NonceGenerator#counter()
+	 * counter} generator by default. The nonces of a counter generator are
+	 * counted per key in the store, so its limit bounds the nonces of the
+	 * current key across reopenings, and the counter resumes after the nonces
+	 * already issued under the key.
+	 *
+	 * @param nonces The nonce generator.
+	 */
+	public void setNonceGenerator(NonceGenerator nonces) {
+		codec.setNonceGenerator(nonces);
+	}
+	
+	/**
+	 * Enables or disables memory mapped reads. When enabled, single-shot
+	 * records are decrypted from a mapped file into a pooled direct buffer
+	 * which backs the returned stream, avoiding heap copies of the record.
+	 * The buffer is returned to the pool when the stream is closed.
+	 *
+	 * @param mapped Whether reads should be memory mapped.
+	 */
+	public void setMapped(boolean mapped) {
+		buffers = mapped ? new DirectBufferPool() : null;
+	}
+	
+	/**
+	 * Enables or disables durable writes with the default commit window.
+	 *
+	 * @param durable Whether writes should be durable.
+	 * @throws IOException if there was a problem recovering the store.
+	 * @see #setDurable(boolean, long)
+	 */
+	public void setDurable(boolean durable) throws IOException {
+		setDurable(durable, DEFAULT_COMMIT_WINDOW);
+	}
+	
+	/**
+	 * Enables or disables durable writes. Every write goes to a temporary
+	 * file which is atomically renamed over the object, and a durable write
+	 * also syncs the file before the rename. Writers completing within the
+	 * same commit window share a single directory sync. Enabling durable
+	 * writes removes temporary files orphaned by a crash, so it should be
+	 * done before the store is used.
+	 *
+	 * @param durable Whether writes should be durable.
+	 * @param window The group commit window in nanoseconds.
+	 * @throws IOException if there was a problem recovering the store.
+	 */
+	public void setDurable(boolean durable, long window) throws IOException {
+		if (durable) recover();
+		commits = durable ? new GroupCommit(window) : null;
+	}
+	
+	/**
+	 * Removes temporary files left behind by interrupted durable writes.
+	 *
+	 * @return The number of files removed.
+	 * @throws IOException if there was a problem scanning the store.
+	 */
+	public int recover() throws IOException {
+		var count = 0;
+		var paths = files.layout().walk(DurableOutputStream::isTemp);
+		if (Files.isDirectory(blobs.dir)) paths.addAll(blobs.walk(DurableOutputStream::isTemp));
+		for (var path : paths) {
+			if (Files.deleteIfExists(path)) count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Switches the store to a sharded layout, spreading objects over a
+	 * fan-out of subdirectories named after a hash prefix of their names.
+	 * Objects of the flat layout remain readable and are moved to their
+	 * shards in the background, objects written meanwhile going to their
+	 * shards directly. The fan-out is saved with the store, which is opened
+	 * sharded and resumes an interrupted move in the background. Switching
+	 * should be done before the store is used.
+	 *
+	 * @param fanout The number of shards, 16, 256, 4096 or 65536.
+	 * @return A future completing with the number of moved objects.
+	 * @throws IOException if the shards could not be created.
+	 * @throws IllegalStateException if the store is already sharded with a
+	 * different fan-out.
+	 */
+	public CompletableFuture<Integer> setSharding(int fanout) throws IOException {
+		var moved = files.shard(fanout);
+		var i = index;
+		if (i != null) setIndexed(true, i.watched());
+		return moved;
+	}
+	
+	/**
+	 * Lists the names of the objects of the store, walking the shards in
+	 * parallel.
+	 *
+	 * @return The names of the objects.
+	 * @throws IOException if the store could not be listed.
+	 */
+	public List<String> names() throws IOException {
+		var names = new ArrayList<String>();
+		for (var path : files.list()) {
+			names.add(path.getFileName().toString());
+		}
+		return names;
+	}
+	
+	/**
+	 * Enables or disables write-behind. With write-behind enabled, puts and
+	 * removals are queued and written by a background writer, later operations
+	 * on a name replacing queued ones. Callers block while the queue is full.
+	 * Objects still queued are read from the queue. A failed background write
+	 * is reported once by the next put, removal or flush. Disabling
+	 * write-behind flushes the queue, and disables it even if a queued write
+	 * failed.
+	 *
+	 * @param capacity The maximum number of queued objects, or 0 to disable
+	 * write-behind.
+	 * @throws IOException if a queued write failed.
+	 */
+	public void setWriteBehind(int capacity) throws IOException {
+		var previous = queue;
+		if (previous != null) {
+			try{
+				// still read from while flushed
+				previous.close();
+			}finally{
+				queue = null;
+			}
+		}
+		if (capacity < 1) return;
+		
+		queue = new WriteBehindQueue(new WriteBehindQueue.Sink() {
+			@Override
+			public void write(Path path, byte[] b) throws IOException {
+				EncryptedStoreDelegate.this.write(b, path);
+			}
+			
+			@Override
+			public void delete(Path path) throws IOException {
+				EncryptedStoreDelegate.this.delete(path);
+			}
+		}, capacity);
+	}
+	
+	/**
+	 * Waits until every object queued for write-behind has been written.
+	 *
+	 * @throws IOException if a queued write failed.
+	 */
+	public void flush() throws IOException {
+		var q = queue;
+		if (q != null) q.flush();
+	}
+	
+	/**
+	 * Flushes and stops write-behind, saves the name index, stops the blob
+	 * sweeper and unregisters the MBean, each even if an earlier step failed.
+	 *
+	 * @throws IOException if a queued write failed, or if there was a problem
+	 * closing the store.
+	 */
+	@Override
+	public void close() throws IOException {
+		try{
+			setWriteBehind(0);
+		}finally{
+			try{
+				setIndexed(false, false);
+			}finally{
+				try{
+					setDeduplicated(false, 0);
+				}finally{
+					unregisterMBean();
+				}
+			}
+		}
+	}
+	
+	private void unregisterMBean() throws IOException {
+		var name = mbean;
+		if (name == null) return;
+		mbean = null;
+		try{
+			StoreMetricsBean.unregister(name);
+		}catch(JMException e){
+			throw new IOException(e);
+		}
+	}
+	
+	@Override
+	public boolean exists(String name) {
+		var path = dir.resolve(name);
+		var q = queue;
+		if (q != null) {
+			var entry = q.get(path);
+			if (entry != null) return !entry.removed();
+		}
+		var i = index;
+		if (i != null && !i.mightContain(name)) {
+			metrics.indexedMisses.increment();
+			return false;
+		}
+		return Files.exists(files.file(path));
+	}
+	
+	@Override
+	public void remove(String name) throws IOException {
+		var path = dir.resolve(name);
+		var q = queue;
+		if (q != null) {
+			q.remove(path);
+		} else {
+			delete(path);
+		}
+	}
+	
+	/**
+	 * Enables or disables the plaintext cache. Decrypted single-shot records
+	 * are cached up to the given memory budget, least recently used records
+	 * being evicted first. Cached records are invalidated when written or
+	 * removed. Since cached records are sensitive, evicted records can be
+	 * overwritten with zeros.
+	 *
+	 * @param budget The memory budget in bytes, or 0 to disable the cache.
+	 * @param zero Whether evicted records should be zeroed.
+	 */
+	public void setCache(long budget, boolean zero) {
+		cache = budget > 0 ? new PlaintextCache(budget, zero, metrics) : null;
+	}
+	
+	/**
+	 * Enables or disables compression. Objects at least as large as the
+	 * threshold are compressed before they are encrypted, and are stored
+	 * uncompressed if compression does not make them smaller. Streams opened
+	 * with {@link #output(String)} are always compressed. Records are
+	 * decompressed transparently when read, so any compressor records were
+	 * written with must be set or {@link #register(Compressor) registered}.
+	 *
+	 * @param compressor The compressor, or null to disable compression.
+	 * @param threshold The size in bytes below which objects are not compressed.
+	 */
+	public void setCompression(Compressor compressor, int threshold) {
+		codec.setCompression(compressor, threshold);
+	}
+	
+	/**
+	 * Registers a compressor so records compressed with it can be read.
+	 *
+	 * @param compressor The compressor to register.
+	 */
+	public void register(Compressor compressor) {
+		codec.register(compressor);
+	}
+	
+	/**
+	 * Returns the metrics of this store.
+	 *
+	 * @return The metrics of this store.
+	 */
+	public StoreMetrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Enables or disables deduplication. A deduplicated store encrypts and
+	 * writes each distinct object content once, as a blob named after a
+	 * keyed hash of the content, objects becoming references to their blob.
+	 * Blobs are reference counted and removed by a background sweeper once
+	 * unreferenced for the grace period. Enabling deduplication counts the
+	 * references of the store, so it should be done before the store is
+	 * used. Objects written before are deduplicated once written again, and
+	 * references remain readable when deduplication is disabled.
+	 *
+	 * @param deduplicated Whether the store should be deduplicated.
+	 * @param grace The grace period of unreferenced blobs in nanoseconds.
+	 * @throws IOException if the references could not be counted.
+	 */
+	public void setDeduplicated(boolean deduplicated, long grace) throws IOException {
+		var previous = dedup;
+		if (previous != null) {
+			dedup = null;
+			previous.close();
+		}
+		if (!deduplicated) return;
+		
+		var d = new Deduplicator(blobs, keyring.key().mac, grace, metrics);
+		try{
+			d.count(files.list(), codec);
+		}catch(IOException | RuntimeException e){
+			d.close();
+			throw e;
+		}
+		dedup = d;
+	}
+	
+	/**
+	 * Removes the blobs of a deduplicated store which were unreferenced for
+	 * longer than the grace period, as the background sweeper does.
+	 *
+	 * @return The number of removed blobs.
+	 */
+	public int sweep() {
+		var d = dedup;
+		return d == null ? 0 : d.sweep();
+	}
+	
+	/**
+	 * Enables or disables the name index. The index answers lookups of
+	 * absent objects without touching the filesystem, lookups of present
+	 * objects still checking the file. It is built from a scan of the store
+	 * directory, or loaded from the snapshot saved when the index was last
+	 * disabled or the store closed if the directory was not modified since.
+	 * Files created in the directory other than through the store are only
+	 * indexed if the directory is watched.
+	 *
+	 * @param indexed Whether the name index should be enabled.
+	 * @param watch Whether the directory should be watched for files created
+	 * by others.
+	 * @throws IOException if there was a problem building or saving the index.
+	 */
+	public void setIndexed(boolean indexed, boolean watch) throws IOException {
+		var previous = index;
+		if (previous != null) {
+			index = null;
+			previous.close();
+		}
+		if (indexed) index = new NameIndex(files.layout(), watch);
+	}
+	
+	/**
+	 * Enables or disables instrumentation. An instrumented store records the
+	 * latencies of reads, writes, encryption, decryption and of waits for a
+	 * cipher, counts the bytes read and written, and emits flight recorder
+	 * events for reads and writes. Instrumentation can be switched at any
+	 * time and costs a volatile read per operation when disabled.
+	 *
+	 * @param instrumented Whether the store should be instrumented.
+	 */
+	public void setInstrumented(boolean instrumented) {
+		metrics.instrumented = instrumented;
+	}
+	
+	/**
+	 * Registers the metrics of this store with the platform MBean server,
+	 * until the store is closed.
+	 *
+	 * @param name The name distinguishing this store from others.
+	 * @return The object name of the MBean.
+	 * @throws JMException if the MBean could not be registered.
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		var objectName = StoreMetricsBean.register(name, metrics);
+		mbean = objectName;
+		return objectName;
+	}
+	
+	/**
+	 * Returns the keyring of this store.
+	 *
+	 * @return The keyring of this store.
+	 */
+	public Keyring keyring() {
+		return keyring;
+	}
+	
+	/**
+	 * Makes the given key current and re-encrypts records written with other
+	 * keys in the background, in parallel and at a limited rate. Reads and
+	 * writes continue during the rotation, each record being re-encrypted
+	 * under its write lock. Records already encrypted with the current key
+	 * are skipped, so an interrupted rotation is resumed by rotating to the
+	 * same key again. Progress is reported by the {@link #metrics() metrics},
+	 * records which could not be re-encrypted being counted as failures.
+	 *
+	 * @param id The id of a key in the keyring.
+	 * @param parallelism The number of records re-encrypted in parallel.
+	 * @param rate The maximum rate in bytes per second, or 0 for no limit.
+	 * @return A future completing with the number of re-encrypted records.
+	 */
+	public CompletableFuture<Integer> rotate(int id, int parallelism, long rate) {
+		if (keyring.current() != id) {
+			keyring.setCurrent(id);
+			codec.renewNonces();
+		}
+		return new StoreRewriter(this, header -> header == null || header.keyId() != id, new Throttle(rate)).start(parallelism);
+	}
+	
+	/**
+	 * Rewrites records in the legacy block padded format in the current
+	 * record format in the background. The store remains usable while
+	 * records are migrated, each record being rewritten under its write lock.
+	 * Since legacy records do not record their length, migrated objects keep
+	 * their padding.
+	 *
+	 * @return A future completing with the number of migrated records.
+	 */
+	public CompletableFuture<Integer> migrate() {
+		return new StoreRewriter(this, header -> header == null, Throttle.NONE).start(1);
+	}
+	
+	/**
+	 * Verifies the integrity of every record of the store in the background,
+	 * in parallel and at a limited rate. Records are authenticated without
+	 * being decompressed or decoded, chunked records chunk by chunk, so
+	 * corrupted and truncated records are found before they are read.
+	 * References of a deduplicated store are checked to have their blob, and
+	 * blobs are verified as well. Records failing while written are checked
+	 * again under their write lock, so only corrupted records are reported.
+	 *
+	 * @param parallelism The number of records verified in parallel.
+	 * @param rate The maximum rate in bytes per second, or 0 for no limit.
+	 * @return A future completing with the report of the scrub.
+	 */
+	public CompletableFuture<ScrubReport> scrub(int parallelism, long rate) {
+		return new StoreScrubber(this, new Throttle(rate)).start(parallelism);
+	}
+	
+	/**
+	 * Exports the records of the store, blobs included, to a single archive.
+	 * Records are archived as stored, without being decrypted, with zero-copy
+	 * transfers, and are checksummed. An interrupted export is resumed by
+	 * exporting to the same archive again, records already archived being
+	 * skipped, while a complete archive is left untouched.
+	 *
+	 * @param archive The archive file.
+	 * @return The number of records exported.
+	 * @throws IOException if there was a problem exporting the store.
+	 */
+	public int exportTo(Path archive) throws IOException {
+		return new StoreArchiver(this).exportTo(archive);
+	}
+	
+	/**
+	 * Imports the records of an archive into the store, replacing objects of
+	 * the same name. Records are verified against their checksums and created
+	 * in parallel, each through a temporary file atomically renamed over the
+	 * record, so an interrupted import is resumed by importing the same
+	 * archive again, records already imported being skipped. Importing should
+	 * be done before the store is used.
+	 *
+	 * @param archive The archive file.
+	 * @param parallelism The number of records created in parallel.
+	 * @return The number of records imported.
+	 * @throws IOException if the archive is partial or corrupted, or if there
+	 * was a problem importing it.
+	 */
+	public int importFrom(Path archive, int parallelism) throws IOException {
+		return new StoreArchiver(this).importFrom(archive, parallelism);
+	}
+	
+	/**
+	 * Opens a stream reading the named object with bounded memory.
+	 *
+	 * @param name The name of the object.
+	 * @return A stream of the decrypted object.
+	 * @throws IOException if there was a problem reading the object.
+	 */
+	public VarInputStream input(String name) throws IOException {
+		return in(dir.resolve(name));
+	}
+	
+	/**
+	 * Opens a stream writing the named object in chunks with bounded memory.
+	 * The object is complete once the stream is closed, other writes of the
+	 * object blocking until then.
+	 *
+	 * @param name The name of the object.
+	 * @return A stream encrypting the object.
+	 * @throws IOException if there was a problem opening the object.
+	 * @throws IllegalArgumentException if the name is reserved.
+	 */
+	public VarOutputStream output(String name) throws IOException {
+		var path = checkName(dir.resolve(name));
+		// queued writes must not overwrite the streamed object
+		flush();
+		locks.lock(path);
+		try{
+			var d = dedup;
+			var previous = d == null ? null : codec.reference(files.file(path));
+			var out = open(path);
+			try{
+				return new VarOutputStream(new FilterOutputStream(codec.stream(out)) {
+					private boolean closed;
+					
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+					}
+					
+					@Override
+					public void close() throws IOException {
+						if (closed) return;
+						closed = true;
+						try{
+							super.close();
+							files.unflatten(path);
+							if (previous != null) d.release(previous);
+						}finally{
+							invalidate(path);
+							locks.unlock(path);
+						}
+					}
+				});
+			}catch(IOException e){
+				out.abort();
+				throw e;
+			}
+		}catch(IOException | RuntimeException e){
+			locks.unlock(path);
+			throw e;
+		}
 	}
 
 	@Override
 	protected VarInputStream in(Path path) throws IOException {
-		var b = Files.readAllBytes(path);
-        return new VarInputStream(decrypt(b));
-    }
-    
-    @Override
-	protected void out(byte[] b, Path path) throws IOException {
-		try(OutputStream out = Files.newOutputStream(path, CREATE, TRUNCATE_EXISTING, WRITE)){
-        	out.write(encrypt(b));
-        }
+		var latency = metrics.reads();
+		if (latency == null) return read(path);
+		
+		var event = new StoreEvent(StoreEvent.READ);
+		event.begin();
+		var t = System.nanoTime();
+		var in = read(path);
+		latency.record(System.nanoTime() - t);
+		if (event.shouldCommit()) {
+			event.path = path.toString();
+			event.commit();
+		}
+		return in;
 	}
 	
-	protected byte[] encrypt(byte[] b) throws IOException {
-		if (encrypter == null) throw new IllegalStateException("Key exchange not complete");
-		synchronized(encrypter) {
+	private VarInputStream read(Path path) throws IOException {
+		var q = queue;
+		if (q != null) {
+			var entry = q.get(path);
+			if (entry != null) {
+				if (entry.removed()) throw new NoSuchFileException(path.toString());
+				return new VarInputStream(entry.b);
+			}
+		}
+		
+		var c = cache;
+		var stamp = 0L;
+		if (c != null) {
+			var b = c.get(path);
+			if (b != null) return new VarInputStream(b);
+			stamp = c.stamp(path);
+		}
+		
+		// a stream keeps reading the version it opened once unlocked
+		locks.lockRead(path);
+		try{
+			return decode(path, files.file(path), stamp);
+		}finally{
+			locks.unlockRead(path);
+		}
+	}
+	
+	// decodes the record in a file, cached by the path of the object
+	private VarInputStream decode(Path path, Path file, long stamp) throws IOException {
+		var pool = buffers;
+		if (pool != null) {
+			var in = codec.mapped(file, pool);
+			if (in != null) return in;
+		}
+		
+		var in = new BufferedInputStream(Files.newInputStream(file));
+		try{
+			in.mark(RecordHeader.MAX_SIZE);
+			var header = RecordHeader.read(in);
+			if (header != null && header.chunked()) {
+				try{
+					return new VarInputStream(codec.open(in, header));
+				}catch(IOException e){
+					// a legacy record can start with the magic by chance
+					in.close();
+					try{
+						return plain(path, codec.decrypt(Files.readAllBytes(file)), stamp);
+					}catch(IOException x){
+						throw e;
+					}
+				}
+			}
+			in.reset();
+			var b = in.readAllBytes();
+			in.close();
+			return record(path, b, stamp);
+		}catch(IOException | RuntimeException e){
+			in.close();
+			throw e;
+		}
+	}
+    
+	// reads a compact or legacy record
+	private VarInputStream record(Path path, byte[] b, long stamp) throws IOException {
+		metrics.read(b.length);
+		var header = RecordHeader.read(ByteBuffer.wrap(b));
+		if (header == null || header.chunked()) return plain(path, codec.decrypt(b), stamp);
+		
+		byte[] plain;
+		try{
+			plain = codec.unseal(header, b);
+		}catch(IOException e){
+			// a legacy record can start with the magic by chance
 			try{
-				encrypter.init(key);
-				var M = b.length;
-				var N = encrypter.getBlockSize();
-				var buf = new byte[((M / N) * N) + (2 * N)];
-				System.arraycopy(b, 0, buf, 0, M);
-				return encrypter.encrypt(buf);
-			}catch(Exception e){
-				e.printStackTrace();
-				throw new IOException(e);
+				return plain(path, codec.decrypt(b), stamp);
+			}catch(IOException x){
+				throw e;
 			}
 		}
+		if (header.reference()) return decode(path, blobs.path(Deduplicator.hex(plain)), stamp);
+		return plain(path, codec.decompress(plain, header.compression()), stamp);
 	}
 	
-	protected byte[] decrypt(byte[] b) throws IOException {
-		if (decrypter == null) throw new IllegalStateException("Key exchange not complete");
-		synchronized(decrypter) {
+	private VarInputStream plain(Path path, byte[] b, long stamp) {
+		var c = cache;
+		if (c != null) c.put(path, b, stamp);
+		return new VarInputStream(b);
+	}
+	
+	@Override
+	protected void out(byte[] b, Path path) throws IOException {
+		var latency = metrics.writes();
+		if (latency == null) {
+			put(b, path);
+			return;
+		}
+		
+		var event = new StoreEvent(StoreEvent.WRITE);
+		event.begin();
+		var t = System.nanoTime();
+		put(b, path);
+		latency.record(System.nanoTime() - t);
+		metrics.bytesWritten.add(b.length);
+		if (event.shouldCommit()) {
+			event.path = path.toString();
+			event.bytes = b.length;
+			event.commit();
+		}
+	}
+	
+	private void put(byte[] b, Path path) throws IOException {
+		checkName(path);
+		var q = queue;
+		if (q != null) {
+			q.put(path, b);
+		} else {
+			write(b, path);
+		}
+	}
+	
+	// temporary files and metadata are hidden from listings
+	private static Path checkName(Path path) {
+		if (StoreLayout.isReserved(path)) {
+			throw new IllegalArgumentException("Reserved object name: " + path.getFileName());
+		}
+		return path;
+	}
+	
+	private void write(byte[] b, Path path) throws IOException {
+		locks.lock(path);
+		try{
+			write0(b, path);
+		}finally{
+			locks.unlock(path);
+		}
+	}
+	
+	// callers hold the lock of the path
+	void write0(byte[] b, Path path) throws IOException {
+		var d = dedup;
+		// released once the object no longer references it
+		var previous = d == null ? null : codec.reference(files.file(path));
+		var hash = d == null || b.length < Deduplicator.MIN_SIZE ? null : d.store(b, codec, commits);
+		var written = false;
+		var out = open(path);
+		try{
 			try{
-				decrypter.init(key);
-				return decrypter.decrypt(b);
-			}catch(Exception e){
-				e.printStackTrace();
-				throw new IOException(e);
+				if (hash == null) {
+					codec.encode(b, out);
+				} else {
+					out.write(codec.seal(hash, RecordHeader.FLAG_REFERENCE));
+				}
+			}catch(IOException | RuntimeException e){
+				out.abort();
+				throw e;
 			}
+			out.close();
+			written = true;
+			files.unflatten(path);
+		}finally{
+			invalidate(path);
+			if (hash != null && !written) d.release(hash);
+		}
+		if (previous != null) d.release(previous);
+	}
+	
+	private void delete(Path path) throws IOException {
+		locks.lock(path);
+		try{
+			var d = dedup;
+			var previous = d == null ? null : codec.reference(files.file(path));
+			Files.deleteIfExists(files.locate(path));
+			files.unflatten(path);
+			invalidate(path);
+			var i = index;
+			if (i != null) i.remove(path.getFileName().toString());
+			if (previous != null) d.release(previous);
+		}finally{
+			locks.unlock(path);
 		}
 	}
+	
+	void invalidate(Path path) {
+		var c = cache;
+		if (c != null) c.invalidate(path);
+	}
+	
+	DurableOutputStream open(Path path) throws IOException {
+		var file = files.locate(path);
+		var i = index;
+		if (i == null) return create(file);
+		
+		// indexed before the file exists, a present name being checked anyway
+		var name = path.getFileName().toString();
+		i.adding(name);
+		try{
+			return new DurableOutputStream(file, commits, () -> i.written(name));
+		}catch(IOException | RuntimeException e){
+			i.written(name);
+			throw e;
+		}
+	}
+	
+	// replaced atomically, so readers see either version of the record
+	DurableOutputStream create(Path file) throws IOException {
+		return new DurableOutputStream(file, commits);
+	}
+	
+	protected byte[] encrypt(byte[] b) throws IOException {
+		return codec.seal(b, 0);
+	}
+	
+	protected byte[] decrypt(byte[] b) throws IOException {
+		return codec.decrypt(b);
+	}
 
 	static final class AESCipher {
 		private static final String AES = "AES";
 		private static final String ALGORITHM = "AES/GCM/NoPadding";
 		private static final int LEN_TAG = 128;
-		private static final int LEN_NONCE = 12;
+		static final int LEN_NONCE = 12;
+		static final int TAG_SIZE = LEN_TAG / 8;
+		static final int BLOCK_SIZE = 16;
 		private final SecureRandom secureRandom = new SecureRandom();
 		private final javax.crypto.Cipher cipher;
-		private SecretKeySpec spec;
+		private final SecretKeySpec spec;
 
-		AESCipher() {
+		AESCipher(SecretKeySpec spec) {
 			try{
 				cipher = javax.crypto.Cipher.getInstance(ALGORITHM, "SunJCE");
 			}catch(Exception e){
 				throw new RuntimeException("Cipher not available: "+ALGORITHM);
 			}
+			this.spec = spec;
 		}
 		
-		void init(byte[] key) {
+		// cropped once and shared by every cipher in the pool
+		static SecretKeySpec spec(byte[] key) {
 			var sk = crop(key, AES_KEY_SIZE);
-			spec = new SecretKeySpec(sk, AES);
+			return new SecretKeySpec(sk, AES);
 		}
 		
 		int getBlockSize() {
@@ -170,6 +919,48 @@ public class EncryptedStoreDelegate extends StoreDelegate {
 			}
 		}
 
+		int encrypt(byte[] nonce, byte[] aad, byte[] b, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {		
+			try{
+				cipher.init(ENCRYPT_MODE, spec, new GCMParameterSpec(LEN_TAG, nonce));
+				cipher.updateAAD(aad);
+				return cipher.doFinal(b, off, len, out, outOff);
+			}catch(Exception e){
+				throw new GeneralSecurityException("Encryption failed", e);
+			}
+		}
+
+		int decrypt(byte[] nonce, byte[] aad, byte[] b, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {		
+			try{
+				cipher.init(DECRYPT_MODE, spec, new GCMParameterSpec(LEN_TAG, nonce));
+				cipher.updateAAD(aad);
+				return cipher.doFinal(b, off, len, out, outOff);
+			}catch(Exception e){
+				throw new GeneralSecurityException("Decryption failed", e);
+			}
+		}
+
+		// decrypts a single-shot record into dst without intermediate copies
+		int decrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+			try{
+				var nonce = new byte[LEN_NONCE];
+				src.get(nonce);
+				cipher.init(DECRYPT_MODE, spec, new GCMParameterSpec(LEN_TAG, nonce));
+				return cipher.doFinal(src, dst);
+			}catch(Exception e){
+				throw new GeneralSecurityException("Decryption failed", e);
+			}
+		}
+
+		int decrypt(byte[] nonce, byte[] aad, ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+			try{
+				cipher.init(DECRYPT_MODE, spec, new GCMParameterSpec(LEN_TAG, nonce));
+				cipher.updateAAD(aad);
+				return cipher.doFinal(src, dst);
+			}catch(Exception e){
+				throw new GeneralSecurityException("Decryption failed", e);
+			}
+		}
+
 		void reset() {
 			throw new UnsupportedOperationException("Cipher reset not supported");
 		}
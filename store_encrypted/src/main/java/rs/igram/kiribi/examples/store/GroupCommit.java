@@ -0,0 +1,129 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Group commit of directory syncs.
+ *
+ * <p>Writers which renamed a file into a directory join the open batch of that
+ * directory. The first writer of a batch leads it: it waits for the commit
+ * window and for the previous sync of the directory to finish, closes the batch
+ * and syncs the directory once on behalf of every member.
+ *
+ * @author Michael Sargent
+ */
+final class GroupCommit {
+	private final Map<Path,State> states = new HashMap<>();
+	private final AtomicLong syncs = new AtomicLong();
+	private final long window;
+	
+	GroupCommit(long window) {
+		this.window = window;
+	}
+	
+	// returns once the directory has been synced after the call was made
+	void sync(Path dir) throws IOException {
+		State state;
+		CompletableFuture<Void> batch;
+		boolean leader;
+		synchronized(this) {
+			state = states.computeIfAbsent(dir, d -> new State());
+			batch = state.open;
+			leader = batch == null;
+			if (leader) batch = state.open = new CompletableFuture<>();
+		}
+		
+		if (leader) {
+			if (window > 0) LockSupport.parkNanos(window);
+			var interrupted = false;
+			synchronized(this) {
+				// followers keep joining while the previous batch syncs
+				while (state.syncing) {
+					try{
+						wait();
+					}catch(InterruptedException e){
+						interrupted = true;
+					}
+				}
+				state.syncing = true;
+				state.open = null;
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			try{
+				force(dir);
+				batch.complete(null);
+			}catch(IOException | RuntimeException e){
+				batch.completeExceptionally(e);
+			}finally{
+				synchronized(this) {
+					state.syncing = false;
+					if (state.open == null) states.remove(dir);
+					notifyAll();
+				}
+			}
+		}
+		
+		try{
+			batch.join();
+		}catch(CompletionException e){
+			throw new IOException("Directory sync failed: " + dir, e.getCause());
+		}
+	}
+	
+	long syncs() {
+		return syncs.get();
+	}
+	
+	private void force(Path dir) throws IOException {
+		FileChannel channel;
+		try{
+			channel = FileChannel.open(dir, READ);
+		}catch(IOException e){
+			// directories cannot be opened on every platform
+			return;
+		}
+		try(channel){
+			channel.force(true);
+			syncs.incrementAndGet();
+		}
+	}
+	
+	private static final class State {
+		CompletableFuture<Void> open;
+		boolean syncing;
+	}
+}
@@ -0,0 +1,86 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Striped read/write locks of the objects of a store.
+ *
+ * <p>An object is read by any number of readers or written by a single
+ * writer, objects of different stripes never contending. A stripe is a fair
+ * semaphore of which a reader takes one permit and a writer all of them, so
+ * waiting writers are not starved by a stream of readers.
+ *
+ * <p>Permits are not owned by a thread, so a lock taken when a stream is
+ * opened can be released by whichever thread closes it. Locks are not
+ * reentrant.
+ *
+ * @author Michael Sargent
+ */
+final class KeyLocks {
+	// the maximum number of concurrent readers of a stripe
+	private static final int PERMITS = 1 << 16;
+	
+	private final Semaphore[] stripes;
+	private final int mask;
+	
+	KeyLocks() {
+		this(256);
+	}
+	
+	KeyLocks(int stripes) {
+		if (stripes < 1 || Integer.bitCount(stripes) != 1) {
+			throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+		}
+		
+		this.stripes = new Semaphore[stripes];
+		mask = stripes - 1;
+		for (int i = 0; i < stripes; i++) this.stripes[i] = new Semaphore(PERMITS, true);
+	}
+	
+	// takes the write lock
+	void lock(Path path) {
+		stripe(path).acquireUninterruptibly(PERMITS);
+	}
+	
+	void unlock(Path path) {
+		stripe(path).release(PERMITS);
+	}
+	
+	void lockRead(Path path) {
+		stripe(path).acquireUninterruptibly();
+	}
+	
+	void unlockRead(Path path) {
+		stripe(path).release();
+	}
+	
+	private Semaphore stripe(Path path) {
+		var h = path.hashCode() * 0x9E3779B9;
+		return stripes[(h ^ (h >>> 16)) & mask];
+	}
+}
@@ -0,0 +1,134 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.spec.SecretKeySpec;
+
+import rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher;
+
+/**
+ * Keys of an encrypted store, identified by an integer id.
+ *
+ * <p>Records are encrypted with the current key and tagged with its id, so
+ * records written with any key still in the keyring remain readable. Records
+ * written before keys had ids belong to the {@link #INITIAL initial} key.
+ *
+ * @author Michael Sargent
+ */
+public final class Keyring {
+	/** The id of the initial key. */
+	public static final int INITIAL = 0;
+	
+	private final Map<Integer,Key> keys = new ConcurrentHashMap<>();
+	private volatile Key current;
+	
+	/**
+	 * Creates a keyring holding the initial key, which is made current.
+	 *
+	 * @param key The initial key.
+	 */
+	public Keyring(byte[] key) {
+		current = new Key(INITIAL, key);
+		keys.put(INITIAL, current);
+	}
+	
+	/**
+	 * Adds a key. The key decrypts records tagged with its id, and only
+	 * encrypts once made current by a rotation.
+	 *
+	 * @param id The id of the key.
+	 * @param key The key.
+	 * @throws IllegalArgumentException if the id is already used.
+	 * @see EncryptedStoreDelegate#rotate(int, int, long)
+	 */
+	public void add(int id, byte[] key) {
+		if (keys.putIfAbsent(id, new Key(id, key)) != null) {
+			throw new IllegalArgumentException("Duplicate key id: " + id);
+		}
+	}
+	
+	/**
+	 * Removes a retired key. Records still encrypted with it can no longer be
+	 * read.
+	 *
+	 * @param id The id of the key.
+	 * @throws IllegalStateException if the key is current.
+	 */
+	public void remove(int id) {
+		if (id == current.id) throw new IllegalStateException("Key is current: " + id);
+		keys.remove(id);
+	}
+	
+	/**
+	 * Returns the id of the current key.
+	 *
+	 * @return The id of the current key.
+	 */
+	public int current() {
+		return current.id;
+	}
+	
+	/**
+	 * Returns the ids of the keys in this keyring.
+	 *
+	 * @return The ids of the keys.
+	 */
+	public Set<Integer> ids() {
+		return Set.copyOf(keys.keySet());
+	}
+	
+	void setCurrent(int id) {
+		var key = keys.get(id);
+		if (key == null) throw new IllegalArgumentException("Unknown key id: " + id);
+		current = key;
+	}
+	
+	Key key() {
+		return current;
+	}
+	
+	Key key(int id) throws IOException {
+		var key = keys.get(id);
+		if (key == null) throw new IOException("Unknown key id: " + id);
+		return key;
+	}
+	
+	static final class Key {
+		final int id;
+		final CipherPool ciphers;
+		// keys content hashes, derived so the cipher key is not reused
+		final SecretKeySpec mac;
+		
+		Key(int id, byte[] key) {
+			this.id = id;
+			ciphers = new CipherPool(AESCipher.spec(key));
+			mac = Deduplicator.macKey(key);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of latencies in nanoseconds.
+ *
+ * <p>Values are counted in log-linear buckets in the manner of an HDR
+ * histogram: values below 32 have a bucket each, larger values share 16
+ * buckets per power of two, bounding the relative error of percentiles to
+ * about 6%. Recording allocates nothing.
+ *
+ * @author Michael Sargent
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR = 2 * SUB_COUNT;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	
+	LatencyHistogram() {}
+	
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.increment();
+		sum.add(nanos);
+		if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+	}
+	
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return The number of recorded values.
+	 */
+	public long count() {
+		return count.sum();
+	}
+	
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return The mean in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public double mean() {
+		var n = count.sum();
+		return n == 0 ? 0 : (double)sum.sum() / n;
+	}
+	
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return The largest value in nanoseconds.
+	 */
+	public long max() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the value below which the given percentage of the recorded
+	 * values fall.
+	 *
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The value in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public long percentile(double percentile) {
+		var total = 0L;
+		for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+		if (total == 0) return 0;
+		
+		var rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		var seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(highest(i), max.get());
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Returns a snapshot of this histogram.
+	 *
+	 * @return A snapshot of this histogram.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+	
+	/**
+	 * Clears the recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+	
+	static int index(long value) {
+		if (value < LINEAR) return (int)value;
+		var shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift << SUB_BITS) + (int)(value >>> shift);
+	}
+	
+	// highest value counted in the given bucket
+	static long highest(int index) {
+		if (index < LINEAR) return index;
+		var shift = (index >>> SUB_BITS) - 1;
+		var sub = (index & (SUB_COUNT - 1)) + SUB_COUNT;
+		return ((sub + 1L) << shift) - 1;
+	}
+	
+	/**
+	 * Point in time summary of a histogram, in nanoseconds.
+	 */
+	public static final class Snapshot {
+		private final long count;
+		private final double mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+		private final long max;
+		
+		Snapshot(LatencyHistogram h) {
+			count = h.count();
+			mean = h.mean();
+			p50 = h.percentile(50);
+			p90 = h.percentile(90);
+			p99 = h.percentile(99);
+			p999 = h.percentile(99.9);
+			max = h.max();
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public double getMean() {
+			return mean;
+		}
+		
+		public long getP50() {
+			return p50;
+		}
+		
+		public long getP90() {
+			return p90;
+		}
+		
+		public long getP99() {
+			return p99;
+		}
+		
+		public long getP999() {
+			return p999;
+		}
+		
+		public long getMax() {
+			return max;
+		}
+	}
+}
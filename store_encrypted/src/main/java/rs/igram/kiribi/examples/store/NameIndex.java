@@ -0,0 +1,289 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Index of the names of a store directory answering negative lookups
+ * without touching the filesystem.
+ *
+ * <p>Names are kept in a Bloom filter, so a name the index reports absent is
+ * certainly absent while one it reports present has to be checked. Names
+ * can not be removed from the filter, so it is rebuilt from a directory
+ * scan in the background once too many names were removed, or once more
+ * names were added than it was sized for. Names of files being written are
+ * pending until the file is in place, and are added to a rebuilt filter
+ * whether or not the scan found their file.
+ *
+ * <p>The filter is saved to a snapshot in the metadata directory of the
+ * store on close along with the modification time of the directory, and is
+ * only loaded back if the directory was not modified since. Files created in the directory by others are picked up by
+ * an optional watch service. A failed background rebuild leaves the previous
+ * filter in use, which still holds every added name, and is reported on
+ * close.
+ *
+ * @author Michael Sargent
+ */
+final class NameIndex implements Closeable {
+	static final String SNAPSHOT = "index";
+	private static final int MAGIC = 0x4B694E49;
+	private static final double FPP = 0.01;
+	private static final long MIN_CAPACITY = 1 << 16;
+	
+	private final StoreLayout layout;
+	private final Path snapshot;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final AtomicLong added = new AtomicLong();
+	private final AtomicLong removed = new AtomicLong();
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+	// names whose file may not be in place yet, with the number of writers
+	private final Map<String,Integer> pending = new ConcurrentHashMap<>();
+	private final ExecutorService rebuilder;
+	private final WatchService watcher;
+	private volatile BloomFilter filter;
+	// receives additions while a rebuild is scanning
+	private BloomFilter next;
+	private volatile long base;
+	// failure of a background rebuild, reported on close
+	private volatile IOException failure;
+	
+	NameIndex(StoreLayout layout, boolean watch) throws IOException {
+		this.layout = layout;
+		snapshot = StoreLayout.meta(layout.dir).resolve(SNAPSHOT);
+		// created before the modification time is taken
+		Files.createDirectories(snapshot.getParent());
+		rebuilder = Executors.newSingleThreadExecutor(r -> {
+			var t = new Thread(r, "kiribi-name-index");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		// watch before scanning so no file slips through
+		watcher = watch ? layout.dir.getFileSystem().newWatchService() : null;
+		if (watcher != null) {
+			for (var dir : layout.dirs()) dir.register(watcher, ENTRY_CREATE);
+		}
+		
+		if (!load()) rebuild();
+		
+		if (watcher != null) {
+			var t = new Thread(this::watch, "kiribi-name-watcher");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	boolean watched() {
+		return watcher != null;
+	}
+	
+	boolean mightContain(String name) {
+		return filter.mightContain(name);
+	}
+	
+	void add(String name) {
+		lock.readLock().lock();
+		try{
+			filter.add(name);
+			if (next != null) next.add(name);
+		}finally{
+			lock.readLock().unlock();
+		}
+		if (base + added.incrementAndGet() > filter.capacity()) schedule();
+	}
+	
+	// adds the name of a file about to be written
+	void adding(String name) {
+		lock.readLock().lock();
+		try{
+			pending.merge(name, 1, Integer::sum);
+		}finally{
+			lock.readLock().unlock();
+		}
+		add(name);
+	}
+	
+	// the file of a pending name was written or discarded
+	void written(String name) {
+		lock.readLock().lock();
+		try{
+			pending.computeIfPresent(name, (k, n) -> n == 1 ? null : n - 1);
+			// placed after the scan may have missed it
+			if (next != null) next.add(name);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	void remove(String name) {
+		if (removed.incrementAndGet() > filter.capacity() / 2) schedule();
+	}
+	
+	// scans the directory into a new filter while additions go to both
+	void rebuild() throws IOException {
+		var capacity = Math.max(MIN_CAPACITY, 2 * (base + added.get() - removed.get()));
+		var n = new BloomFilter(capacity, FPP);
+		lock.writeLock().lock();
+		try{
+			next = n;
+		}finally{
+			lock.writeLock().unlock();
+		}
+		
+		var count = 0L;
+		try{
+			var paths = layout.walk(p -> !StoreLayout.isReserved(p) && !StoreLayout.isShard(p));
+			for (var path : paths) n.add(path.getFileName().toString());
+			count = paths.size();
+		}catch(IOException e){
+			lock.writeLock().lock();
+			next = null;
+			lock.writeLock().unlock();
+			throw e;
+		}
+		
+		lock.writeLock().lock();
+		try{
+			// written before the rebuild started, but not in place when scanned
+			for (var name : pending.keySet()) n.add(name);
+			filter = n;
+			next = null;
+			base = count;
+			added.set(0);
+			removed.set(0);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		rebuilder.shutdown();
+		if (watcher != null) watcher.close();
+		save();
+		var e = failure;
+		if (e != null) throw new IOException("Index rebuild failed", e);
+	}
+	
+	private void schedule() {
+		if (!rebuilding.compareAndSet(false, true)) return;
+		try{
+			rebuilder.execute(() -> {
+				try{
+					rebuild();
+					failure = null;
+				}catch(IOException e){
+					failure = e;
+				}finally{
+					rebuilding.set(false);
+				}
+			});
+		}catch(RuntimeException e){
+			// closed
+			rebuilding.set(false);
+		}
+	}
+	
+	private void watch() {
+		try{
+			while (true) {
+				var key = watcher.take();
+				for (var event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						schedule();
+					} else {
+						var path = (Path)event.context();
+						var name = path.getFileName().toString();
+						if (!StoreLayout.isReserved(path) && !name.startsWith(StoreLayout.SHARD_PREFIX)) add(name);
+					}
+				}
+				if (!key.reset()) return;
+			}
+		}catch(InterruptedException | ClosedWatchServiceException e){
+			// closed
+		}
+	}
+	
+	private boolean load() throws IOException {
+		try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))){
+			if (in.readInt() != MAGIC) return false;
+			if (in.readLong() != modified()) return false;
+			var count = in.readLong();
+			var f = BloomFilter.read(in);
+			filter = f;
+			base = count;
+			return true;
+		}catch(IOException e){
+			// missing or corrupt snapshots are rebuilt
+			return false;
+		}
+	}
+	
+	private void save() throws IOException {
+		var temp = snapshot.resolveSibling(snapshot.getFileName() + DurableOutputStream.TEMP_SUFFIX);
+		lock.writeLock().lock();
+		try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+			out.writeInt(MAGIC);
+			out.writeLong(modified());
+			out.writeLong(base + added.get() - removed.get());
+			filter.write(out);
+		}finally{
+			lock.writeLock().unlock();
+		}
+		Files.move(temp, snapshot, ATOMIC_MOVE, REPLACE_EXISTING);
+	}
+	
+	// latest modification of any directory of the layout
+	private long modified() throws IOException {
+		var modified = 0L;
+		for (var dir : layout.dirs()) {
+			modified = Math.max(modified, Files.getLastModifiedTime(dir).to(TimeUnit.NANOSECONDS));
+		}
+		return modified;
+	}
+}
@@ -0,0 +1,90 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Strategy generating the GCM nonces of records.
+ *
+ * <p>A nonce must never be used twice with the same key. Chunked records
+ * derive the nonces of their chunks by combining the nonce of the record with
+ * the chunk index in its last 4 bytes, so generators leave those bytes free to
+ * vary.
+ *
+ * @author Michael Sargent
+ */
+public interface NonceGenerator {
+	/** The size of a nonce in bytes. */
+	int SIZE = 12;
+	
+	/**
+	 * Returns a generator drawing every nonce from a {@link java.security.SecureRandom}.
+	 *
+	 * @return A random nonce generator.
+	 */
+	static NonceGenerator random() {
+		return new RandomNonceGenerator();
+	}
+	
+	/**
+	 * Returns a counter generator with the default limit, failing once its
+	 * nonces are exhausted.
+	 *
+	 * @return A counter nonce generator.
+	 * @see #counter(long, Runnable)
+	 */
+	static NonceGenerator counter() {
+		return counter(CounterNonceGenerator.MAX_LIMIT, null);
+	}
+	
+	/**
+	 * Returns a generator combining a random prefix drawn once per instance
+	 * with an atomic 32-bit counter, so the secure random source is only used
+	 * when the generator is created. The counter is limited to 32 bits, the
+	 * last 4 bytes of the nonce being left for chunk indices. Nonces are
+	 * unique within an instance, and across instances unless their random
+	 * prefixes and counter ranges collide. A store using the generator counts
+	 * its nonces per key instead, so they are unique under the key and the
+	 * limit bounds the key across reopenings. Once the limit is reached the
+	 * exhausted callback is run once, typically to rotate the key, and further
+	 * nonces fail.
+	 *
+	 * @param limit The number of nonces to issue, at most 2^32.
+	 * @param exhausted Callback run when the nonces are exhausted, or null.
+	 * @return A counter nonce generator.
+	 */
+	static NonceGenerator counter(long limit, Runnable exhausted) {
+		return new CounterNonceGenerator(limit, exhausted);
+	}
+	
+	/**
+	 * Writes the next nonce to the given array.
+	 *
+	 * @param nonce The array of {@link #SIZE} bytes to write the nonce to.
+	 * @throws GeneralSecurityException if no more nonces can be generated.
+	 */
+	void next(byte[] nonce) throws GeneralSecurityException;
+}
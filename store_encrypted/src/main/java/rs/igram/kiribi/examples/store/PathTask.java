@@ -0,0 +1,74 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Fork-join task applying an action to a range of paths in parallel,
+ * counting the paths it applied to.
+ *
+ * @author Michael Sargent
+ */
+final class PathTask extends RecursiveTask<Integer> {
+	private static final long serialVersionUID = 1L;
+	private static final int THRESHOLD = 16;
+	
+	private final List<Path> paths;
+	private final int from;
+	private final int to;
+	private final Predicate<Path> action;
+	
+	PathTask(List<Path> paths, Predicate<Path> action) {
+		this(paths, 0, paths.size(), action);
+	}
+	
+	private PathTask(List<Path> paths, int from, int to, Predicate<Path> action) {
+		this.paths = paths;
+		this.from = from;
+		this.to = to;
+		this.action = action;
+	}
+	
+	@Override
+	protected Integer compute() {
+		if (to - from > THRESHOLD) {
+			var mid = (from + to) >>> 1;
+			var left = new PathTask(paths, from, mid, action);
+			left.fork();
+			var right = new PathTask(paths, mid, to, action).compute();
+			return right + left.join();
+		}
+		
+		var count = 0;
+		for (int i = from; i < to; i++) {
+			if (action.test(paths.get(i))) count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,146 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Byte weighted LRU cache of decrypted records.
+ *
+ * <p>The cache is split into segments, each with its own lock and an equal
+ * share of the memory budget. Every invalidation of a segment advances its
+ * stamp. A reader takes the stamp before going to disk, and its result is only
+ * cached if no invalidation happened in between, so a slow read can never
+ * cache a stale record.
+ *
+ * <p>When zeroing is enabled evicted and invalidated records are overwritten
+ * with zeros, and cached arrays are never shared with readers.
+ *
+ * @author Michael Sargent
+ */
+final class PlaintextCache {
+	private static final int SEGMENTS = 16;
+	
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final StoreMetrics metrics;
+	private final boolean zero;
+	
+	PlaintextCache(long budget, boolean zero, StoreMetrics metrics) {
+		if (budget < 1) throw new IllegalArgumentException("Invalid budget: " + budget);
+		
+		this.zero = zero;
+		this.metrics = metrics;
+		for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(Math.max(1, budget / SEGMENTS));
+	}
+	
+	// returns null on a miss
+	byte[] get(Path path) {
+		var b = segment(path).get(path);
+		if (b == null) {
+			metrics.cacheMisses.increment();
+			return null;
+		}
+		metrics.cacheHits.increment();
+		return zero ? b.clone() : b;
+	}
+	
+	long stamp(Path path) {
+		return segment(path).stamp();
+	}
+	
+	void put(Path path, byte[] b, long stamp) {
+		segment(path).put(path, zero ? b.clone() : b, stamp);
+	}
+	
+	void invalidate(Path path) {
+		segment(path).invalidate(path);
+	}
+	
+	private Segment segment(Path path) {
+		var h = path.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+	
+	private final class Segment {
+		private final LinkedHashMap<Path,byte[]> map = new LinkedHashMap<>(16, 0.75f, true);
+		private final long budget;
+		private long weight;
+		private long stamp;
+		
+		Segment(long budget) {
+			this.budget = budget;
+		}
+		
+		synchronized byte[] get(Path path) {
+			return map.get(path);
+		}
+		
+		synchronized long stamp() {
+			return stamp;
+		}
+		
+		synchronized void put(Path path, byte[] b, long stamp) {
+			if (stamp != this.stamp || b.length > budget) {
+				discard(b);
+				return;
+			}
+			
+			var previous = map.put(path, b);
+			if (previous != null) unlink(previous);
+			link(b);
+			
+			var i = map.values().iterator();
+			while (weight > budget) {
+				var eldest = i.next();
+				i.remove();
+				unlink(eldest);
+				metrics.cacheEvictions.increment();
+			}
+		}
+		
+		synchronized void invalidate(Path path) {
+			stamp++;
+			var b = map.remove(path);
+			if (b != null) unlink(b);
+		}
+		
+		private void link(byte[] b) {
+			weight += b.length;
+			metrics.cachedBytes.add(b.length);
+		}
+		
+		private void unlink(byte[] b) {
+			weight -= b.length;
+			metrics.cachedBytes.add(-b.length);
+			discard(b);
+		}
+		
+		private void discard(byte[] b) {
+			if (zero) Arrays.fill(b, (byte)0);
+		}
+	}
+}
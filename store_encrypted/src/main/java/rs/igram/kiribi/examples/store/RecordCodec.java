@@ -0,0 +1,304 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+import rs.igram.kiribi.io.VarInputStream;
+
+import rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher;
+
+/**
+ * Encoder and decoder of the records of an encrypted store.
+ *
+ * <p>Objects are optionally compressed, then sealed in a single compact
+ * record, or encrypted chunk by chunk once larger than the chunk size.
+ * Records are encrypted with the current key of the keyring under nonces
+ * of the nonce generator, and decrypted with the key they are tagged with.
+ * Counter nonce generators count the nonces of each key in a state file.
+ * Legacy block padded records are still decrypted.
+ *
+ * @author Michael Sargent
+ */
+final class RecordCodec {
+	static final String NONCES = "nonces.";
+	
+	private final Keyring keyring;
+	private final StoreMetrics metrics;
+	private final Map<Integer,Compressor> compressors = new ConcurrentHashMap<>();
+	private volatile int chunkSize = EncryptedStoreDelegate.DEFAULT_CHUNK_SIZE;
+	// directory of the nonce states of the keys
+	private final Path state;
+	private volatile NonceGenerator nonces;
+	private volatile Compressor compressor;
+	private volatile int compressionThreshold;
+	
+	RecordCodec(Keyring keyring, StoreMetrics metrics, Path state) {
+		this.keyring = keyring;
+		this.metrics = metrics;
+		this.state = state;
+		compressors.put(Compressor.DEFLATE.id(), Compressor.DEFLATE);
+		nonces = bind(NonceGenerator.counter());
+	}
+	
+	void setChunkSize(int chunkSize) {
+		RecordHeader.checkChunkSize(chunkSize);
+		this.chunkSize = chunkSize;
+	}
+	
+	void setNonceGenerator(NonceGenerator nonces) {
+		if (nonces == null) throw new NullPointerException("nonces");
+		this.nonces = bind(nonces);
+	}
+	
+	// a new key has its own nonce budget
+	void renewNonces() {
+		nonces = bind(nonces);
+	}
+	
+	// counts the nonces of a counter generator in the state of the current key
+	private NonceGenerator bind(NonceGenerator n) {
+		if (!(n instanceof CounterNonceGenerator)) return n;
+		return ((CounterNonceGenerator)n).renew(state.resolve(NONCES + keyring.current()));
+	}
+	
+	void setCompression(Compressor compressor, int threshold) {
+		if (compressor != null) register(compressor);
+		compressionThreshold = threshold;
+		this.compressor = compressor;
+	}
+	
+	void register(Compressor compressor) {
+		var id = compressor.id();
+		if (id < 1 || id > RecordHeader.COMPRESSION_MASK) {
+			throw new IllegalArgumentException("Invalid compressor id: " + id);
+		}
+		compressors.put(id, compressor);
+	}
+	
+	void encode(byte[] b, OutputStream out) throws IOException {
+		var c = compressor;
+		var compressed = c != null && b.length >= compressionThreshold ? compress(b, c) : null;
+		var flags = compressed == null ? 0 : c.id();
+		var length = compressed == null ? b.length : compressed.size();
+		if (length > chunkSize) {
+			var chunks = chunked(out, flags);
+			if (compressed == null) {
+				chunks.write(b);
+			} else {
+				compressed.writeTo(chunks);
+			}
+			chunks.finish();
+		} else {
+			out.write(seal(compressed == null ? b : compressed.toByteArray(), flags));
+		}
+	}
+	
+	// a chunked record of unknown length, compressed unless compression is disabled
+	OutputStream stream(OutputStream out) throws IOException {
+		var c = compressor;
+		return c == null ? chunked(out, 0) : c.compress(chunked(out, c.id()));
+	}
+	
+	ChunkedOutputStream chunked(OutputStream out, int flags) throws IOException {
+		var key = keyring.key();
+		return new ChunkedOutputStream(out, RecordHeader.chunked(chunkSize, nonce(), flags, key.id), key.ciphers, metrics);
+	}
+	
+	// returns null unless compression makes the object smaller
+	private ByteArrayOutputStream compress(byte[] b, Compressor c) throws IOException {
+		var t = System.nanoTime();
+		var buf = new ByteArrayOutputStream(b.length / 2);
+		try(var out = c.compress(buf)){
+			out.write(b);
+		}
+		metrics.compressed(b.length, buf.size(), System.nanoTime() - t);
+		return buf.size() < b.length ? buf : null;
+	}
+	
+	// compact record: header | ciphertext | tag
+	byte[] seal(byte[] b, int flags) throws IOException {
+		var key = keyring.key();
+		var nonce = nonce();
+		var aad = RecordHeader.compact(b.length, nonce, flags, key.id).encoded();
+		var record = Arrays.copyOf(aad, aad.length + b.length + AESCipher.TAG_SIZE);
+		try{
+			key.ciphers.apply(c -> c.encrypt(nonce, aad, b, 0, b.length, record, aad.length), metrics.encryption(), metrics.lockWait);
+		}catch(Exception e){
+			throw new IOException(e);
+		}
+		return record;
+	}
+	
+	private byte[] nonce() throws IOException {
+		var nonce = new byte[AESCipher.LEN_NONCE];
+		try{
+			nonces.next(nonce);
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}catch(UncheckedIOException e){
+			// the nonce state could not be saved
+			throw e.getCause();
+		}
+		return nonce;
+	}
+	
+	byte[] unseal(RecordHeader header, byte[] b) throws IOException {
+		var off = header.size();
+		var length = header.length();
+		if (b.length - off != length + AESCipher.TAG_SIZE) throw new IOException("Invalid record length");
+		var ciphers = keyring.key(header.keyId()).ciphers;
+		var nonce = header.nonce();
+		var aad = header.encoded();
+		var plain = new byte[length];
+		try{
+			ciphers.apply(c -> c.decrypt(nonce, aad, b, off, length + AESCipher.TAG_SIZE, plain, 0), metrics.decryption(), metrics.lockWait);
+		}catch(Exception e){
+			throw new IOException(e);
+		}
+		return plain;
+	}
+	
+	// legacy records: nonce | ciphertext of the block padded object | tag
+	byte[] decrypt(byte[] b) throws IOException {
+		var header = RecordHeader.read(ByteBuffer.wrap(b));
+		if (header != null && !header.chunked()) {
+			try{
+				return unseal(header, b);
+			}catch(IOException e){
+				// fall through to the legacy format
+			}
+		}
+		var ciphers = keyring.key(Keyring.INITIAL).ciphers;
+		try{
+			return ciphers.apply(c -> c.decrypt(b), metrics.decryption(), metrics.lockWait);
+		}catch(Exception e){
+			throw new IOException(e);
+		}
+	}
+	
+	// decrypts the chunks of a chunked record without decompressing them
+	ChunkedInputStream chunks(InputStream in, RecordHeader header) throws IOException {
+		return new ChunkedInputStream(in, header, keyring.key(header.keyId()).ciphers, metrics);
+	}
+	
+	// decrypts and decompresses a chunked record
+	InputStream open(InputStream in, RecordHeader header) throws IOException {
+		var chunks = chunks(in, header);
+		var id = header.compression();
+		if (id == 0) return chunks;
+		var compressor = compressors.get(id);
+		if (compressor == null) {
+			chunks.close();
+			throw new IOException("Unknown compressor: " + id);
+		}
+		return new DecompressingInputStream(chunks, compressor, metrics);
+	}
+	
+	byte[] decompress(byte[] plain, int id) throws IOException {
+		if (id == 0) return plain;
+		var compressor = compressors.get(id);
+		if (compressor == null) throw new IOException("Unknown compressor: " + id);
+		try(var in = new DecompressingInputStream(new ByteArrayInputStream(plain), compressor, metrics)){
+			return in.readAllBytes();
+		}
+	}
+	
+	// returns the blob hash of a reference record, null for other records
+	byte[] reference(Path file) {
+		try(var in = new BufferedInputStream(Files.newInputStream(file))){
+			in.mark(RecordHeader.MAX_SIZE);
+			var header = RecordHeader.read(in);
+			if (header == null || header.chunked() || !header.reference()) return null;
+			in.reset();
+			return unseal(header, in.readNBytes(header.size() + Deduplicator.HASH_SIZE + AESCipher.TAG_SIZE + 1));
+		}catch(IOException e){
+			// absent, or a legacy record starting with the magic by chance
+			return null;
+		}
+	}
+	
+	// returns null for records which are read as a stream
+	VarInputStream mapped(Path file, DirectBufferPool pool) throws IOException {
+		try(var channel = FileChannel.open(file, READ)){
+			var size = channel.size();
+			if (size > Integer.MAX_VALUE) return null;
+			
+			var src = channel.map(READ_ONLY, 0, size);
+			if (size >= 4 && src.getInt(0) == RecordHeader.MAGIC) return compact(src, pool);
+			metrics.read(size);
+			
+			var ciphers = keyring.key(Keyring.INITIAL).ciphers;
+			var dst = pool.acquire((int)size);
+			try{
+				ciphers.apply(c -> c.decrypt(src, dst), metrics.decryption(), metrics.lockWait);
+			}catch(Exception e){
+				pool.release(dst);
+				throw new IOException(e);
+			}
+			return new VarInputStream(new ByteBufferInputStream(dst.flip(), pool));
+		}
+	}
+	
+	// returns null unless the record is an uncompressed compact record
+	private VarInputStream compact(ByteBuffer src, DirectBufferPool pool) throws IOException {
+		var header = RecordHeader.read(src.duplicate());
+		if (header == null || header.chunked() || header.compression() != 0 || header.reference()) return null;
+		var length = header.length();
+		if (src.capacity() != header.size() + length + AESCipher.TAG_SIZE) return null;
+		
+		var ciphers = keyring.key(header.keyId()).ciphers;
+		var nonce = header.nonce();
+		var aad = header.encoded();
+		src.position(header.size());
+		var dst = pool.acquire(length);
+		try{
+			ciphers.apply(c -> c.decrypt(nonce, aad, src, dst), metrics.decryption(), metrics.lockWait);
+		}catch(Exception e){
+			// left to the stream path, which also reads legacy records
+			pool.release(dst);
+			return null;
+		}
+		metrics.read(src.capacity());
+		return new VarInputStream(new ByteBufferInputStream(dst.flip(), pool));
+	}
+}
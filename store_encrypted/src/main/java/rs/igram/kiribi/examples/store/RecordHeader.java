@@ -0,0 +1,207 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher.LEN_NONCE;
+
+/**
+ * Header of a versioned encrypted record.
+ *
+ * <p>Records written before the header was introduced start directly with a
+ * random GCM nonce and block padded plaintext, and are reported as legacy
+ * records.
+ *
+ * <p>Chunked records are followed by their sealed chunks, compact records by
+ * their unpadded ciphertext, the header itself being authenticated as AAD.
+ *
+ * <pre>
+ * chunked: magic (4) | version (1) | flags (1) | chunk size (4) | base nonce (12) [| key id (4)]
+ * compact: magic (4) | version (1) | flags (1) | plaintext length (4) | nonce (12) [| key id (4)]
+ * </pre>
+ *
+ * <p>The key id is only present if flagged, records without it being
+ * encrypted with the {@link Keyring#INITIAL initial} key. Compact records
+ * flagged as references hold the content hash of a deduplicated blob.
+ *
+ * @author Michael Sargent
+ */
+final class RecordHeader {
+	static final int MAGIC = 0x4B695269;
+	static final byte VERSION_CHUNKED = 1;
+	static final byte VERSION_COMPACT = 2;
+	static final int MIN_CHUNK_SIZE = 1 << 10;
+	static final int MAX_CHUNK_SIZE = 1 << 24;
+	static final int SIZE = 4 + 1 + 1 + 4 + LEN_NONCE;
+	static final int MAX_SIZE = SIZE + 4;
+	// id of the compressor, 0 if uncompressed
+	static final int COMPRESSION_MASK = 0x0f;
+	static final int FLAG_KEY_ID = 0x10;
+	static final int FLAG_REFERENCE = 0x20;
+	
+	final byte version;
+	final byte flags;
+	// chunk size of chunked records, plaintext length of compact records
+	private final int size;
+	private final byte[] nonce;
+	private final int keyId;
+	private final byte[] encoded;
+	
+	private RecordHeader(byte version, byte flags, int size, byte[] nonce, int keyId) {
+		this.version = version;
+		this.flags = flags;
+		this.size = size;
+		this.nonce = nonce;
+		this.keyId = keyId;
+		
+		var buf = ByteBuffer.allocate((flags & FLAG_KEY_ID) == 0 ? SIZE : MAX_SIZE)
+			.putInt(MAGIC)
+			.put(version)
+			.put(flags)
+			.putInt(size)
+			.put(nonce);
+		if (buf.hasRemaining()) buf.putInt(keyId);
+		encoded = buf.array();
+	}
+	
+	static RecordHeader chunked(int chunkSize, byte[] nonce, int flags, int keyId) {
+		checkChunkSize(chunkSize);
+		return new RecordHeader(VERSION_CHUNKED, flags(flags, keyId), chunkSize, nonce.clone(), keyId);
+	}
+	
+	static RecordHeader compact(int length, byte[] nonce, int flags, int keyId) {
+		return new RecordHeader(VERSION_COMPACT, flags(flags, keyId), length, nonce.clone(), keyId);
+	}
+	
+	private static byte flags(int flags, int keyId) {
+		return (byte)(keyId == Keyring.INITIAL ? flags : flags | FLAG_KEY_ID);
+	}
+	
+	static void checkChunkSize(int chunkSize) {
+		if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+	}
+	
+	// returns null if the stream does not start with a known header
+	static RecordHeader read(InputStream in) throws IOException {
+		var b = in.readNBytes(SIZE);
+		if (b.length < SIZE) return null;
+		if ((b[5] & FLAG_KEY_ID) != 0) {
+			var id = in.readNBytes(4);
+			if (id.length < 4) return null;
+			b = Arrays.copyOf(b, MAX_SIZE);
+			System.arraycopy(id, 0, b, SIZE, 4);
+		}
+		return read(ByteBuffer.wrap(b));
+	}
+	
+	// returns null if the buffer does not start with a known header
+	static RecordHeader read(ByteBuffer buf) {
+		if (buf.remaining() < SIZE || buf.getInt() != MAGIC) return null;
+		var version = buf.get();
+		var flags = buf.get();
+		var size = buf.getInt();
+		switch(version){
+		case VERSION_CHUNKED:
+			if (size < MIN_CHUNK_SIZE || size > MAX_CHUNK_SIZE) return null;
+			break;
+		case VERSION_COMPACT:
+			if (size < 0) return null;
+			break;
+		default:
+			return null;
+		}
+		var nonce = new byte[LEN_NONCE];
+		buf.get(nonce);
+		var keyId = Keyring.INITIAL;
+		if ((flags & FLAG_KEY_ID) != 0) {
+			if (buf.remaining() < 4) return null;
+			keyId = buf.getInt();
+		}
+		
+		return new RecordHeader(version, flags, size, nonce, keyId);
+	}
+	
+	boolean chunked() {
+		return version == VERSION_CHUNKED;
+	}
+	
+	int chunkSize() {
+		return size;
+	}
+	
+	int length() {
+		return size;
+	}
+	
+	byte[] nonce() {
+		return nonce.clone();
+	}
+	
+	int keyId() {
+		return keyId;
+	}
+	
+	// encoded size of the header
+	int size() {
+		return encoded.length;
+	}
+	
+	int compression() {
+		return flags & COMPRESSION_MASK;
+	}
+	
+	boolean reference() {
+		return (flags & FLAG_REFERENCE) != 0;
+	}
+	
+	// the flags carried over when the record is re-encrypted
+	int content() {
+		return flags & (COMPRESSION_MASK | FLAG_REFERENCE);
+	}
+	
+	byte[] encoded() {
+		return encoded.clone();
+	}
+	
+	// header followed by the final chunk flag
+	byte[] aad() {
+		return Arrays.copyOf(encoded, encoded.length + 1);
+	}
+	
+	// base nonce xor chunk index
+	void nonce(long index, byte[] out) {
+		System.arraycopy(nonce, 0, out, 0, LEN_NONCE);
+		for (int i = LEN_NONCE - 1; i >= LEN_NONCE - 8; i--) {
+			out[i] ^= (byte)index;
+			index >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Report of a scrub of an encrypted store.
+ *
+ * <p>A report is updated while the scrub runs, so it also reports progress.
+ *
+ * @author Michael Sargent
+ * @see EncryptedStoreDelegate#scrub(int, long)
+ */
+public final class ScrubReport {
+	private final long total;
+	private final long start = System.nanoTime();
+	private final LongAdder scanned = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final Map<Path,String> corrupted = new ConcurrentHashMap<>();
+	private volatile long end;
+	
+	ScrubReport(long total) {
+		this.total = total;
+	}
+	
+	void verified(long n) {
+		bytes.add(n);
+		scanned.increment();
+	}
+	
+	void corrupted(Path path, String reason) {
+		corrupted.put(path, reason);
+		scanned.increment();
+	}
+	
+	ScrubReport finish() {
+		end = System.nanoTime();
+		return this;
+	}
+	
+	/**
+	 * Returns the number of files to scrub.
+	 *
+	 * @return The number of files to scrub.
+	 */
+	public long total() {
+		return total;
+	}
+	
+	/**
+	 * Returns the number of files scrubbed so far.
+	 *
+	 * @return The number of scrubbed files.
+	 */
+	public long scanned() {
+		return scanned.sum();
+	}
+	
+	/**
+	 * Returns the number of bytes of the records authenticated so far.
+	 *
+	 * @return The number of authenticated bytes.
+	 */
+	public long bytes() {
+		return bytes.sum();
+	}
+	
+	/**
+	 * Returns the time the scrub took, or has taken so far.
+	 *
+	 * @return The elapsed time in nanoseconds.
+	 */
+	public long nanos() {
+		var e = end;
+		return (e == 0 ? System.nanoTime() : e) - start;
+	}
+	
+	/**
+	 * Returns the scrub throughput.
+	 *
+	 * @return The throughput in bytes per second.
+	 */
+	public double throughput() {
+		var nanos = nanos();
+		return nanos == 0 ? 0 : bytes() * 1e9 / nanos;
+	}
+	
+	/**
+	 * Returns the files which failed authentication, truncated files among
+	 * them, along with the reason.
+	 *
+	 * @return The corrupted files and the reasons.
+	 */
+	public Map<Path,String> corrupted() {
+		return Map.copyOf(corrupted);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("scanned %d/%d, %d bytes at %.0f B/s, %d corrupted", scanned(), total, bytes(), throughput(), corrupted.size());
+	}
+}
@@ -0,0 +1,477 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.store.*;
+
+import static rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher.LEN_NONCE;
+import static rs.igram.kiribi.examples.store.EncryptedStoreDelegate.AESCipher.TAG_SIZE;
+
+/**
+ * Store delegate packing many small encrypted objects into large segment files.
+ *
+ * <p>Objects are appended as encrypted records to the active segment, which is
+ * rolled once it exceeds the segment size. An in-memory index maps each name to
+ * the location of its latest record and is rebuilt by replaying the segments
+ * when the store is opened. Removals append a tombstone. A background task
+ * compacts segments which are mostly dead by copying their live records forward
+ * and deleting them. A failure of the background compaction is reported once
+ * by the next put, removal or close.
+ *
+ * <pre>
+ * length (4) | crc (4) | type (1) | name length (2) | name | nonce (12) | ciphertext
+ * </pre>
+ *
+ * @author Michael Sargent
+ */
+public class SegmentStoreDelegate extends StoreDelegate implements Closeable {
+	// 64 MB
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	// compact segments with less than half of their bytes live
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+	
+	static final String SUFFIX = ".seg";
+	
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int HEADER = 4 + 4;
+	
+	private final Path dir;
+	private final CipherPool ciphers;
+	private final Map<String,Location> index = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long,Segment> segments = new ConcurrentSkipListMap<>();
+	private final ScheduledExecutorService compactor;
+	private final Object lock = new Object();
+	private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+	private volatile double threshold = DEFAULT_COMPACTION_THRESHOLD;
+	private volatile NonceGenerator nonces;
+	private Segment active;
+	// failure of the background compaction, reported once
+	private IOException failure;
+	
+	public SegmentStoreDelegate(byte[] key, Path root, String... schema) throws IOException {
+		super(root, schema);
+		
+		var d = root;
+		for(String s : schema) d = d.resolve(s);
+		dir = d;
+		Files.createDirectories(dir);
+		
+		ciphers = new CipherPool(EncryptedStoreDelegate.AESCipher.spec(key));
+		nonces = bind(NonceGenerator.counter());
+		
+		rebuild();
+		
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			var t = new Thread(r, "kiribi-segment-compactor");
+			t.setDaemon(true);
+			return t;
+		});
+		compactor.scheduleWithFixedDelay(() -> {
+			try{
+				compact();
+			}catch(IOException e){
+				synchronized(lock) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Sets the generator of record nonces, a {@link NonceGenerator#counter()
+	 * counter} generator by default. The nonces of a counter generator are
+	 * counted in the store, so its limit bounds the nonces of the key across
+	 * reopenings.
+	 *
+	 * @param nonces The nonce generator.
+	 */
+	public void setNonceGenerator(NonceGenerator nonces) {
+		if (nonces == null) throw new NullPointerException("nonces");
+		this.nonces = bind(nonces);
+	}
+	
+	// counts the nonces of a counter generator in the state of the key
+	private NonceGenerator bind(NonceGenerator n) {
+		if (!(n instanceof CounterNonceGenerator)) return n;
+		return ((CounterNonceGenerator)n).renew(StoreLayout.meta(dir).resolve(RecordCodec.NONCES + Keyring.INITIAL));
+	}
+	
+	/**
+	 * Sets the size at which the active segment is rolled.
+	 *
+	 * @param segmentSize The segment size in bytes.
+	 */
+	public void setSegmentSize(long segmentSize) {
+		if (segmentSize < 1) throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * Sets the fraction of live bytes below which a segment is compacted.
+	 *
+	 * @param threshold The compaction threshold between 0 and 1.
+	 */
+	public void setCompactionThreshold(double threshold) {
+		if (threshold < 0 || threshold > 1) throw new IllegalArgumentException("Invalid threshold: " + threshold);
+		this.threshold = threshold;
+	}
+	
+	@Override
+	public boolean exists(String name) {
+		return index.containsKey(name);
+	}
+	
+	@Override
+	public void remove(String name) throws IOException {
+		if (!index.containsKey(name)) return;
+		append(record(DELETE, name, null), name);
+	}
+	
+	@Override
+	protected VarInputStream in(Path path) throws IOException {
+		var name = path.getFileName().toString();
+		for (int attempt = 0; ; attempt++) {
+			var location = index.get(name);
+			if (location == null) throw new NoSuchFileException(path.toString());
+			try{
+				var record = location.segment.read(location.offset, location.length);
+				return new VarInputStream(decrypt(record, name));
+			}catch(ClosedChannelException e){
+				// the segment was compacted after the lookup
+				if (attempt > 2) throw e;
+			}
+		}
+	}
+	
+	@Override
+	protected void out(byte[] b, Path path) throws IOException {
+		var name = path.getFileName().toString();
+		append(record(PUT, name, b), name);
+	}
+	
+	/**
+	 * Compacts every segment whose fraction of live bytes is below the
+	 * compaction threshold. Compaction runs periodically in the background,
+	 * but can also be run on demand.
+	 *
+	 * @return The number of segments compacted.
+	 * @throws IOException if there was a problem compacting.
+	 */
+	public int compact() throws IOException {
+		var count = 0;
+		for (var segment : new ArrayList<>(segments.values())) {
+			synchronized(lock) {
+				if (segment == active) continue;
+			}
+			if (segment.size() == 0 || (double)segment.live.get() / segment.size() < threshold) {
+				compact(segment);
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Stops compaction and closes all segments.
+	 *
+	 * @throws IOException if there was a problem closing a segment.
+	 */
+	@Override
+	public void close() throws IOException {
+		compactor.shutdown();
+		try{
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		synchronized(lock) {
+			for (var segment : segments.values()) segment.channel.close();
+			check();
+		}
+	}
+	
+	int segments() {
+		return segments.size();
+	}
+	
+	// must hold lock
+	private void check() throws IOException {
+		if (failure == null) return;
+		var e = new IOException("Compaction failed", failure);
+		failure = null;
+		throw e;
+	}
+	
+	// ---- records ----
+	private ByteBuffer record(byte type, String name, byte[] b) throws IOException {
+		var n = name.getBytes(StandardCharsets.UTF_8);
+		if (n.length > 0xffff) throw new IOException("Name too long: " + name);
+		var sealed = b == null ? 0 : LEN_NONCE + b.length + TAG_SIZE;
+		var length = 1 + 2 + n.length + sealed;
+		
+		var buf = ByteBuffer.allocate(HEADER + length);
+		buf.putInt(length);
+		buf.putInt(0);
+		buf.put(type);
+		buf.putShort((short)n.length);
+		buf.put(n);
+		if (b != null) {
+			var nonce = new byte[LEN_NONCE];
+			var off = buf.position() + LEN_NONCE;
+			try{
+				nonces.next(nonce);
+				buf.put(nonce);
+				ciphers.apply(c -> c.encrypt(nonce, n, b, 0, b.length, buf.array(), off));
+			}catch(GeneralSecurityException e){
+				throw new IOException(e);
+			}catch(UncheckedIOException e){
+				// the nonce state could not be saved
+				throw e.getCause();
+			}
+		}
+		buf.putInt(4, crc(buf.array(), HEADER, length));
+		return buf.rewind();
+	}
+	
+	private byte[] decrypt(ByteBuffer record, String name) throws IOException {
+		var b = record.array();
+		var n = name.getBytes(StandardCharsets.UTF_8);
+		var off = HEADER + 1 + 2 + n.length;
+		var nonce = new byte[LEN_NONCE];
+		System.arraycopy(b, off, nonce, 0, LEN_NONCE);
+		off += LEN_NONCE;
+		var len = b.length - off;
+		var plain = new byte[len - TAG_SIZE];
+		final var o = off;
+		try{
+			ciphers.apply(c -> c.decrypt(nonce, n, b, o, len, plain, 0));
+		}catch(GeneralSecurityException e){
+			throw new IOException(e);
+		}
+		return plain;
+	}
+	
+	private static int crc(byte[] b, int off, int len) {
+		var crc = new CRC32C();
+		crc.update(b, off, len);
+		return (int)crc.getValue();
+	}
+	
+	// ---- segments ----
+	private void append(ByteBuffer record, String name) throws IOException {
+		var length = record.remaining();
+		var type = record.get(HEADER);
+		synchronized(lock) {
+			check();
+			if (active == null || active.size() + length > segmentSize && active.size() > 0) roll();
+			var offset = active.append(record);
+			var location = new Location(active, offset, length);
+			var previous = type == PUT ? index.put(name, location) : index.remove(name);
+			if (type == PUT) active.live.addAndGet(length);
+			if (previous != null) previous.segment.live.addAndGet(-previous.length);
+		}
+	}
+	
+	// must hold lock
+	private void roll() throws IOException {
+		var id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		var path = dir.resolve(String.format("%016x", id) + SUFFIX);
+		active = new Segment(id, FileChannel.open(path, CREATE_NEW, READ, WRITE));
+		segments.put(id, active);
+	}
+	
+	private void rebuild() throws IOException {
+		try(var paths = Files.newDirectoryStream(dir, "*" + SUFFIX)){
+			for (var path : paths) {
+				var s = path.getFileName().toString();
+				var id = Long.parseLong(s.substring(0, s.length() - SUFFIX.length()), 16);
+				segments.put(id, new Segment(id, FileChannel.open(path, READ, WRITE)));
+			}
+		}
+		
+		for (var segment : segments.values()) {
+			segment.scan((offset, length, type, name) -> {
+				var location = new Location(segment, offset, length);
+				var previous = type == PUT ? index.put(name, location) : index.remove(name);
+				if (type == PUT) segment.live.addAndGet(length);
+				if (previous != null) previous.segment.live.addAndGet(-previous.length);
+			}, segment.id == segments.lastKey());
+		}
+		
+		if (!segments.isEmpty()) active = segments.lastEntry().getValue();
+	}
+	
+	private void compact(Segment segment) throws IOException {
+		var older = segments.lowerKey(segment.id) != null;
+		// segments the live records were copied to
+		var targets = new HashSet<Segment>();
+		segment.scan((offset, length, type, name) -> {
+			if (type == PUT) {
+				var location = index.get(name);
+				if (location == null || location.segment != segment || location.offset != offset) return;
+				var record = segment.read(offset, length);
+				synchronized(lock) {
+					// skip records overwritten since the lookup
+					if (index.get(name) != location) return;
+					if (active == segment || active.size() + length > segmentSize && active.size() > 0) roll();
+					var copy = new Location(active, active.append(record), length);
+					targets.add(active);
+					index.put(name, copy);
+					active.live.addAndGet(length);
+					segment.live.addAndGet(-length);
+				}
+			} else if (older && !index.containsKey(name)) {
+				// keep tombstones shadowing records in older segments
+				var record = segment.read(offset, length);
+				synchronized(lock) {
+					// skip tombstones of names put since the lookup
+					if (index.containsKey(name)) return;
+					if (active == segment || active.size() + length > segmentSize && active.size() > 0) roll();
+					active.append(record);
+					targets.add(active);
+				}
+			}
+		}, false);
+		
+		synchronized(lock) {
+			if (segment == active) return;
+			// the copies are durable before the segment is deleted
+			for (var target : targets) {
+				if (target.channel.isOpen()) target.channel.force(false);
+			}
+			segments.remove(segment.id);
+			segment.channel.close();
+		}
+		Files.deleteIfExists(dir.resolve(String.format("%016x", segment.id) + SUFFIX));
+	}
+	
+	private static final class Segment {
+		final long id;
+		final FileChannel channel;
+		final AtomicLong live = new AtomicLong();
+		private long size;
+		
+		Segment(long id, FileChannel channel) throws IOException {
+			this.id = id;
+			this.channel = channel;
+			size = channel.size();
+		}
+		
+		synchronized long size() {
+			return size;
+		}
+		
+		// returns the offset of the record
+		synchronized long append(ByteBuffer record) throws IOException {
+			var offset = size;
+			var b = record.duplicate();
+			while (b.hasRemaining()) channel.write(b, offset + b.position());
+			size += record.remaining();
+			return offset;
+		}
+		
+		ByteBuffer read(long offset, int length) throws IOException {
+			var buf = ByteBuffer.allocate(length);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, offset + buf.position()) < 0) throw new IOException("Truncated segment");
+			}
+			return buf.flip();
+		}
+		
+		// stops at the first torn record, truncating it if requested
+		void scan(Visitor visitor, boolean truncate) throws IOException {
+			var end = size();
+			var offset = 0L;
+			var header = ByteBuffer.allocate(HEADER);
+			while (offset + HEADER <= end) {
+				header.clear();
+				while (header.hasRemaining()) channel.read(header, offset + header.position());
+				var length = header.getInt(0);
+				if (length < 3 || offset + HEADER + length > end) break;
+				var record = read(offset, HEADER + length).array();
+				if (crc(record, HEADER, length) != header.getInt(4)) break;
+				
+				var n = ((record[HEADER + 1] & 0xff) << 8) | (record[HEADER + 2] & 0xff);
+				if (3 + n > length) break;
+				var name = new String(record, HEADER + 3, n, StandardCharsets.UTF_8);
+				visitor.visit(offset, HEADER + length, record[HEADER], name);
+				offset += HEADER + length;
+			}
+			if (truncate && offset < end) {
+				synchronized(this) {
+					channel.truncate(offset);
+					size = offset;
+				}
+			}
+		}
+	}
+	
+	private static final class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+		
+		Location(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	@FunctionalInterface
+	private interface Visitor {
+		void visit(long offset, int length, byte type, String name) throws IOException;
+	}
+}
@@ -0,0 +1,182 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Sequential archive of the records of a store.
+ *
+ * <p>Records are archived as stored, still encrypted, each entry carrying a
+ * CRC32C checksum of the record. Entries are named after the object, or
+ * after the hash of a blob, so an archive does not depend on the layout of
+ * the store it was exported from.
+ *
+ * <pre>
+ * archive: magic (4) | version (1) | entry* | end (2)
+ * entry:   name length (2) | name | kind (1) | size (8) | record | checksum (4)
+ * end:     0 (2)
+ * </pre>
+ *
+ * <p>An archive without its end marker is partial, and is appended to from
+ * its last complete entry when an export is resumed.
+ *
+ * @author Michael Sargent
+ */
+final class StoreArchive {
+	static final int MAGIC = 0x4B695241;
+	static final byte VERSION = 1;
+	static final byte OBJECT = 0;
+	static final byte BLOB = 1;
+	private static final int HEADER_SIZE = 4 + 1;
+	// checksums are computed over mapped windows of this size
+	private static final long WINDOW = 1 << 26;
+	
+	private StoreArchive() {}
+	
+	static final class Entry {
+		final String name;
+		final byte kind;
+		// offset of the record in the archive
+		final long offset;
+		final long size;
+		final int checksum;
+		
+		Entry(String name, byte kind, long offset, long size, int checksum) {
+			this.name = name;
+			this.kind = kind;
+			this.offset = offset;
+			this.size = size;
+			this.checksum = checksum;
+		}
+		
+		String key() {
+			return kind + name;
+		}
+	}
+	
+	static final class Contents {
+		final List<Entry> entries;
+		// offset following the last complete entry
+		final long end;
+		final boolean complete;
+		
+		Contents(List<Entry> entries, long end, boolean complete) {
+			this.entries = entries;
+			this.end = end;
+			this.complete = complete;
+		}
+	}
+	
+	static void start(FileChannel archive) throws IOException {
+		write(archive, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(VERSION).flip());
+	}
+	
+	static void finish(FileChannel archive) throws IOException {
+		write(archive, ByteBuffer.allocate(2).putShort((short)0).flip());
+	}
+	
+	// reads the entries of an archive without reading the records
+	static Contents read(FileChannel archive) throws IOException {
+		var header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!read(archive, header, 0) || header.getInt(0) != MAGIC || header.get(4) != VERSION) {
+			throw new IOException("Not a store archive");
+		}
+		
+		var entries = new ArrayList<Entry>();
+		var size = archive.size();
+		var pos = (long)HEADER_SIZE;
+		var length = ByteBuffer.allocate(2);
+		while (read(archive, length.clear(), pos)) {
+			var n = length.getShort(0) & 0xffff;
+			if (n == 0) return new Contents(entries, pos, true);
+			
+			var b = ByteBuffer.allocate(n + 1 + 8);
+			if (!read(archive, b, pos + 2)) break;
+			var name = new String(b.array(), 0, n, StandardCharsets.UTF_8);
+			var kind = b.get(n);
+			var recordSize = b.getLong(n + 1);
+			var offset = pos + 2 + n + 1 + 8;
+			if (recordSize < 0 || offset + recordSize + 4 > size) break;
+			var checksum = ByteBuffer.allocate(4);
+			read(archive, checksum, offset + recordSize);
+			entries.add(new Entry(name, kind, offset, recordSize, checksum.getInt(0)));
+			pos = offset + recordSize + 4;
+		}
+		return new Contents(entries, pos, false);
+	}
+	
+	// appends a record with zero-copy transfers at the position of the archive
+	static void append(FileChannel archive, String name, byte kind, FileChannel src) throws IOException {
+		var size = src.size();
+		var checksum = checksum(src, 0, size);
+		var b = name.getBytes(StandardCharsets.UTF_8);
+		if (b.length == 0 || b.length > 0xffff) throw new IOException("Invalid name: " + name);
+		write(archive, ByteBuffer.allocate(2 + b.length + 1 + 8)
+			.putShort((short)b.length)
+			.put(b)
+			.put(kind)
+			.putLong(size)
+			.flip());
+		for (long n = 0; n < size;) {
+			var m = src.transferTo(n, size - n, archive);
+			if (m == 0) throw new EOFException();
+			n += m;
+		}
+		write(archive, ByteBuffer.allocate(4).putInt(checksum).flip());
+	}
+	
+	// mapped rather than read, so the region is not copied to the heap
+	static int checksum(FileChannel channel, long offset, long size) throws IOException {
+		var crc = new CRC32C();
+		for (long n = 0; n < size; n += WINDOW) {
+			crc.update(channel.map(READ_ONLY, offset + n, Math.min(WINDOW, size - n)));
+		}
+		return (int)crc.getValue();
+	}
+	
+	private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) channel.write(buf);
+	}
+	
+	// returns false at the end of the archive
+	private static boolean read(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			var n = channel.read(buf, pos);
+			if (n < 0) return false;
+			pos += n;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,183 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Export and import of the records of an encrypted store through a
+ * {@link StoreArchive store archive}.
+ *
+ * <p>Records are exported as stored, with zero-copy transfers, each under
+ * its write lock. Records are imported in parallel, each through a
+ * temporary file atomically renamed over the record. Both are resumed by
+ * being done again, records already exported or imported being skipped.
+ *
+ * @author Michael Sargent
+ */
+final class StoreArchiver {
+	private final EncryptedStoreDelegate store;
+	
+	StoreArchiver(EncryptedStoreDelegate store) {
+		this.store = store;
+	}
+	
+	// returns the number of exported records
+	int exportTo(Path archive) throws IOException {
+		// queued objects are exported as written
+		store.flush();
+		try(var channel = FileChannel.open(archive, CREATE, READ, WRITE)){
+			var archived = new HashSet<String>();
+			if (channel.size() == 0) {
+				StoreArchive.start(channel);
+			} else {
+				var contents = StoreArchive.read(channel);
+				if (contents.complete) return 0;
+				for (var entry : contents.entries) archived.add(entry.key());
+				// drops the entry being exported when interrupted
+				channel.truncate(contents.end);
+			}
+			channel.position(channel.size());
+			
+			var count = 0;
+			for (var file : store.files.list()) {
+				if (export(channel, file, store.dir.resolve(file.getFileName()), StoreArchive.OBJECT, store.locks, archived)) count++;
+			}
+			var blobs = store.blobs;
+			if (Files.isDirectory(blobs.dir)) {
+				var d = store.dedup;
+				for (var file : blobs.files()) {
+					if (export(channel, file, file, StoreArchive.BLOB, d == null ? null : d.locks, archived)) count++;
+				}
+			}
+			StoreArchive.finish(channel);
+			channel.force(true);
+			return count;
+		}
+	}
+	
+	private static boolean export(FileChannel archive, Path file, Path path, byte kind, KeyLocks locks, Set<String> archived) throws IOException {
+		var name = file.getFileName().toString();
+		if (archived.contains(kind + name)) return false;
+		if (locks != null) locks.lock(path);
+		try(var src = FileChannel.open(file, READ)){
+			StoreArchive.append(archive, name, kind, src);
+			return true;
+		}catch(NoSuchFileException e){
+			// removed meanwhile
+			return false;
+		}finally{
+			if (locks != null) locks.unlock(path);
+		}
+	}
+	
+	// returns the number of imported records
+	int importFrom(Path archive, int parallelism) throws IOException {
+		try(var channel = FileChannel.open(archive, READ)){
+			var contents = StoreArchive.read(channel);
+			if (!contents.complete) throw new IOException("Partial archive: " + archive);
+			if (contents.entries.stream().anyMatch(e -> e.kind == StoreArchive.BLOB)) store.blobs.create();
+			
+			var pool = new ForkJoinPool(parallelism);
+			int count;
+			try{
+				count = pool.submit(() -> contents.entries.parallelStream().mapToInt(entry -> {
+					try{
+						return restore(channel, entry) ? 1 : 0;
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				}).sum()).get();
+			}catch(ExecutionException e){
+				var cause = e.getCause();
+				if (cause instanceof UncheckedIOException) throw ((UncheckedIOException)cause).getCause();
+				throw new IOException(cause);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}finally{
+				pool.shutdown();
+			}
+			
+			// references counted again
+			var d = store.dedup;
+			if (d != null) store.setDeduplicated(true, d.grace);
+			return count;
+		}
+	}
+	
+	private boolean restore(FileChannel archive, StoreArchive.Entry entry) throws IOException {
+		var name = entry.name;
+		var dir = store.dir;
+		if (name.equals(".") || name.equals("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || StoreLayout.isReserved(dir.resolve(name))) {
+			throw new IOException("Invalid archive entry: " + name);
+		}
+		if (StoreArchive.checksum(archive, entry.offset, entry.size) != entry.checksum) {
+			throw new IOException("Corrupted archive entry: " + name);
+		}
+		
+		var blob = entry.kind == StoreArchive.BLOB;
+		var path = blob ? store.blobs.path(name) : dir.resolve(name);
+		var file = blob ? path : store.files.locate(path);
+		var d = store.dedup;
+		var lock = blob ? (d == null ? null : d.locks) : store.locks;
+		if (lock != null) lock.lock(path);
+		try{
+			if (Files.isRegularFile(file) && Files.size(file) == entry.size) {
+				try(var channel = FileChannel.open(file, READ)){
+					if (StoreArchive.checksum(channel, 0, entry.size) == entry.checksum) return false;
+				}
+			}
+			
+			var out = blob ? store.create(file) : store.open(path);
+			try{
+				out.transfer(archive, entry.offset, entry.size);
+			}catch(IOException | RuntimeException e){
+				out.abort();
+				throw e;
+			}
+			out.close();
+			if (!blob) {
+				store.files.unflatten(path);
+				store.invalidate(path);
+			}
+			return true;
+		}finally{
+			if (lock != null) lock.unlock(path);
+		}
+	}
+}
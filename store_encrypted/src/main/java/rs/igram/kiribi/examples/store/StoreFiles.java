@@ -0,0 +1,193 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Files of the objects of a store directory.
+ *
+ * <p>Objects are kept in a flat or a sharded {@link StoreLayout layout}. A
+ * flat store can be switched to a sharded layout while it is used, the
+ * files of the flat layout being moved to their shards in the background.
+ * Until the move is complete an object is read from the flat layout unless
+ * it was written to its shard since, and a write to its shard removes its
+ * flat file.
+ *
+ * <p>The fan-out of a sharded store is saved in a marker file in the
+ * metadata directory of the store, so the store is opened with its layout,
+ * and a move which was interrupted is resumed in the background:
+ *
+ * <pre>
+ * schema/.~meta/layout
+ * </pre>
+ *
+ * @author Michael Sargent
+ */
+final class StoreFiles {
+	static final String LAYOUT = "layout";
+	private static final int MAGIC = 0x4B694C59;
+	
+	final Path dir;
+	private final Path marker;
+	private final KeyLocks locks;
+	private volatile StoreLayout layout;
+	// whether files of the flat layout may remain in a sharded layout
+	private volatile boolean flat;
+	
+	StoreFiles(Path dir, KeyLocks locks) throws IOException {
+		this.dir = dir;
+		this.locks = locks;
+		marker = StoreLayout.meta(dir).resolve(LAYOUT);
+		layout = load();
+		if (layout.sharded() && flatFiles()) {
+			flat = true;
+			move(layout);
+		}
+	}
+	
+	StoreLayout layout() {
+		return layout;
+	}
+	
+	// the file an object is written to
+	Path locate(Path path) {
+		return layout.locate(path);
+	}
+	
+	// the file of an object, which may remain in the flat layout while moved
+	Path file(Path path) {
+		var file = layout.locate(path);
+		if (file != path && flat && !Files.exists(file) && Files.exists(path)) return path;
+		return file;
+	}
+	
+	// removes the flat file of an object written to its shard
+	void unflatten(Path path) throws IOException {
+		if (flat && layout.sharded()) Files.deleteIfExists(path);
+	}
+	
+	List<Path> list() throws IOException {
+		var files = layout.files();
+		if (!flat) return files;
+		// a file moved while listed can be listed in both layouts
+		var names = new LinkedHashSet<String>();
+		for (var file : files) names.add(file.getFileName().toString());
+		var list = new ArrayList<Path>(names.size());
+		for (var name : names) list.add(file(dir.resolve(name)));
+		return list;
+	}
+	
+	// switches to a sharded layout, returning the future of the move
+	CompletableFuture<Integer> shard(int fanout) throws IOException {
+		var current = layout;
+		if (current.sharded() && current.fanout != fanout) {
+			throw new IllegalStateException("Store is sharded with fan-out " + current.fanout);
+		}
+		var sharded = new StoreLayout(dir, fanout).create();
+		// saved first, so an interrupted move is resumed when opened
+		if (!current.sharded()) save(sharded);
+		flat = true;
+		layout = sharded;
+		return move(sharded);
+	}
+	
+	private CompletableFuture<Integer> move(StoreLayout sharded) {
+		return CompletableFuture.supplyAsync(() -> {
+			try{
+				var count = 0;
+				for (var path : new StoreLayout(dir).files()) {
+					if (move(path, sharded)) count++;
+				}
+				flat = false;
+				return count;
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+	
+	// moves a file of the flat layout to its shard
+	private boolean move(Path path, StoreLayout sharded) throws IOException {
+		locks.lock(path);
+		try{
+			if (!Files.exists(path)) return false;
+			var target = sharded.locate(path);
+			if (Files.exists(target)) {
+				// written since the layout was switched
+				Files.delete(path);
+				return false;
+			}
+			Files.move(path, target, ATOMIC_MOVE);
+			return true;
+		}finally{
+			locks.unlock(path);
+		}
+	}
+	
+	private boolean flatFiles() throws IOException {
+		try(var stream = Files.newDirectoryStream(dir, p -> Files.isRegularFile(p) && !DurableOutputStream.isTemp(p))){
+			return stream.iterator().hasNext();
+		}
+	}
+	
+	private StoreLayout load() throws IOException {
+		if (!Files.exists(marker)) return new StoreLayout(dir);
+		try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(marker)))){
+			if (in.readInt() != MAGIC) throw new IOException("Invalid layout marker: " + marker);
+			return new StoreLayout(dir, in.readInt());
+		}catch(IllegalArgumentException e){
+			throw new IOException("Invalid layout marker: " + marker, e);
+		}
+	}
+	
+	// replaced atomically, so the marker is either absent or complete
+	private void save(StoreLayout sharded) throws IOException {
+		Files.createDirectories(marker.getParent());
+		var out = new DurableOutputStream(marker, null);
+		try{
+			var data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeInt(sharded.fanout);
+			data.flush();
+		}catch(IOException e){
+			out.abort();
+			throw e;
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,164 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Layout of the files of a store directory.
+ *
+ * <p>A flat layout keeps every object in the store directory. A sharded
+ * layout spreads objects over a fan-out of subdirectories named after a
+ * hash prefix of the object name, so no directory grows too large:
+ *
+ * <pre>
+ * schema/~3f/name
+ * </pre>
+ *
+ * <p>Object names starting with {@value #SHARD_PREFIX} can not be used in a
+ * flat layout which is to be sharded. Metadata of the store, such as the
+ * saved layout, the name index snapshot and deduplicated blobs, is kept in
+ * the reserved {@value #META} subdirectory, which is not part of the layout:
+ *
+ * <pre>
+ * schema/.~meta/layout
+ * </pre>
+ *
+ * @author Michael Sargent
+ */
+final class StoreLayout {
+	static final String SHARD_PREFIX = "~";
+	static final int MAX_FANOUT = 1 << 16;
+	static final String META = ".~meta";
+	
+	final Path dir;
+	final int fanout;
+	private final int digits;
+	
+	StoreLayout(Path dir) {
+		this.dir = dir;
+		fanout = 1;
+		digits = 0;
+	}
+	
+	StoreLayout(Path dir, int fanout) {
+		if (fanout < 16 || fanout > MAX_FANOUT || Integer.bitCount(fanout) != 1 || Integer.numberOfTrailingZeros(fanout) % 4 != 0) {
+			throw new IllegalArgumentException("Fan-out must be 16, 256, 4096 or 65536: " + fanout);
+		}
+		this.dir = dir;
+		this.fanout = fanout;
+		digits = Integer.numberOfTrailingZeros(fanout) / 4;
+	}
+	
+	// creates every shard directory up front so writes need not check
+	StoreLayout create() throws IOException {
+		for (int i = 0; i < fanout; i++) Files.createDirectories(dir.resolve(shard(i)));
+		return this;
+	}
+	
+	boolean sharded() {
+		return fanout > 1;
+	}
+	
+	Path path(String name) {
+		return sharded() ? dir.resolve(shard(name)).resolve(name) : dir.resolve(name);
+	}
+	
+	// maps the flat path of an object to its file
+	Path locate(Path path) {
+		return sharded() && dir.equals(path.getParent()) ? path(path.getFileName().toString()) : path;
+	}
+	
+	// the directories holding files, the store directory first
+	List<Path> dirs() {
+		var dirs = new ArrayList<Path>(fanout);
+		dirs.add(dir);
+		if (sharded()) {
+			for (int i = 0; i < fanout; i++) dirs.add(dir.resolve(shard(i)));
+		}
+		return dirs;
+	}
+	
+	// lists the records of every directory, skipping temporary files
+	List<Path> files() throws IOException {
+		return walk(p -> Files.isRegularFile(p) && !isReserved(p));
+	}
+	
+	// lists the files of every directory in parallel
+	List<Path> walk(DirectoryStream.Filter<? super Path> filter) throws IOException {
+		try{
+			return dirs().parallelStream()
+				.flatMap(d -> list(d, filter).stream())
+				.collect(Collectors.toList());
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+	
+	// the metadata directory of a store directory
+	static Path meta(Path dir) {
+		return dir.resolve(META);
+	}
+	
+	// names of temporary files and of the metadata directory are not objects
+	static boolean isReserved(Path path) {
+		return DurableOutputStream.isTemp(path) || path.getFileName().toString().equals(META);
+	}
+	
+	static boolean isShard(Path path) {
+		return path.getFileName().toString().startsWith(SHARD_PREFIX) && Files.isDirectory(path);
+	}
+	
+	private static List<Path> list(Path dir, DirectoryStream.Filter<? super Path> filter) {
+		var paths = new ArrayList<Path>();
+		try(var stream = Files.newDirectoryStream(dir, filter)){
+			for (var path : stream) paths.add(path);
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		return paths;
+	}
+	
+	private String shard(String name) {
+		// String.hashCode is specified, so shards are stable across runs
+		var h = name.hashCode();
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		h ^= h >>> 16;
+		return shard(h & (fanout - 1));
+	}
+	
+	private String shard(int i) {
+		var hex = Integer.toHexString(i);
+		return SHARD_PREFIX + "0".repeat(digits - hex.length()) + hex;
+	}
+}
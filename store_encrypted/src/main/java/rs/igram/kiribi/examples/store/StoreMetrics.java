@@ -0,0 +1,374 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of an encrypted store.
+ *
+ * <p>Latencies and byte counts are only recorded while the store is
+ * instrumented, uninstrumented operations neither timing nor allocating
+ * anything.
+ *
+ * @author Michael Sargent
+ */
+public final class StoreMetrics {
+	final LongAdder cacheHits = new LongAdder();
+	final LongAdder cacheMisses = new LongAdder();
+	final LongAdder cacheEvictions = new LongAdder();
+	final LongAdder cachedBytes = new LongAdder();
+	final LongAdder compressedObjects = new LongAdder();
+	final LongAdder uncompressibleObjects = new LongAdder();
+	final LongAdder compressionIn = new LongAdder();
+	final LongAdder compressionOut = new LongAdder();
+	final LongAdder compressionNanos = new LongAdder();
+	final LongAdder decompressionIn = new LongAdder();
+	final LongAdder decompressionOut = new LongAdder();
+	final LongAdder decompressionNanos = new LongAdder();
+	final LongAdder rewriteScanned = new LongAdder();
+	final LongAdder rewrittenObjects = new LongAdder();
+	final LongAdder rewrittenBytes = new LongAdder();
+	final LongAdder rewriteFailures = new LongAdder();
+	private volatile long rewriteTotal;
+	final LatencyHistogram readLatency = new LatencyHistogram();
+	final LatencyHistogram writeLatency = new LatencyHistogram();
+	final LatencyHistogram encryptLatency = new LatencyHistogram();
+	final LatencyHistogram decryptLatency = new LatencyHistogram();
+	final LatencyHistogram lockWait = new LatencyHistogram();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder bytesWritten = new LongAdder();
+	final LongAdder indexedMisses = new LongAdder();
+	final LongAdder deduplicatedObjects = new LongAdder();
+	final LongAdder deduplicatedBytes = new LongAdder();
+	final LongAdder sweptBlobs = new LongAdder();
+	volatile boolean instrumented;
+	
+	StoreMetrics() {}
+	
+	void compressed(long in, long out, long nanos) {
+		compressionIn.add(in);
+		compressionOut.add(out);
+		compressionNanos.add(nanos);
+		if (out < in) {
+			compressedObjects.increment();
+		} else {
+			uncompressibleObjects.increment();
+		}
+	}
+	
+	// the histograms to record to, null unless instrumented
+	LatencyHistogram reads() {
+		return instrumented ? readLatency : null;
+	}
+	
+	LatencyHistogram writes() {
+		return instrumented ? writeLatency : null;
+	}
+	
+	LatencyHistogram encryption() {
+		return instrumented ? encryptLatency : null;
+	}
+	
+	LatencyHistogram decryption() {
+		return instrumented ? decryptLatency : null;
+	}
+	
+	void read(long bytes) {
+		if (instrumented) bytesRead.add(bytes);
+	}
+	
+	void rewriteStarted(long total) {
+		rewriteScanned.reset();
+		rewriteTotal = total;
+	}
+	
+	void rewritten(long bytes) {
+		rewrittenObjects.increment();
+		rewrittenBytes.add(bytes);
+	}
+	
+	void decompressed(long in, long out, long nanos) {
+		decompressionIn.add(in);
+		decompressionOut.add(out);
+		decompressionNanos.add(nanos);
+	}
+	
+	/**
+	 * Returns the number of reads served from the plaintext cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long cacheHits() {
+		return cacheHits.sum();
+	}
+	
+	/**
+	 * Returns the number of reads which missed the plaintext cache.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long cacheMisses() {
+		return cacheMisses.sum();
+	}
+	
+	/**
+	 * Returns the number of entries evicted from the plaintext cache.
+	 *
+	 * @return The number of cache evictions.
+	 */
+	public long cacheEvictions() {
+		return cacheEvictions.sum();
+	}
+	
+	/**
+	 * Returns the number of plaintext bytes currently cached.
+	 *
+	 * @return The number of cached bytes.
+	 */
+	public long cachedBytes() {
+		return cachedBytes.sum();
+	}
+	
+	/**
+	 * Returns the number of objects stored compressed.
+	 *
+	 * @return The number of compressed objects.
+	 */
+	public long compressedObjects() {
+		return compressedObjects.sum();
+	}
+	
+	/**
+	 * Returns the number of objects above the compression threshold which
+	 * were stored uncompressed since compression did not make them smaller.
+	 *
+	 * @return The number of uncompressible objects.
+	 */
+	public long uncompressibleObjects() {
+		return uncompressibleObjects.sum();
+	}
+	
+	/**
+	 * Returns the ratio of plain to compressed bytes of all objects which
+	 * went through compression, or 1 if none did.
+	 *
+	 * @return The compression ratio.
+	 */
+	public double compressionRatio() {
+		var out = compressionOut.sum();
+		return out == 0 ? 1 : (double)compressionIn.sum() / out;
+	}
+	
+	/**
+	 * Returns the time spent compressing objects.
+	 *
+	 * @return The compression time in nanoseconds.
+	 */
+	public long compressionNanos() {
+		return compressionNanos.sum();
+	}
+	
+	/**
+	 * Returns the number of bytes produced by decompression.
+	 *
+	 * @return The number of decompressed bytes.
+	 */
+	public long decompressedBytes() {
+		return decompressionOut.sum();
+	}
+	
+	/**
+	 * Returns the time spent decompressing objects.
+	 *
+	 * @return The decompression time in nanoseconds.
+	 */
+	public long decompressionNanos() {
+		return decompressionNanos.sum();
+	}
+	
+	/**
+	 * Returns the number of records of the last key rotation or migration.
+	 *
+	 * @return The number of records to scan.
+	 */
+	public long rewriteTotal() {
+		return rewriteTotal;
+	}
+	
+	/**
+	 * Returns the number of records scanned by the last key rotation or
+	 * migration, which is complete once all records have been scanned.
+	 *
+	 * @return The number of scanned records.
+	 */
+	public long rewriteScanned() {
+		return rewriteScanned.sum();
+	}
+	
+	/**
+	 * Returns the number of records rewritten by key rotations and
+	 * migrations.
+	 *
+	 * @return The number of rewritten records.
+	 */
+	public long rewrittenObjects() {
+		return rewrittenObjects.sum();
+	}
+	
+	/**
+	 * Returns the number of bytes rewritten by key rotations and migrations.
+	 *
+	 * @return The number of rewritten bytes.
+	 */
+	public long rewrittenBytes() {
+		return rewrittenBytes.sum();
+	}
+	
+	/**
+	 * Returns the number of records key rotations and migrations failed to
+	 * rewrite.
+	 *
+	 * @return The number of failed records.
+	 */
+	public long rewriteFailures() {
+		return rewriteFailures.sum();
+	}
+	
+	/**
+	 * Returns whether the store is instrumented.
+	 *
+	 * @return Whether the store is instrumented.
+	 */
+	public boolean instrumented() {
+		return instrumented;
+	}
+	
+	/**
+	 * Returns the latency of reads, from the request to the stream of the
+	 * object being available.
+	 *
+	 * @return The read latency histogram.
+	 */
+	public LatencyHistogram readLatency() {
+		return readLatency;
+	}
+	
+	/**
+	 * Returns the latency of writes, including time blocked on a full
+	 * write-behind queue.
+	 *
+	 * @return The write latency histogram.
+	 */
+	public LatencyHistogram writeLatency() {
+		return writeLatency;
+	}
+	
+	/**
+	 * Returns the latency of encrypting a record or chunk, excluding the wait
+	 * for a cipher.
+	 *
+	 * @return The encryption latency histogram.
+	 */
+	public LatencyHistogram encryptLatency() {
+		return encryptLatency;
+	}
+	
+	/**
+	 * Returns the latency of decrypting a record or chunk, excluding the wait
+	 * for a cipher.
+	 *
+	 * @return The decryption latency histogram.
+	 */
+	public LatencyHistogram decryptLatency() {
+		return decryptLatency;
+	}
+	
+	/**
+	 * Returns the time spent waiting for a cipher of the cipher pool.
+	 *
+	 * @return The lock wait histogram.
+	 */
+	public LatencyHistogram lockWait() {
+		return lockWait;
+	}
+	
+	/**
+	 * Returns the number of record bytes read.
+	 *
+	 * @return The number of bytes read.
+	 */
+	public long bytesRead() {
+		return bytesRead.sum();
+	}
+	
+	/**
+	 * Returns the number of object bytes written.
+	 *
+	 * @return The number of bytes written.
+	 */
+	public long bytesWritten() {
+		return bytesWritten.sum();
+	}
+	
+	/**
+	 * Returns the number of lookups of absent objects answered by the name
+	 * index without touching the filesystem.
+	 *
+	 * @return The number of indexed misses.
+	 */
+	public long indexedMisses() {
+		return indexedMisses.sum();
+	}
+	
+	/**
+	 * Returns the number of writes which referenced an existing blob of a
+	 * deduplicated store instead of writing one.
+	 *
+	 * @return The number of deduplicated objects.
+	 */
+	public long deduplicatedObjects() {
+		return deduplicatedObjects.sum();
+	}
+	
+	/**
+	 * Returns the number of object bytes which were not written thanks to
+	 * deduplication.
+	 *
+	 * @return The number of deduplicated bytes.
+	 */
+	public long deduplicatedBytes() {
+		return deduplicatedBytes.sum();
+	}
+	
+	/**
+	 * Returns the number of unreferenced blobs removed by the sweeper.
+	 *
+	 * @return The number of swept blobs.
+	 */
+	public long sweptBlobs() {
+		return sweptBlobs.sum();
+	}
+}
@@ -0,0 +1,122 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Management view of the metrics of an encrypted store.
+ *
+ * @author Michael Sargent
+ */
+final class StoreMetricsBean implements StoreMetricsMXBean {
+	private final StoreMetrics metrics;
+	
+	StoreMetricsBean(StoreMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	// registers the metrics with the platform MBean server
+	static ObjectName register(String name, StoreMetrics metrics) throws JMException {
+		var objectName = new ObjectName("rs.igram.kiribi.examples.store:type=EncryptedStore,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StoreMetricsBean(metrics), objectName);
+		return objectName;
+	}
+	
+	static void unregister(ObjectName objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	}
+	
+	@Override
+	public boolean isInstrumented() {
+		return metrics.instrumented();
+	}
+	
+	@Override
+	public void setInstrumented(boolean instrumented) {
+		metrics.instrumented = instrumented;
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getReadLatency() {
+		return metrics.readLatency().snapshot();
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getWriteLatency() {
+		return metrics.writeLatency().snapshot();
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getEncryptLatency() {
+		return metrics.encryptLatency().snapshot();
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getDecryptLatency() {
+		return metrics.decryptLatency().snapshot();
+	}
+	
+	@Override
+	public LatencyHistogram.Snapshot getLockWait() {
+		return metrics.lockWait().snapshot();
+	}
+	
+	@Override
+	public long getBytesRead() {
+		return metrics.bytesRead();
+	}
+	
+	@Override
+	public long getBytesWritten() {
+		return metrics.bytesWritten();
+	}
+	
+	@Override
+	public long getCacheHits() {
+		return metrics.cacheHits();
+	}
+	
+	@Override
+	public long getCacheMisses() {
+		return metrics.cacheMisses();
+	}
+	
+	@Override
+	public long getCachedBytes() {
+		return metrics.cachedBytes();
+	}
+	
+	@Override
+	public void resetLatencies() {
+		metrics.readLatency().reset();
+		metrics.writeLatency().reset();
+		metrics.encryptLatency().reset();
+		metrics.decryptLatency().reset();
+		metrics.lockWait().reset();
+	}
+}
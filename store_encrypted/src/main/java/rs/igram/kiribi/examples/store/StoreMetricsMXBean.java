@@ -0,0 +1,64 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+/**
+ * Management interface of the metrics of an encrypted store.
+ *
+ * <p>Latencies are in nanoseconds and only recorded while the store is
+ * instrumented.
+ *
+ * @author Michael Sargent
+ */
+public interface StoreMetricsMXBean {
+	boolean isInstrumented();
+	
+	void setInstrumented(boolean instrumented);
+	
+	LatencyHistogram.Snapshot getReadLatency();
+	
+	LatencyHistogram.Snapshot getWriteLatency();
+	
+	LatencyHistogram.Snapshot getEncryptLatency();
+	
+	LatencyHistogram.Snapshot getDecryptLatency();
+	
+	LatencyHistogram.Snapshot getLockWait();
+	
+	long getBytesRead();
+	
+	long getBytesWritten();
+	
+	long getCacheHits();
+	
+	long getCacheMisses();
+	
+	long getCachedBytes();
+	
+	/**
+	 * Clears the latency histograms.
+	 */
+	void resetLatencies();
+}
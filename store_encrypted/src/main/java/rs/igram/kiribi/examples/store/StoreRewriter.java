@@ -0,0 +1,169 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+
+/**
+ * Background rewriter of the stale records of an encrypted store.
+ *
+ * <p>Records are rewritten with the current key in the current record
+ * format, in parallel and at a limited rate, objects and blobs alike. Each
+ * record is rewritten under its write lock, so reads and writes continue
+ * meanwhile, and chunked records are rewritten chunk by chunk. Progress is
+ * reported by the metrics of the store.
+ *
+ * @author Michael Sargent
+ */
+final class StoreRewriter {
+	private final EncryptedStoreDelegate store;
+	private final Predicate<RecordHeader> stale;
+	private final Throttle throttle;
+	
+	// stale tests the headers of records, which are null for legacy records
+	StoreRewriter(EncryptedStoreDelegate store, Predicate<RecordHeader> stale, Throttle throttle) {
+		this.store = store;
+		this.stale = stale;
+		this.throttle = throttle;
+	}
+	
+	// returns a future completing with the number of rewritten records
+	CompletableFuture<Integer> start(int parallelism) {
+		var metrics = store.metrics();
+		var pool = new ForkJoinPool(parallelism);
+		return CompletableFuture.supplyAsync(() -> {
+			// locked by the flat paths of the objects
+			var paths = new ArrayList<Path>();
+			try{
+				for (var path : store.files.list()) {
+					paths.add(store.dir.resolve(path.getFileName()));
+				}
+				// blobs are locked by their files
+				var d = store.dedup;
+				if (d != null) paths.addAll(d.files());
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+			metrics.rewriteStarted(paths.size());
+			return new PathTask(paths, path -> {
+				try{
+					return rewrite(path);
+				}catch(IOException e){
+					metrics.rewriteFailures.increment();
+					return false;
+				}finally{
+					metrics.rewriteScanned.increment();
+				}
+			}).invoke();
+		}, pool).whenComplete((n, e) -> pool.shutdown());
+	}
+	
+	// rewrites a stale record with the current key and format
+	private boolean rewrite(Path path) throws IOException {
+		var d = store.dedup;
+		var blob = d != null && d.contains(path);
+		var lock = blob ? d.locks : store.locks;
+		lock.lock(path);
+		try{
+			// queued objects are written with the current key anyway
+			var q = store.queue;
+			if (!blob && q != null && q.get(path) != null) return false;
+			
+			var file = blob ? path : store.files.file(path);
+			InputStream in;
+			try{
+				in = new BufferedInputStream(Files.newInputStream(file));
+			}catch(NoSuchFileException e){
+				return false;
+			}
+			RecordHeader header;
+			byte[] b;
+			try(in){
+				in.mark(RecordHeader.MAX_SIZE);
+				header = RecordHeader.read(in);
+				if (!stale.test(header)) return false;
+				if (header != null && header.chunked()) {
+					rewrite(in, header, file);
+					return true;
+				}
+				in.reset();
+				b = in.readAllBytes();
+			}
+			
+			throttle.acquire(b.length);
+			var codec = store.codec;
+			if (header == null) {
+				store.write0(codec.decrypt(b), path);
+			} else {
+				var record = codec.seal(codec.unseal(header, b), header.content());
+				var out = blob ? store.create(file) : store.open(path);
+				try{
+					out.write(record);
+				}catch(IOException e){
+					out.abort();
+					throw e;
+				}
+				out.close();
+			}
+			store.metrics().rewritten(b.length);
+			return true;
+		}finally{
+			lock.unlock(path);
+		}
+	}
+	
+	// re-encrypts a chunked record chunk by chunk into a temporary file
+	private void rewrite(InputStream in, RecordHeader header, Path file) throws IOException {
+		var src = store.codec.chunks(in, header);
+		var out = store.create(file);
+		var total = 0L;
+		try{
+			var chunks = store.codec.chunked(out, header.compression());
+			var buf = new byte[header.chunkSize()];
+			int n;
+			while ((n = src.read(buf)) > 0) {
+				throttle.acquire(n);
+				chunks.write(buf, 0, n);
+				total += n;
+			}
+			chunks.finish();
+		}catch(IOException | RuntimeException e){
+			out.abort();
+			throw e;
+		}
+		out.close();
+		store.metrics().rewritten(total);
+	}
+}
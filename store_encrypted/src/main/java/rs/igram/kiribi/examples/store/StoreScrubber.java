@@ -0,0 +1,141 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Background integrity check of the records of an encrypted store.
+ *
+ * <p>Records are authenticated without being decompressed or decoded,
+ * chunked records chunk by chunk, in parallel and at a limited rate.
+ * References are checked to have their blob, and blobs are verified as
+ * well. A record failing while it is written is checked again under its
+ * write lock, so only corrupted records are reported.
+ *
+ * @author Michael Sargent
+ */
+final class StoreScrubber {
+	private final EncryptedStoreDelegate store;
+	private final Throttle throttle;
+	
+	StoreScrubber(EncryptedStoreDelegate store, Throttle throttle) {
+		this.store = store;
+		this.throttle = throttle;
+	}
+	
+	CompletableFuture<ScrubReport> start(int parallelism) {
+		var pool = new ForkJoinPool(parallelism);
+		return CompletableFuture.supplyAsync(() -> {
+			List<Path> records;
+			try{
+				records = store.files.list();
+				if (Files.isDirectory(store.blobs.dir)) records.addAll(store.blobs.files());
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+			var report = new ScrubReport(records.size());
+			new PathTask(records, file -> {
+				try{
+					report.verified(authenticate(file));
+				}catch(IOException e){
+					var reason = recheck(file);
+					if (reason != null) report.corrupted(file, reason);
+				}
+				return true;
+			}).invoke();
+			return report.finish();
+		}, pool).whenComplete((r, e) -> pool.shutdown());
+	}
+	
+	// authenticates a suspect record again once no write is in progress
+	private String recheck(Path file) {
+		var blob = store.blobs.dir.equals(file.getParent().getParent());
+		var d = store.dedup;
+		var path = blob ? file : store.dir.resolve(file.getFileName());
+		var lock = blob ? (d == null ? null : d.locks) : store.locks;
+		if (lock != null) lock.lock(path);
+		try{
+			authenticate(file);
+			return null;
+		}catch(NoSuchFileException e){
+			// removed meanwhile
+			return null;
+		}catch(IOException e){
+			return e.getMessage() == null ? e.toString() : e.getMessage();
+		}finally{
+			if (lock != null) lock.unlock(path);
+		}
+	}
+	
+	// authenticates a record without decoding it, returning its size
+	private long authenticate(Path file) throws IOException {
+		var codec = store.codec;
+		try(var in = new BufferedInputStream(Files.newInputStream(file))){
+			in.mark(RecordHeader.MAX_SIZE);
+			var header = RecordHeader.read(in);
+			if (header != null && header.chunked()) {
+				var total = (long)header.size();
+				try{
+					var chunks = codec.chunks(in, header);
+					var buf = new byte[header.chunkSize()];
+					int n;
+					while ((n = chunks.read(buf)) > 0) {
+						throttle.acquire(n);
+						total += n;
+					}
+					return total;
+				}catch(IOException e){
+					// a legacy record can start with the magic by chance
+					try{
+						var b = Files.readAllBytes(file);
+						codec.decrypt(b);
+						return b.length;
+					}catch(IOException x){
+						throw e;
+					}
+				}
+			}
+			in.reset();
+			var b = in.readAllBytes();
+			throttle.acquire(b.length);
+			if (header != null && header.reference()) {
+				var blob = store.blobs.path(Deduplicator.hex(codec.unseal(header, b)));
+				if (!Files.exists(blob)) throw new IOException("Missing blob: " + blob.getFileName());
+			} else {
+				codec.decrypt(b);
+			}
+			return b.length;
+		}
+	}
+}
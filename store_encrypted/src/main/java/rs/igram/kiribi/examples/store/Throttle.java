@@ -0,0 +1,74 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter shared by the workers of a background job.
+ *
+ * <p>Each caller reserves its bytes and sleeps until its reservation is
+ * due, so the job runs at the given rate on average however many workers
+ * share the throttle.
+ *
+ * @author Michael Sargent
+ */
+final class Throttle {
+	// no limit
+	static final Throttle NONE = new Throttle(0);
+	
+	private final long rate;
+	private long next;
+	
+	/**
+	 * @param rate The rate in bytes per second, or 0 for no limit.
+	 */
+	Throttle(long rate) {
+		if (rate < 0) throw new IllegalArgumentException("Invalid rate: " + rate);
+		this.rate = rate;
+	}
+	
+	void acquire(long bytes) throws InterruptedIOException {
+		if (rate == 0) return;
+		var wait = reserve(bytes);
+		if (wait <= 0) return;
+		try{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+	
+	// returns the nanoseconds to wait for the reservation
+	private synchronized long reserve(long bytes) {
+		var now = System.nanoTime();
+		if (next - now < 0) next = now;
+		var wait = next - now;
+		next += (long)(bytes * 1e9 / rate);
+		return wait;
+	}
+}
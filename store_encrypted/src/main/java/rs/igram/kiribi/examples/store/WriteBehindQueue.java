@@ -0,0 +1,239 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bounded write-behind queue.
+ *
+ * <p>Writes and removals are queued per path, a later operation on a path
+ * replacing an earlier one which has not been written yet. A background
+ * writer drains the queue in batches, writing the entries of a batch in
+ * parallel on its own threads. Producers block while the queue is full.
+ *
+ * <p>Entries which could not be written are dropped from the queue, and the
+ * failure, naming their paths, is reported once by the next put, removal or
+ * flush.
+ *
+ * @author Michael Sargent
+ */
+final class WriteBehindQueue implements Closeable {
+	private final Map<Path,Entry> pending = new LinkedHashMap<>();
+	private final Sink sink;
+	private final int capacity;
+	private final Thread writer;
+	private final ExecutorService executor;
+	private long enqueued;
+	private long completed;
+	private IOException failure;
+	private final List<Path> failed = new ArrayList<>();
+	private boolean closed;
+	
+	WriteBehindQueue(Sink sink, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		
+		this.sink = sink;
+		this.capacity = capacity;
+		
+		executor = Executors.newFixedThreadPool(Math.min(capacity, Runtime.getRuntime().availableProcessors()), r -> {
+			var t = new Thread(r, "kiribi-write-behind-io");
+			t.setDaemon(true);
+			return t;
+		});
+		writer = new Thread(this::run, "kiribi-write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	void put(Path path, byte[] b) throws IOException {
+		enqueue(path, new Entry(b));
+	}
+	
+	void remove(Path path) throws IOException {
+		enqueue(path, new Entry(null));
+	}
+	
+	// returns null if nothing is pending for the path
+	synchronized Entry get(Path path) {
+		return pending.get(path);
+	}
+	
+	synchronized int size() {
+		return pending.size();
+	}
+	
+	// waits until everything queued before the call has been written
+	synchronized void flush() throws IOException {
+		var target = enqueued;
+		var interrupted = false;
+		while (completed < target && writer.isAlive()) {
+			try{
+				wait();
+			}catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		check();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try{
+			flush();
+		}finally{
+			synchronized(this) {
+				closed = true;
+				notifyAll();
+			}
+			try{
+				writer.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}finally{
+				executor.shutdown();
+			}
+		}
+	}
+	
+	private synchronized void enqueue(Path path, Entry entry) throws IOException {
+		check();
+		if (closed) throw new IOException("Queue closed");
+		try{
+			while (pending.size() >= capacity && !pending.containsKey(path)) {
+				wait();
+				check();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		pending.put(path, entry);
+		enqueued++;
+		notifyAll();
+	}
+	
+	// reports a failure once
+	private void check() throws IOException {
+		if (failure == null) return;
+		var e = new IOException("Write behind failed: " + failed, failure);
+		failure = null;
+		failed.clear();
+		throw e;
+	}
+	
+	private void run() {
+		while (true) {
+			long target;
+			ArrayList<Map.Entry<Path,Entry>> batch;
+			synchronized(this) {
+				while (completed == enqueued && !closed) {
+					try{
+						wait();
+					}catch(InterruptedException e){
+						// keep draining until closed
+					}
+				}
+				if (completed == enqueued) return;
+				target = enqueued;
+				batch = new ArrayList<>(pending.size());
+				for (var e : pending.entrySet()) batch.add(Map.entry(e.getKey(), e.getValue()));
+			}
+			
+			var writes = new ArrayList<Future<?>>(batch.size());
+			for (var e : batch) writes.add(executor.submit(() -> write(e.getKey(), e.getValue())));
+			for (var w : writes) {
+				while (true) {
+					try{
+						w.get();
+						break;
+					}catch(InterruptedException e){
+						// keep draining until closed
+					}catch(ExecutionException e){
+						// failures are recorded by the write
+						break;
+					}
+				}
+			}
+			
+			synchronized(this) {
+				// entries replaced during the batch stay queued
+				for (var e : batch) pending.remove(e.getKey(), e.getValue());
+				completed = target;
+				notifyAll();
+			}
+		}
+	}
+	
+	private void write(Path path, Entry entry) {
+		try{
+			if (entry.removed()) {
+				sink.delete(path);
+			} else {
+				sink.write(path, entry.b);
+			}
+		}catch(IOException | RuntimeException e){
+			synchronized(this) {
+				if (failure == null) {
+					failure = e instanceof IOException ? (IOException)e : new IOException(e);
+				} else {
+					failure.addSuppressed(e);
+				}
+				failed.add(path);
+			}
+		}
+	}
+	
+	static final class Entry {
+		// null for a removal
+		final byte[] b;
+		
+		Entry(byte[] b) {
+			this.b = b;
+		}
+		
+		boolean removed() {
+			return b == null;
+		}
+	}
+	
+	interface Sink {
+		void write(Path path, byte[] b) throws IOException;
+		
+		void delete(Path path) throws IOException;
+	}
+}
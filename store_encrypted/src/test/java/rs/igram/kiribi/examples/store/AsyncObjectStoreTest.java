@@ -0,0 +1,106 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import rs.igram.kiribi.store.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class AsyncObjectStoreTest {
+   @TempDir Path root;
+   
+   @Test
+   public void testIO() throws Exception {
+   	   var key = EncryptedStoreDelegateTest.key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, "a"); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   try(var async = new AsyncObjectStore(store, 2)){
+   	   	   var bar = new Bar(1, "bar");
+   	   	   var test = async.put("bar", bar)
+   	   	   	   .thenCompose(v -> async.get("bar", Bar::new))
+   	   	   	   .get(5, TimeUnit.SECONDS);
+   	   	   assertEquals(bar, test);
+   	   	   
+   	   	   assertTrue(async.exists("bar").get());
+   	   	   async.remove("bar").get();
+   	   	   assertFalse(async.exists("bar").get());
+   	   }
+   	   
+   	   var closed = new AsyncObjectStore(store, 1);
+   	   closed.close();
+   	   // rejected operations fail their future
+   	   var e = assertThrows(ExecutionException.class, () -> closed.put("bar", new Bar(1, "bar")).get());
+   	   assertTrue(e.getCause() instanceof RejectedExecutionException);
+   }
+   
+   @Test
+   public void testCancelAndTimeout() throws Exception {
+   	   var key = EncryptedStoreDelegateTest.key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, "a"); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var executor = Executors.newSingleThreadExecutor();
+   	   var latch = new CountDownLatch(1);
+   	   try(var async = new AsyncObjectStore(store, executor)){
+   	   	   // keep the only I/O thread busy
+   	   	   executor.submit(() -> {
+   	   	   	   latch.await();
+   	   	   	   return null;
+   	   	   });
+   	   	   
+   	   	   var put = async.put("bar", new Bar(1, "bar"));
+   	   	   assertTrue(put.cancel(false));
+   	   	   
+   	   	   async.setTimeout(10, TimeUnit.MILLISECONDS);
+   	   	   var get = async.get("bar", Bar::new);
+   	   	   var e = assertThrows(ExecutionException.class, () -> get.get());
+   	   	   assertTrue(e.getCause() instanceof TimeoutException);
+   	   	   
+   	   	   latch.countDown();
+   	   	   async.setTimeout(0, TimeUnit.SECONDS);
+   	   	   // the cancelled put never ran
+   	   	   assertFalse(async.exists("bar").get());
+   	   }finally{
+   	   	   executor.shutdown();
+   	   }
+   }
+}
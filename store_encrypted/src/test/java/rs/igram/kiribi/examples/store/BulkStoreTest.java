@@ -0,0 +1,86 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import rs.igram.kiribi.store.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class BulkStoreTest {
+   @TempDir Path root;
+   
+   @Test
+   public void testBulk() throws IOException {
+   	   var key = EncryptedStoreDelegateTest.key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, "a"); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   try(var bulk = new BulkStore(store, 4)){
+   	   	   var objects = new LinkedHashMap<String,Bar>();
+   	   	   for (int i = 0; i < 1000; i++) objects.put("bar" + i, new Bar(i, "bar " + i));
+   	   	   
+   	   	   var puts = bulk.putAll(objects);
+   	   	   assertEquals(objects.size(), puts.size());
+   	   	   for (var r : puts) assertTrue(r.ok());
+   	   	   
+   	   	   // results in order, with per object errors
+   	   	   var names = new ArrayList<>(objects.keySet());
+   	   	   names.add(500, "missing");
+   	   	   var gets = bulk.getAll(names, Bar::new);
+   	   	   assertEquals(names.size(), gets.size());
+   	   	   for (int i = 0; i < names.size(); i++) {
+   	   	   	   var r = gets.get(i);
+   	   	   	   assertEquals(names.get(i), r.name());
+   	   	   	   if (i == 500) {
+   	   	   	   	   assertFalse(r.ok());
+   	   	   	   	   assertThrows(NoSuchFileException.class, r::get);
+   	   	   	   } else {
+   	   	   	   	   assertEquals(objects.get(r.name()), r.get());
+   	   	   	   }
+   	   	   }
+   	   	   
+   	   	   var removes = bulk.removeAll(List.of("bar0", "bar1"));
+   	   	   assertTrue(removes.get(0).ok());
+   	   	   assertTrue(removes.get(1).ok());
+   	   	   assertFalse(store.exists("bar0"));
+   	   	   assertTrue(store.exists("bar2"));
+   	   }
+   }
+}
@@ -25,16 +25,28 @@
 package rs.igram.kiribi.examples.store;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.openmbean.CompositeData;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -144,6 +156,656 @@ public class EncryptedStoreDelegateTest {
    	   assertEquals(foo, test);
    }
    
+   @Test
+   public void testConcurrentIO() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   var threads = 16;
+   	   var count = 200;
+   	   var written = new ConcurrentHashMap<String,Foo>();
+   	   var start = new CountDownLatch(1);
+   	   var executor = Executors.newFixedThreadPool(threads);
+   	   var futures = new ArrayList<Future<?>>();
+   	   
+   	   for (int t = 0; t < threads; t++) {
+   	   	   var prefix = "t" + t + "-";
+   	   	   futures.add(executor.submit(() -> {
+   	   	   	   start.await();
+   	   	   	   for (int i = 0; i < count; i++) {
+   	   	   	   	   var name = prefix + i;
+   	   	   	   	   var foo = new Foo();
+   	   	   	   	   store.put(name, foo);
+   	   	   	   	   written.put(name, foo);
+   	   	   	   	   assertEquals(foo, store.get(name));
+   	   	   	   }
+   	   	   	   return null;
+   	   	   }));
+   	   }
+   	   start.countDown();
+   	   for (var f : futures) f.get();
+   	   executor.shutdown();
+   	   
+   	   assertEquals(threads * count, written.size());
+   	   for (var e : written.entrySet()) {
+   	   	   assertEquals(e.getValue(), store.get(e.getKey()));
+   	   }
+   }
+   
+   @Test
+   public void testConcurrentSameName() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setChunkSize(RecordHeader.MIN_CHUNK_SIZE);
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   // a compact and a chunked version
+   	   var versions = Set.of(new Bar(1, "bar"), new Bar(2, "chunked ".repeat(1000)));
+   	   store.put("bar", new Bar(1, "bar"));
+   	   var threads = 8;
+   	   var start = new CountDownLatch(1);
+   	   var executor = Executors.newFixedThreadPool(threads);
+   	   var futures = new ArrayList<Future<?>>();
+   	   
+   	   for (int t = 0; t < threads; t++) {
+   	   	   var writer = t % 2 == 0;
+   	   	   futures.add(executor.submit(() -> {
+   	   	   	   start.await();
+   	   	   	   for (int i = 0; i < 200; i++) {
+   	   	   	   	   if (writer) {
+   	   	   	   	   	   for (var bar : versions) store.put("bar", bar);
+   	   	   	   	   } else {
+   	   	   	   	   	   // never a half written record
+   	   	   	   	   	   assertTrue(versions.contains(store.get("bar")));
+   	   	   	   	   }
+   	   	   	   }
+   	   	   	   return null;
+   	   	   }));
+   	   }
+   	   start.countDown();
+   	   for (var f : futures) f.get();
+   	   executor.shutdown();
+   	   assertTrue(versions.contains(store.get("bar")));
+   }
+   
+   @Test
+   public void testChunkedIO() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setChunkSize(1024);
+   	   var store = new ObjectStore(delegate, null); 
+   	   var name = "bar";
+   	   
+   	   var bar = new Bar(1, "x".repeat(10000));
+   	   store.put(name, bar);
+   	   var test = (Bar)store.get(name, Bar::new);
+   	   
+   	   assertEquals(bar, test);
+   	   
+   	   var b = new byte[100000];
+   	   random(b);
+   	   try (var out = delegate.output(name)) {
+   	   	   out.write(b);
+   	   }
+   	   try (var in = delegate.input(name)) {
+   	   	   assertArrayEquals(b, in.readAllBytes());
+   	   }
+   	   
+   	   // dropping the final chunk must not go unnoticed
+   	   var path = dir(root, scheme).resolve(name);
+   	   var size = Files.size(path);
+   	   var truncated = Arrays.copyOf(Files.readAllBytes(path), (int)(size - (size - 22) % (1024 + 16)));
+   	   Files.write(path, truncated);
+   	   assertThrows(IOException.class, () -> {
+   	   	   try (var in = delegate.input(name)) {
+   	   	   	   in.readAllBytes();
+   	   	   }
+   	   });
+   }
+   
+   @Test
+   public void testMappedIO() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setMapped(true);
+   	   delegate.setChunkSize(1024);
+   	   var store = new ObjectStore(delegate, null); 
+   	   
+   	   for (int i = 0; i < 10; i++) {
+   	   	   var foo = new Foo();
+   	   	   store.put("foo", foo);
+   	   	   assertEquals(foo, store.get("foo", Foo::new));
+   	   }
+   	   
+   	   // chunked records are streamed rather than mapped
+   	   var bar = new Bar(1, "x".repeat(10000));
+   	   store.put("bar", bar);
+   	   assertEquals(bar, store.get("bar", Bar::new));
+   }
+   
+   @Test
+   public void testDurableIO() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   var dir = dir(root, scheme);
+   	   
+   	   // left behind by a crash
+   	   Files.createFile(dir.resolve("foo.1.~tmp"));
+   	   delegate.setDurable(true);
+   	   assertFalse(Files.exists(dir.resolve("foo.1.~tmp")));
+   	   // temporary file names are reserved
+   	   assertThrows(IllegalArgumentException.class, () -> store.put("foo.~tmp", new Foo()));
+   	   assertThrows(IllegalArgumentException.class, () -> delegate.output("foo.~tmp"));
+   	   assertThrows(IllegalArgumentException.class, () -> store.put(StoreLayout.META, new Foo()));
+   	   
+   	   var executor = Executors.newFixedThreadPool(8);
+   	   var futures = new ArrayList<Future<?>>();
+   	   for (int t = 0; t < 8; t++) {
+   	   	   var name = "foo" + t;
+   	   	   futures.add(executor.submit(() -> {
+   	   	   	   for (int i = 0; i < 20; i++) {
+   	   	   	   	   var foo = new Foo();
+   	   	   	   	   store.put(name, foo);
+   	   	   	   	   assertEquals(foo, store.get(name));
+   	   	   	   }
+   	   	   	   return null;
+   	   	   }));
+   	   }
+   	   for (var f : futures) f.get();
+   	   executor.shutdown();
+   	   
+   	   try (var paths = Files.list(dir)) {
+   	   	   assertEquals(8, paths.filter(p -> !p.equals(StoreLayout.meta(dir))).count());
+   	   }
+   }
+   
+   @Test
+   public void testWriteBehind() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setWriteBehind(4);
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   var latest = new HashMap<String,Foo>();
+   	   
+   	   for (int i = 0; i < 100; i++) {
+   	   	   var name = "foo" + (i % 8);
+   	   	   var foo = new Foo();
+   	   	   store.put(name, foo);
+   	   	   latest.put(name, foo);
+   	   	   // read your writes
+   	   	   assertTrue(store.exists(name));
+   	   	   assertEquals(foo, store.get(name));
+   	   }
+   	   
+   	   store.remove("foo0");
+   	   latest.remove("foo0");
+   	   assertFalse(store.exists("foo0"));
+   	   delegate.close();
+   	   
+   	   delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   store = new ObjectStore(delegate, Foo::new); 
+   	   assertFalse(store.exists("foo0"));
+   	   for (var e : latest.entrySet()) {
+   	   	   assertEquals(e.getValue(), store.get(e.getKey()));
+   	   }
+   }
+   
+   @Test
+   public void testWriteBehindFailure() throws IOException {
+   	   var key = key();
+   	   var dir = dir(root, scheme);
+   	   // an object can not replace a directory
+   	   Files.createDirectories(dir.resolve("bad").resolve("foo"));
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setWriteBehind(4);
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   store.put("bad", new Foo());
+   	   // reported once
+   	   assertThrows(IOException.class, () -> delegate.flush());
+   	   delegate.flush();
+   	   var foo = new Foo();
+   	   store.put("foo", foo);
+   	   delegate.flush();
+   	   assertEquals(foo, store.get("foo"));
+   	   
+   	   // closed even if a queued write failed
+   	   delegate.setIndexed(true, false);
+   	   store.put("bad", new Foo());
+   	   assertThrows(IOException.class, () -> delegate.close());
+   	   assertTrue(Files.exists(StoreLayout.meta(dir).resolve(NameIndex.SNAPSHOT)));
+   	   delegate.close();
+   }
+   
+   @Test
+   public void testCache() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setCache(4 * 1024, true);
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   var metrics = delegate.metrics();
+   	   
+   	   var foo = new Foo();
+   	   store.put("foo", foo);
+   	   assertEquals(foo, store.get("foo"));
+   	   assertEquals(foo, store.get("foo"));
+   	   assertEquals(1, metrics.cacheMisses());
+   	   assertEquals(1, metrics.cacheHits());
+   	   
+   	   // invalidated on put
+   	   foo = new Foo();
+   	   store.put("foo", foo);
+   	   assertEquals(foo, store.get("foo"));
+   	   assertEquals(2, metrics.cacheMisses());
+   	   
+   	   // invalidated on remove
+   	   store.remove("foo");
+   	   assertThrows(IOException.class, () -> store.get("foo"));
+   	   
+   	   // bounded by the budget
+   	   for (int i = 0; i < 1000; i++) {
+   	   	   store.put("foo" + i, new Foo());
+   	   	   store.get("foo" + i);
+   	   }
+   	   assertTrue(metrics.cacheEvictions() > 0);
+   	   assertTrue(metrics.cachedBytes() <= 4 * 1024);
+   }
+   
+   @Test
+   public void testCompression() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setCompression(Compressor.DEFLATE, 256);
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var metrics = delegate.metrics();
+   	   
+   	   var bar = new Bar(1, "bar ".repeat(1000));
+   	   store.put("bar", bar);
+   	   assertEquals(bar, store.get("bar"));
+   	   assertEquals(1, metrics.compressedObjects());
+   	   assertTrue(metrics.compressionRatio() > 4);
+   	   assertTrue(Files.size(dir(root, scheme).resolve("bar")) < 1000);
+   	   
+   	   // below the threshold
+   	   var small = new Bar(2, "bar");
+   	   store.put("small", small);
+   	   assertEquals(small, store.get("small"));
+   	   assertEquals(1, metrics.compressedObjects());
+   	   
+   	   // compressed records stay readable once compression is disabled
+   	   delegate.setCompression(null, 0);
+   	   assertEquals(bar, store.get("bar"));
+   }
+   
+   @Test
+   public void testCompactFormat() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   
+   	   // no block padding
+   	   var b = new byte[100];
+   	   random(b);
+   	   var record = delegate.encrypt(b);
+   	   assertEquals(RecordHeader.SIZE + b.length + EncryptedStoreDelegate.AESCipher.TAG_SIZE, record.length);
+   	   assertArrayEquals(b, delegate.decrypt(record));
+   	   
+   	   // rewrite an object in the legacy padded format
+   	   var bar = new Bar(1, "bar");
+   	   store.put("bar", bar);
+   	   var path = dir(root, scheme).resolve("bar");
+   	   var plain = delegate.decrypt(Files.readAllBytes(path));
+   	   var N = EncryptedStoreDelegate.AESCipher.BLOCK_SIZE;
+   	   var padded = Arrays.copyOf(plain, ((plain.length / N) * N) + (2 * N));
+   	   var cipher = new EncryptedStoreDelegate.AESCipher(EncryptedStoreDelegate.AESCipher.spec(key));
+   	   Files.write(path, cipher.encrypt(padded));
+   	   assertEquals(bar, store.get("bar"));
+   	   
+   	   assertEquals(1, (int)delegate.migrate().get());
+   	   assertEquals(RecordHeader.MAGIC, ByteBuffer.wrap(Files.readAllBytes(path)).getInt());
+   	   assertEquals(bar, store.get("bar"));
+   	   
+   	   // nothing left to migrate
+   	   assertEquals(0, (int)delegate.migrate().get());
+   }
+   
+   @Test
+   public void testRotation() throws Exception {
+   	   var key = key();
+   	   
+   	   var keyring = new Keyring(key);
+   	   var delegate = new EncryptedStoreDelegate(keyring, root, scheme); 
+   	   delegate.setChunkSize(RecordHeader.MIN_CHUNK_SIZE);
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var metrics = delegate.metrics();
+   	   
+   	   var objects = new HashMap<String,Bar>();
+   	   for (int i = 0; i < 100; i++) {
+   	   	   // every tenth object is chunked
+   	   	   var bar = new Bar(i, (i % 10 == 0 ? "chunked " : "bar ").repeat(i % 10 == 0 ? 500 : 1));
+   	   	   objects.put("bar" + i, bar);
+   	   	   store.put("bar" + i, bar);
+   	   }
+   	   
+   	   keyring.add(1, key());
+   	   var rotation = delegate.rotate(1, 4, 0);
+   	   // foreground writes continue with the new key
+   	   var bar = new Bar(100, "bar");
+   	   objects.put("bar100", bar);
+   	   store.put("bar100", bar);
+   	   assertEquals(100, (int)rotation.get());
+   	   
+   	   assertEquals(metrics.rewriteTotal(), metrics.rewriteScanned());
+   	   assertEquals(100, metrics.rewrittenObjects());
+   	   assertEquals(0, metrics.rewriteFailures());
+   	   
+   	   // the retired key is no longer needed
+   	   keyring.remove(Keyring.INITIAL);
+   	   for (var e : objects.entrySet()) {
+   	   	   assertEquals(e.getValue(), store.get(e.getKey()));
+   	   	   var header = RecordHeader.read(ByteBuffer.wrap(Files.readAllBytes(dir(root, scheme).resolve(e.getKey()))));
+   	   	   assertEquals(1, header.keyId());
+   	   }
+   	   
+   	   // resuming a complete rotation rewrites nothing
+   	   assertEquals(0, (int)delegate.rotate(1, 4, 0).get());
+   }
+   
+   @Test
+   public void testInstrumentation() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var metrics = delegate.metrics();
+   	   
+   	   var bar = new Bar(1, "bar");
+   	   store.put("bar", bar);
+   	   assertEquals(bar, store.get("bar"));
+   	   assertEquals(0, metrics.readLatency().count());
+   	   assertEquals(0, metrics.encryptLatency().count());
+   	   
+   	   delegate.setInstrumented(true);
+   	   for (int i = 0; i < 10; i++) {
+   	   	   store.put("bar", bar);
+   	   	   assertEquals(bar, store.get("bar"));
+   	   }
+   	   assertEquals(10, metrics.readLatency().count());
+   	   assertEquals(10, metrics.writeLatency().count());
+   	   assertEquals(10, metrics.encryptLatency().count());
+   	   assertEquals(10, metrics.decryptLatency().count());
+   	   assertEquals(20, metrics.lockWait().count());
+   	   assertTrue(metrics.bytesRead() > metrics.bytesWritten());
+   	   assertTrue(metrics.readLatency().percentile(50) <= metrics.readLatency().max());
+   	   
+   	   var name = delegate.registerMBean(scheme);
+   	   var server = ManagementFactory.getPlatformMBeanServer();
+   	   var latency = (CompositeData)server.getAttribute(name, "WriteLatency");
+   	   assertEquals(10L, latency.get("count"));
+   	   server.setAttribute(name, new Attribute("Instrumented", false));
+   	   assertFalse(metrics.instrumented());
+   	   delegate.close();
+   	   assertFalse(server.isRegistered(name));
+   }
+   
+   @Test
+   public void testLatencyHistogram() {
+   	   var histogram = new LatencyHistogram();
+   	   for (int i = 1; i <= 100000; i++) histogram.record(i);
+   	   assertEquals(100000, histogram.count());
+   	   assertEquals(100000, histogram.max());
+   	   assertEquals(50000.5, histogram.mean(), 0.001);
+   	   for (var p : new double[]{50, 90, 99, 99.9}) {
+   	   	   var expected = p * 1000;
+   	   	   var actual = histogram.percentile(p);
+   	   	   assertTrue(Math.abs(actual - expected) / expected < 0.07, p + ": " + actual);
+   	   }
+   	   histogram.reset();
+   	   assertEquals(0, histogram.percentile(50));
+   }
+   
+   @Test
+   public void testIndex() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var metrics = delegate.metrics();
+   	   store.put("bar", new Bar(1, "bar"));
+   	   
+   	   delegate.setIndexed(true, true);
+   	   assertTrue(store.exists("bar"));
+   	   store.put("baz", new Bar(2, "baz"));
+   	   assertTrue(store.exists("baz"));
+   	   for (int i = 0; i < 1000; i++) assertFalse(store.exists("foo" + i));
+   	   // up to the false positive rate
+   	   assertTrue(metrics.indexedMisses() > 950);
+   	   
+   	   store.remove("bar");
+   	   assertFalse(store.exists("bar"));
+   	   
+   	   // files created by others are picked up by the watcher
+   	   Files.createFile(dir(root, scheme).resolve("qux"));
+   	   var deadline = System.currentTimeMillis() + 10000;
+   	   while (!store.exists("qux") && System.currentTimeMillis() < deadline) Thread.sleep(10);
+   	   assertTrue(store.exists("qux"));
+   	   
+   	   // reloaded from the snapshot
+   	   delegate.close();
+   	   delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setIndexed(true, false);
+   	   store = new ObjectStore(delegate, Bar::new); 
+   	   assertTrue(store.exists("baz"));
+   	   assertTrue(store.exists("qux"));
+   	   assertFalse(store.exists("foo"));
+   	   delegate.close();
+   }
+   
+   @Test
+   public void testSharding() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   for (int i = 0; i < 100; i++) store.put("bar" + i, new Bar(i, "bar" + i));
+   	   
+   	   var moved = delegate.setSharding(16);
+   	   // readable while moved
+   	   for (int i = 0; i < 100; i++) assertEquals(new Bar(i, "bar" + i), store.get("bar" + i));
+   	   store.put("bar0", new Bar(-1, "bar0"));
+   	   assertTrue((int)moved.get() <= 100);
+   	   
+   	   var dir = dir(root, scheme);
+   	   try(var files = Files.list(dir)){
+   	   	   assertTrue(files.allMatch(Files::isDirectory));
+   	   }
+   	   assertEquals(100, delegate.names().size());
+   	   assertEquals(new Bar(-1, "bar0"), store.get("bar0"));
+   	   for (int i = 1; i < 100; i++) assertEquals(new Bar(i, "bar" + i), store.get("bar" + i));
+   	   
+   	   store.remove("bar1");
+   	   assertFalse(store.exists("bar1"));
+   	   assertThrows(IllegalStateException.class, () -> delegate.setSharding(256));
+   	   delegate.close();
+   	   
+   	   // left in the flat layout by an interrupted move
+   	   try(var files = Files.walk(dir)){
+   	   	   var file = files.filter(p -> p.getFileName().toString().equals("bar3")).findFirst().get();
+   	   	   Files.move(file, dir.resolve("bar3"));
+   	   }
+   	   
+   	   // reopened sharded
+   	   var reopened = new EncryptedStoreDelegate(key, root, scheme); 
+   	   reopened.setIndexed(true, false);
+   	   store = new ObjectStore(reopened, Bar::new);
+   	   assertTrue(store.exists("bar2"));
+   	   assertFalse(store.exists("bar1"));
+   	   assertEquals(new Bar(2, "bar2"), store.get("bar2"));
+   	   assertEquals(new Bar(3, "bar3"), store.get("bar3"));
+   	   assertEquals(99, reopened.names().size());
+   	   assertThrows(IllegalStateException.class, () -> reopened.setSharding(256));
+   	   // resumes the move
+   	   reopened.setSharding(16).get();
+   	   assertFalse(Files.exists(dir.resolve("bar3")));
+   	   assertEquals(new Bar(3, "bar3"), store.get("bar3"));
+   	   store.put("bar100", new Bar(100, "bar100"));
+   	   reopened.close();
+   	   
+   	   var sharded = new EncryptedStoreDelegate(key, root, scheme); 
+   	   store = new ObjectStore(sharded, Bar::new);
+   	   assertEquals(new Bar(100, "bar100"), store.get("bar100"));
+   	   assertEquals(100, sharded.names().size());
+   	   sharded.close();
+   }
+   
+   @Test
+   public void testDeduplication() throws Exception {
+   	   var key = key();
+   	   
+   	   var keyring = new Keyring(key);
+   	   var delegate = new EncryptedStoreDelegate(keyring, root, scheme); 
+   	   delegate.setDeduplicated(true, 0);
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var metrics = delegate.metrics();
+   	   var blobs = Deduplicator.blobs(dir(root, scheme)).dir;
+   	   
+   	   var bar = new Bar(1, "bar".repeat(100));
+   	   for (int i = 0; i < 10; i++) store.put("bar" + i, bar);
+   	   assertEquals(1, count(blobs));
+   	   assertEquals(9, metrics.deduplicatedObjects());
+   	   for (int i = 0; i < 10; i++) assertEquals(bar, store.get("bar" + i));
+   	   // too small to deduplicate
+   	   store.put("baz", new Bar(2, "baz"));
+   	   assertEquals(1, count(blobs));
+   	   
+   	   // still referenced
+   	   for (int i = 1; i < 10; i++) store.remove("bar" + i);
+   	   assertEquals(0, delegate.sweep());
+   	   var qux = new Bar(2, "qux".repeat(100));
+   	   store.put("bar0", qux);
+   	   assertEquals(1, delegate.sweep());
+   	   assertEquals(1, count(blobs));
+   	   assertEquals(qux, store.get("bar0"));
+   	   
+   	   // references survive rotation
+   	   keyring.add(1, key());
+   	   delegate.rotate(1, 2, 0).get();
+   	   keyring.remove(Keyring.INITIAL);
+   	   assertEquals(qux, store.get("bar0"));
+   	   assertEquals(new Bar(2, "baz"), store.get("baz"));
+   	   delegate.close();
+   	   
+   	   // counts are rebuilt when reopened
+   	   var reopened = new EncryptedStoreDelegate(keyring, root, scheme); 
+   	   reopened.setDeduplicated(true, 0);
+   	   store = new ObjectStore(reopened, Bar::new); 
+   	   assertEquals(qux, store.get("bar0"));
+   	   assertEquals(0, reopened.sweep());
+   	   store.remove("bar0");
+   	   assertEquals(1, reopened.sweep());
+   	   assertEquals(0, count(blobs));
+   	   reopened.close();
+   }
+   
+   @Test
+   public void testScrub() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, scheme); 
+   	   delegate.setChunkSize(RecordHeader.MIN_CHUNK_SIZE);
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   for (int i = 0; i < 50; i++) {
+   	   	   // every tenth object is chunked
+   	   	   store.put("bar" + i, new Bar(i, (i % 10 == 0 ? "chunked " : "bar ").repeat(i % 10 == 0 ? 500 : 1)));
+   	   }
+   	   
+   	   var report = delegate.scrub(4, 0).get();
+   	   assertEquals(50, report.total());
+   	   assertEquals(50, report.scanned());
+   	   assertTrue(report.bytes() > 0);
+   	   assertTrue(report.corrupted().isEmpty());
+   	   
+   	   // a flipped bit and a lost chunk
+   	   var dir = dir(root, scheme);
+   	   var b = Files.readAllBytes(dir.resolve("bar1"));
+   	   b[b.length - 1] ^= 1;
+   	   Files.write(dir.resolve("bar1"), b);
+   	   b = Files.readAllBytes(dir.resolve("bar10"));
+   	   Files.write(dir.resolve("bar10"), Arrays.copyOf(b, b.length - RecordHeader.MIN_CHUNK_SIZE));
+   	   
+   	   report = delegate.scrub(4, 1 << 20).get();
+   	   assertEquals(50, report.scanned());
+   	   assertEquals(Set.of(dir.resolve("bar1"), dir.resolve("bar10")), report.corrupted().keySet());
+   	   assertThrows(IOException.class, () -> store.get("bar1"));
+   	   delegate.close();
+   }
+   
+   @Test
+   public void testArchive() throws Exception {
+   	   var key = key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root.resolve("source"), scheme); 
+   	   delegate.setChunkSize(RecordHeader.MIN_CHUNK_SIZE);
+   	   delegate.setDeduplicated(true, TimeUnit.HOURS.toNanos(1));
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   var objects = new HashMap<String,Bar>();
+   	   for (int i = 0; i < 50; i++) {
+   	   	   // every tenth object is chunked, the last ten are the same
+   	   	   var bar = i >= 40 ? new Bar(40, "same".repeat(100)) : new Bar(i, (i % 10 == 0 ? "chunked " : "bar ").repeat(i % 10 == 0 ? 500 : 1));
+   	   	   objects.put("bar" + i, bar);
+   	   	   store.put("bar" + i, bar);
+   	   }
+   	   
+   	   // 50 objects, the blobs of the chunked objects and the shared blob
+   	   var archive = root.resolve("store.archive");
+   	   assertEquals(55, delegate.exportTo(archive));
+   	   assertEquals(0, delegate.exportTo(archive));
+   	   
+   	   // resumed from the last complete entry
+   	   var size = Files.size(archive);
+   	   try(var channel = FileChannel.open(archive, StandardOpenOption.WRITE)){
+   	   	   channel.truncate(size / 2);
+   	   }
+   	   var resumed = delegate.exportTo(archive);
+   	   assertTrue(resumed > 0 && resumed < 55);
+   	   assertEquals(size, Files.size(archive));
+   	   delegate.close();
+   	   
+   	   // imported into a store with another layout
+   	   var copy = new EncryptedStoreDelegate(key, root.resolve("copy"), scheme); 
+   	   copy.setSharding(16).get();
+   	   copy.setDeduplicated(true, 0);
+   	   assertEquals(55, copy.importFrom(archive, 4));
+   	   store = new ObjectStore(copy, Bar::new); 
+   	   for (var e : objects.entrySet()) assertEquals(e.getValue(), store.get(e.getKey()));
+   	   assertEquals(0, copy.sweep());
+   	   assertEquals(0, copy.importFrom(archive, 4));
+   	   copy.close();
+   	   
+   	   // corrupted records are detected
+   	   var b = Files.readAllBytes(archive);
+   	   b[b.length / 2] ^= 1;
+   	   Files.write(archive, b);
+   	   var corrupted = new EncryptedStoreDelegate(key, root.resolve("corrupted"), scheme); 
+   	   assertThrows(IOException.class, () -> corrupted.importFrom(archive, 4));
+   	   corrupted.close();
+   }
+   
+   static long count(Path dir) throws IOException {
+   	   try(var files = Files.walk(dir)){
+   	   	   return files.filter(Files::isRegularFile).count();
+   	   }
+   }
+   
    static Path dir(Path root, String... schema) {
    	   var d = root;
 		for(String s : schema) d = root.resolve(s);
@@ -0,0 +1,163 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import rs.igram.kiribi.store.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class NonceGeneratorTest {
+   @TempDir Path root;
+   
+   @Test
+   public void testUniqueAcrossThreads() throws Exception {
+   	   var generator = NonceGenerator.counter();
+   	   var nonces = ConcurrentHashMap.<ByteBuffer>newKeySet();
+   	   var threads = 8;
+   	   var count = 10000;
+   	   
+   	   var executor = Executors.newFixedThreadPool(threads);
+   	   try{
+   	   	   var futures = new ArrayList<Future<?>>();
+   	   	   for (int t = 0; t < threads; t++) {
+   	   	   	   futures.add(executor.submit(() -> {
+   	   	   	   	   for (int i = 0; i < count; i++) {
+   	   	   	   	   	   var nonce = new byte[NonceGenerator.SIZE];
+   	   	   	   	   	   generator.next(nonce);
+   	   	   	   	   	   nonces.add(ByteBuffer.wrap(nonce));
+   	   	   	   	   }
+   	   	   	   	   return null;
+   	   	   	   }));
+   	   	   }
+   	   	   for (var f : futures) f.get();
+   	   }finally{
+   	   	   executor.shutdown();
+   	   }
+   	   
+   	   assertEquals(threads * count, nonces.size());
+   }
+   
+   @Test
+   public void testUniqueAcrossRestarts() throws Exception {
+   	   var state = root.resolve("nonces");
+   	   // counter values alone, whatever the random prefixes
+   	   Set<Integer> counters = new HashSet<>();
+   	   var restarts = 5;
+   	   var count = (int)CounterNonceGenerator.BLOCK + 10;
+   	   for (int r = 0; r < restarts; r++) {
+   	   	   var generator = new CounterNonceGenerator(CounterNonceGenerator.MAX_LIMIT, null, state);
+   	   	   // a crash of the last restart leaves its reserved block unsaved
+   	   	   for (int i = 0; i < (r == restarts - 1 ? 10 : count); i++) {
+   	   	   	   var nonce = new byte[NonceGenerator.SIZE];
+   	   	   	   generator.next(nonce);
+   	   	   	   // chunk indices are left free
+   	   	   	   assertEquals(0, ByteBuffer.wrap(nonce).getInt(8));
+   	   	   	   assertTrue(counters.add(ByteBuffer.wrap(nonce).getInt(4)));
+   	   	   }
+   	   }
+   	   
+   	   var generator = new CounterNonceGenerator(CounterNonceGenerator.MAX_LIMIT, null, state);
+   	   var nonce = new byte[NonceGenerator.SIZE];
+   	   generator.next(nonce);
+   	   assertTrue(counters.add(ByteBuffer.wrap(nonce).getInt(4)));
+   }
+   
+   @Test
+   public void testExhaustionAcrossRestarts() throws Exception {
+   	   var state = root.resolve("nonces");
+   	   var nonce = new byte[NonceGenerator.SIZE];
+   	   var generator = new CounterNonceGenerator(2, null, state);
+   	   generator.next(nonce);
+   	   
+   	   // the limit bounds the key, not the instance
+   	   var restarted = new CounterNonceGenerator(2, null, state);
+   	   assertThrows(GeneralSecurityException.class, () -> restarted.next(nonce));
+   }
+   
+   @Test
+   public void testExhaustion() throws Exception {
+   	   var rekeys = new AtomicInteger();
+   	   var generator = NonceGenerator.counter(2, rekeys::incrementAndGet);
+   	   var nonce = new byte[NonceGenerator.SIZE];
+   	   generator.next(nonce);
+   	   generator.next(nonce);
+   	   assertEquals(0, rekeys.get());
+   	   
+   	   assertThrows(GeneralSecurityException.class, () -> generator.next(nonce));
+   	   assertThrows(GeneralSecurityException.class, () -> generator.next(nonce));
+   	   assertEquals(1, rekeys.get());
+   }
+   
+   @Test
+   public void testStore() throws Exception {
+   	   var key = EncryptedStoreDelegateTest.key();
+   	   
+   	   var delegate = new EncryptedStoreDelegate(key, root, "a"); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   
+   	   var counted = new Bar(1, "counter");
+   	   store.put("counter", counted);
+   	   
+   	   delegate.setNonceGenerator(NonceGenerator.random());
+   	   var random = new Bar(2, "random");
+   	   store.put("random", random);
+   	   
+   	   assertEquals(counted, store.get("counter"));
+   	   assertEquals(random, store.get("random"));
+   	   
+   	   // exhausted nonces fail the write, the key having a block reserved
+   	   delegate.setNonceGenerator(NonceGenerator.counter(CounterNonceGenerator.BLOCK + 1, null));
+   	   store.put("a", counted);
+   	   assertThrows(Exception.class, () -> store.put("b", counted));
+   	   delegate.close();
+   	   
+   	   // and stay exhausted once reopened
+   	   var reopened = new EncryptedStoreDelegate(key, root, "a"); 
+   	   var restored = new ObjectStore(reopened, Bar::new); 
+   	   assertEquals(counted, restored.get("a"));
+   	   reopened.setNonceGenerator(NonceGenerator.counter(CounterNonceGenerator.BLOCK + 1, null));
+   	   assertThrows(Exception.class, () -> restored.put("b", counted));
+   	   reopened.close();
+   }
+}
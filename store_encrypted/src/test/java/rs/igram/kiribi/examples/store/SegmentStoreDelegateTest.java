@@ -0,0 +1,133 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.examples.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import rs.igram.kiribi.store.*;
+
+/**
+ * 
+ *
+ * @author Michael Sargent
+ */
+public class SegmentStoreDelegateTest {
+	static final SecureRandom random = new SecureRandom();
+	
+   @TempDir Path root;
+   String scheme = "a";
+   
+   @Test
+   public void testIO() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new SegmentStoreDelegate(key, root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   
+   	   var foo = new Foo();
+   	   assertFalse(store.exists("foo"));
+   	   store.put("foo", foo);
+   	   assertTrue(store.exists("foo"));
+   	   assertEquals(foo, store.get("foo"));
+   	   
+   	   var bar = new Bar(1, "bar");
+   	   store.put("bar", bar);
+   	   assertEquals(bar, store.get("bar", Bar::new));
+   	   
+   	   store.remove("foo");
+   	   assertFalse(store.exists("foo"));
+   	   assertThrows(IOException.class, () -> store.get("foo"));
+   	   delegate.close();
+   	   
+   	   // rebuilt from the segments
+   	   delegate = new SegmentStoreDelegate(key, root, scheme); 
+   	   var reopened = new ObjectStore(delegate, Foo::new); 
+   	   assertFalse(reopened.exists("foo"));
+   	   assertEquals(bar, reopened.get("bar", Bar::new));
+   	   delegate.close();
+   }
+   
+   @Test
+   public void testCompaction() throws IOException {
+   	   var key = key();
+   	   
+   	   var delegate = new SegmentStoreDelegate(key, root, scheme); 
+   	   delegate.setSegmentSize(4 * 1024);
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   var latest = new HashMap<String,Foo>();
+   	   
+   	   for (int i = 0; i < 1000; i++) {
+   	   	   var name = "foo" + (i % 10);
+   	   	   var foo = new Foo();
+   	   	   store.put(name, foo);
+   	   	   latest.put(name, foo);
+   	   }
+   	   store.remove("foo0");
+   	   latest.remove("foo0");
+   	   
+   	   var before = delegate.segments();
+   	   assertTrue(delegate.compact() > 0);
+   	   assertTrue(delegate.segments() < before);
+   	   for (var e : latest.entrySet()) assertEquals(e.getValue(), store.get(e.getKey()));
+   	   assertFalse(store.exists("foo0"));
+   	   delegate.close();
+   	   
+   	   // a torn record at the tail is dropped on reopening
+   	   try (var segments = Files.list(dir(root, scheme))) {
+   	   	   var last = segments.sorted().reduce((a, b) -> b).get();
+   	   	   Files.write(last, new byte[]{0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+   	   }
+   	   
+   	   delegate = new SegmentStoreDelegate(key, root, scheme); 
+   	   store = new ObjectStore(delegate, Foo::new); 
+   	   for (var e : latest.entrySet()) assertEquals(e.getValue(), store.get(e.getKey()));
+   	   assertFalse(store.exists("foo0"));
+   	   store.put("foo0", new Foo());
+   	   assertTrue(store.exists("foo0"));
+   	   delegate.close();
+   }
+   
+   static Path dir(Path root, String... schema) {
+   	   var d = root;
+		for(String s : schema) d = d.resolve(s);
+		return d;
+   }
+   
+   static byte[] key() {
+   	   var key = new byte[16];
+   	   random.nextBytes(key);
+   	   return key;
+   }
+}